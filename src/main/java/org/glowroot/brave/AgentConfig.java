@@ -0,0 +1,444 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// agent settings, read once at startup from "brave.*" system properties
+class AgentConfig {
+
+    private static final String PREFIX = "brave.";
+
+    private final String serviceName;
+    private final @Nullable String zipkinEndpoint;
+    private final float sampleRate;
+
+    private final double samplerMaxSpansPerSecond;
+    private final double samplerMaxCpuPercent;
+    private final double samplerMaxAllocatedBytesPerSecond;
+    private final float samplerMinRate;
+
+    private final int reporterQueuedMaxSpans;
+    private final int reporterPriorityQueuedMaxSpans;
+    private final int reporterSlowThresholdMillis;
+    private final String reporterJfr;
+    private final int reporterHandoffMaxBatchSpans;
+    private final int reporterHandoffIntervalMillis;
+
+    private final @Nullable String relayDirectory;
+    private final boolean relayRole;
+    private final int relayRingBytes;
+    private final int relayIntervalMillis;
+
+    private final boolean logCorrelation;
+
+    private final boolean perApplicationTracing;
+    private final Map<String, String> applicationServiceNames;
+
+    private final Set<String> batchTransactionTypes;
+    private final int batchMaxMessages;
+    private final int batchMaxIdleMillis;
+    private final int batchMaxDurationMillis;
+    private final int batchMaxLinks;
+
+    private final boolean metricsEnabled;
+    private final int metricsIntervalSeconds;
+    private final boolean metricsLog;
+    private final int metricsPrometheusPort;
+    private final int metricsMaxNamesPerKind;
+    private final int metricsTopQueries;
+
+    private final int profilerIntervalMillis;
+    private final int profilerThresholdMillis;
+    private final int profilerMaxThreads;
+    private final float profilerMaxOverheadPercent;
+
+    private final boolean threadUsage;
+
+    private final boolean spanRecycling;
+
+    private final boolean pauseDetection;
+    private final int pauseJitterIntervalMillis;
+    private final int pauseMinMillis;
+
+    private final int watchdogThresholdMillis;
+    private final int watchdogIntervalMillis;
+    private final boolean watchdogCaptureStack;
+
+    private final int reaperMaxAgeMillis;
+    private final int reaperMaxPending;
+    private final int reaperIntervalMillis;
+
+    private AgentConfig() {
+        String serviceName = getString("serviceName");
+        this.serviceName = serviceName == null ? "my-service-name" : serviceName;
+        zipkinEndpoint = getString("zipkin.endpoint");
+        sampleRate = getFloat("sampleRate", 1);
+        samplerMaxSpansPerSecond = getFloat("sampler.maxSpansPerSecond", 0);
+        samplerMaxCpuPercent = getFloat("sampler.maxCpuPercent", 0);
+        samplerMaxAllocatedBytesPerSecond = getFloat("sampler.maxAllocatedBytesPerSecond", 0);
+        samplerMinRate = getFloat("sampler.minRate", 0.0001f);
+        reporterQueuedMaxSpans = getInt("reporter.queuedMaxSpans", 10000);
+        reporterPriorityQueuedMaxSpans = getInt("reporter.priorityQueuedMaxSpans", 0);
+        reporterSlowThresholdMillis = getInt("reporter.slowThresholdMillis", 0);
+        String reporterJfr = getString("reporter.jfr");
+        this.reporterJfr = reporterJfr == null ? "off" : reporterJfr.toLowerCase(Locale.ENGLISH);
+        reporterHandoffMaxBatchSpans = getInt("reporter.handoffMaxBatchSpans", 0);
+        reporterHandoffIntervalMillis = getInt("reporter.handoffIntervalMillis", 100);
+        relayDirectory = getString("relay.directory");
+        relayRole = "relay".equals(getString("relay.role"));
+        relayRingBytes = getInt("relay.ringBytes", 4 * 1024 * 1024);
+        relayIntervalMillis = getInt("relay.intervalMillis", 200);
+        logCorrelation = Boolean.parseBoolean(getString("logCorrelation"));
+        perApplicationTracing = Boolean.parseBoolean(getString("perApplication"));
+        applicationServiceNames = getMap("application.serviceNames");
+        batchTransactionTypes = getSet("batch.transactionTypes");
+        batchMaxMessages = getInt("batch.maxMessages", 1000);
+        batchMaxIdleMillis = getInt("batch.maxIdleMillis", 100);
+        batchMaxDurationMillis = getInt("batch.maxDurationMillis", 5000);
+        batchMaxLinks = getInt("batch.maxLinks", 10);
+        metricsEnabled = Boolean.parseBoolean(getString("metrics.enabled"));
+        metricsIntervalSeconds = getInt("metrics.intervalSeconds", 60);
+        String metricsLog = getString("metrics.log");
+        this.metricsLog = metricsLog == null || Boolean.parseBoolean(metricsLog);
+        metricsPrometheusPort = getInt("metrics.prometheusPort", 0);
+        metricsMaxNamesPerKind = getInt("metrics.maxNamesPerKind", 100);
+        metricsTopQueries = getInt("metrics.topQueries", 10);
+        profilerIntervalMillis = getInt("profiler.intervalMillis", 0);
+        profilerThresholdMillis = getInt("profiler.thresholdMillis", 1000);
+        profilerMaxThreads = getInt("profiler.maxThreads", 50);
+        profilerMaxOverheadPercent = getFloat("profiler.maxOverheadPercent", 1);
+        threadUsage = Boolean.parseBoolean(getString("threadUsage"));
+        spanRecycling = Boolean.parseBoolean(getString("spanRecycling"));
+        pauseDetection = Boolean.parseBoolean(getString("pause.enabled"));
+        pauseJitterIntervalMillis = getInt("pause.jitterIntervalMillis", 5);
+        pauseMinMillis = getInt("pause.minMillis", 10);
+        watchdogThresholdMillis = getInt("watchdog.thresholdMillis", 0);
+        watchdogIntervalMillis = getInt("watchdog.intervalMillis", 1000);
+        String watchdogCaptureStack = getString("watchdog.captureStack");
+        this.watchdogCaptureStack =
+                watchdogCaptureStack == null || Boolean.parseBoolean(watchdogCaptureStack);
+        reaperMaxAgeMillis = getInt("reaper.maxAgeMillis", 0);
+        reaperMaxPending = getInt("reaper.maxPending", 10000);
+        reaperIntervalMillis = getInt("reaper.intervalMillis", 1000);
+    }
+
+    static AgentConfig fromSystemProperties() {
+        return new AgentConfig();
+    }
+
+    String getServiceName() {
+        return serviceName;
+    }
+
+    // null means spans are logged to the console instead of being sent to a collector
+    @Nullable
+    String getZipkinEndpoint() {
+        return zipkinEndpoint;
+    }
+
+    // when an overhead budget is configured, this is the initial (and maximum) sample rate
+    float getSampleRate() {
+        return sampleRate;
+    }
+
+    boolean isAdaptiveSampling() {
+        return samplerMaxSpansPerSecond > 0 || samplerMaxCpuPercent > 0
+                || samplerMaxAllocatedBytesPerSecond > 0;
+    }
+
+    // 0 means no budget for this dimension
+    double getSamplerMaxSpansPerSecond() {
+        return samplerMaxSpansPerSecond;
+    }
+
+    // percent of total cpu (across all available processors) used by the agent's reporting threads
+    double getSamplerMaxCpuPercent() {
+        return samplerMaxCpuPercent;
+    }
+
+    double getSamplerMaxAllocatedBytesPerSecond() {
+        return samplerMaxAllocatedBytesPerSecond;
+    }
+
+    float getSamplerMinRate() {
+        return samplerMinRate;
+    }
+
+    // when per-application tracing is enabled, this applies to each application's queue separately
+    int getReporterQueuedMaxSpans() {
+        return reporterQueuedMaxSpans;
+    }
+
+    // queue capacity reserved for the spans of error and slow transactions (in addition to
+    // reporter.queuedMaxSpans), 0 means there are no priority lanes, see PriorityLaneReporter
+    int getReporterPriorityQueuedMaxSpans() {
+        return reporterPriorityQueuedMaxSpans;
+    }
+
+    // transactions (along with all of their spans) and spans at least this long go to the priority
+    // lane, 0 means only errors (and transactions that exceed a slow threshold set by
+    // instrumentation) go to the priority lane
+    int getReporterSlowThresholdMillis() {
+        return reporterSlowThresholdMillis;
+    }
+
+    // "off", "only" (spans are only emitted as java flight recorder events, and are not sent to a
+    // collector or logged to the console) or "alongside", see JfrSpanReporter
+    String getReporterJfr() {
+        return reporterJfr;
+    }
+
+    // spans are handed off to the reporter queue in per-thread batches of up to this many spans
+    // (or fewer when the thread's transaction ends), 0 means each span is added to the reporter
+    // queue directly, see SpanHandoffReporter
+    int getReporterHandoffMaxBatchSpans() {
+        return reporterHandoffMaxBatchSpans;
+    }
+
+    // how often the handed off batches are drained into the reporter queue
+    int getReporterHandoffIntervalMillis() {
+        return reporterHandoffIntervalMillis;
+    }
+
+    // host-shared directory where the agents on the host write their spans for the relay to ship
+    // to the collector (instead of each agent sending its spans itself), null means the relay is
+    // not used, see RelayReporter and SpanRelay
+    @Nullable
+    String getRelayDirectory() {
+        return relayDirectory;
+    }
+
+    // whether this agent is the one (on the host) that ships the spans written to the relay
+    // directory ("relay") or one that writes its spans there ("writer", the default)
+    boolean isRelayRole() {
+        return relayRole;
+    }
+
+    // size of each agent's ring file, spans are dropped when the ring file is full
+    int getRelayRingBytes() {
+        return relayRingBytes;
+    }
+
+    // how often the relay drains the ring files
+    int getRelayIntervalMillis() {
+        return relayIntervalMillis;
+    }
+
+    // whether the current trace id and span id are published to the application's logging MDC,
+    // see LogCorrelationScopeDecorator
+    boolean isLogCorrelation() {
+        return logCorrelation;
+    }
+
+    // whether applications deployed in an app server (e.g. tomcat webapps, jboss deployments) each
+    // get their own Tracing, see ApplicationTracings
+    boolean isPerApplicationTracing() {
+        return perApplicationTracing;
+    }
+
+    // application name to service name, e.g. "petclinic=petclinic-web,admin=petclinic-admin",
+    // applications that are not listed use their application name as the service name
+    Map<String, String> getApplicationServiceNames() {
+        return applicationServiceNames;
+    }
+
+    // transaction types whose incoming spans (one per consumed message) are coalesced into one
+    // root span per batch of consecutively consumed messages, see MessageBatcher
+    Set<String> getBatchTransactionTypes() {
+        return batchTransactionTypes;
+    }
+
+    int getBatchMaxMessages() {
+        return batchMaxMessages;
+    }
+
+    int getBatchMaxIdleMillis() {
+        return batchMaxIdleMillis;
+    }
+
+    int getBatchMaxDurationMillis() {
+        return batchMaxDurationMillis;
+    }
+
+    // max number of upstream trace contexts recorded per batch
+    int getBatchMaxLinks() {
+        return batchMaxLinks;
+    }
+
+    // whether rate, errors and duration are aggregated in the agent for every span (regardless of
+    // sampling), see RedMetrics
+    boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    // whether a line per span name is logged at each interval
+    boolean isMetricsLog() {
+        return metricsLog;
+    }
+
+    // the prometheus endpoint listens on 127.0.0.1 only, 0 means no prometheus endpoint
+    int getMetricsPrometheusPort() {
+        return metricsPrometheusPort;
+    }
+
+    int getMetricsMaxNamesPerKind() {
+        return metricsMaxNamesPerKind;
+    }
+
+    // the number of queries in each of the top queries rankings (by total time, count and max
+    // time), 0 means top queries are not tracked, see TopQueries
+    int getMetricsTopQueries() {
+        return metricsTopQueries;
+    }
+
+    // interval at which the stacks of threads inside sampled transactions are captured, 0 means
+    // the profiler is disabled, see StackProfiler
+    int getProfilerIntervalMillis() {
+        return profilerIntervalMillis;
+    }
+
+    // the call tree is only attached to transactions that take at least this long
+    int getProfilerThresholdMillis() {
+        return profilerThresholdMillis;
+    }
+
+    // maximum number of threads captured per interval
+    int getProfilerMaxThreads() {
+        return profilerMaxThreads;
+    }
+
+    // maximum percent of (a single cpu's) time spent capturing stacks
+    float getProfilerMaxOverheadPercent() {
+        return profilerMaxOverheadPercent;
+    }
+
+    // whether the cpu time and allocated bytes of sampled transactions (summed across the thread
+    // that started the transaction and its auxiliary threads) are added as tags to the root span
+    boolean isThreadUsage() {
+        return threadUsage;
+    }
+
+    // whether the synchronous query and outgoing span wrappers are recycled through a per-thread
+    // pool (see SpanPool), which assumes that instrumentation doesn't hold on to spans after ending
+    // them
+    boolean isSpanRecycling() {
+        return spanRecycling;
+    }
+
+    // whether spans that overlap a gc or other jvm pause are tagged with the paused duration, see
+    // PauseDetector
+    boolean isPauseDetection() {
+        return pauseDetection;
+    }
+
+    int getPauseJitterIntervalMillis() {
+        return pauseJitterIntervalMillis;
+    }
+
+    // shorter pauses are not recorded
+    int getPauseMinMillis() {
+        return pauseMinMillis;
+    }
+
+    // transactions that are still in progress after this long have a snapshot reported (unless
+    // instrumentation overrides the threshold through setTransactionSlowThreshold()), 0 means the
+    // stuck transaction watchdog is disabled
+    int getWatchdogThresholdMillis() {
+        return watchdogThresholdMillis;
+    }
+
+    int getWatchdogIntervalMillis() {
+        return watchdogIntervalMillis;
+    }
+
+    // whether the snapshot includes the stack trace of the thread that started the transaction
+    boolean isWatchdogCaptureStack() {
+        return watchdogCaptureStack;
+    }
+
+    // async spans and async transactions that are still not ended after this long are finished
+    // and tagged as abandoned, 0 means the reaper is disabled
+    int getReaperMaxAgeMillis() {
+        return reaperMaxAgeMillis;
+    }
+
+    // the number of pending async spans that are tracked, which bounds the memory used for tracking
+    int getReaperMaxPending() {
+        return reaperMaxPending;
+    }
+
+    int getReaperIntervalMillis() {
+        return reaperIntervalMillis;
+    }
+
+    private static @Nullable String getString(String name) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static Set<String> getSet(String name) {
+        String value = getString(name);
+        if (value == null) {
+            return ImmutableSet.of();
+        }
+        return ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings().split(value));
+    }
+
+    private static Map<String, String> getMap(String name) {
+        String value = getString(name);
+        if (value == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+                .withKeyValueSeparator(Splitter.on('=').trimResults()).split(value));
+    }
+
+    private static int getInt(String name, int defaultValue) {
+        String value = getString(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static float getFloat(String name, float defaultValue) {
+        String value = getString(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -15,13 +15,24 @@
  */
 package org.glowroot.brave;
 
+import brave.Span.Kind;
 import brave.Tracing;
+import brave.propagation.CurrentTraceContext.Scope;
 import brave.propagation.Propagation;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContextOrSamplingFlags;
-
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.brave.profiler.StackProfiler;
+import org.glowroot.brave.propagation.BinaryGetter;
+import org.glowroot.brave.propagation.BinaryPropagation;
+import org.glowroot.brave.reaper.AsyncSpanReaper;
 import org.glowroot.brave.span.IncomingSpanImpl;
+import org.glowroot.brave.watchdog.StuckTransactionWatchdog;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.engine.impl.NopTransactionService;
 import org.glowroot.xyzzy.engine.spi.AgentSPI;
 import org.glowroot.xyzzy.instrumentation.api.Getter;
 import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
@@ -34,9 +45,39 @@ class AgentImpl implements AgentSPI {
 
     private final ThreadContextThreadLocal threadContextThreadLocal;
 
-    AgentImpl(Tracing tracing, ThreadContextThreadLocal threadContextThreadLocal) {
-        this.tracing = tracing;
-        this.threadContextThreadLocal = threadContextThreadLocal;
+    private final @Nullable MessageBatcher messageBatcher;
+
+    private final @Nullable ApplicationTracings applicationTracings;
+
+    private final @Nullable RedMetrics redMetrics;
+    private final @Nullable PauseDetector pauseDetector;
+
+    private final @Nullable StackProfiler stackProfiler;
+
+    private final @Nullable StuckTransactionWatchdog watchdog;
+
+    private final @Nullable AsyncSpanReaper reaper;
+
+    private final boolean threadUsage;
+    private final boolean spanRecycling;
+
+    private AgentImpl(Builder builder) {
+        this.tracing = builder.tracing;
+        this.threadContextThreadLocal = builder.threadContextThreadLocal;
+        this.messageBatcher = builder.messageBatcher;
+        this.applicationTracings = builder.applicationTracings;
+        this.redMetrics = builder.redMetrics;
+        this.pauseDetector = builder.pauseDetector;
+        this.stackProfiler = builder.stackProfiler;
+        this.watchdog = builder.watchdog;
+        this.reaper = builder.reaper;
+        this.threadUsage = builder.threadUsage;
+        this.spanRecycling = builder.spanRecycling;
+    }
+
+    // all of the optional features are off unless set on the builder
+    static Builder newBuilder(Tracing tracing, ThreadContextThreadLocal threadContextThreadLocal) {
+        return new Builder(tracing, threadContextThreadLocal);
     }
 
     // in addition to returning Span, this method needs to put the newly created thread context into
@@ -47,27 +88,135 @@ class AgentImpl implements AgentSPI {
             ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
             int rootSuppressionKeyId) {
 
+        if (!AgentSwitch.isEnabled()) {
+            return NopTransactionService.LOCAL_SPAN;
+        }
+
+        // the whole trace uses the Tracing of the application where it started
+        Tracing tracing =
+                applicationTracings == null ? this.tracing : applicationTracings.getTracing();
+
+        if (messageBatcher != null && messageBatcher.isBatched(transactionType)) {
+            return messageBatcher.startMessage(tracing, threadContextThreadLocal, transactionName,
+                    getter, carrier, messageSupplier, threadContextHolder, rootNestingGroupId,
+                    rootSuppressionKeyId, redMetrics, pauseDetector, reaper, spanRecycling);
+        }
+
         TraceContextOrSamplingFlags extracted = extract(getter, carrier);
 
         brave.Span span = extracted.context() != null
                 ? tracing.tracer().joinSpan(extracted.context())
                 : tracing.tracer().nextSpan(extracted);
 
-        IncomingSpanImpl incomingSpan =
-                new IncomingSpanImpl(span, messageSupplier, threadContextHolder);
+        boolean http = transactionType.equals("Web");
+        if (http) {
+            span.kind(Kind.SERVER);
+        }
+        span.name(transactionName).start();
+
+        // the incoming span is in scope on this thread until it ends, so that spans started
+        // directly by brave apis (and log correlation) see it as the current span
+        Scope scope = tracing.currentTraceContext().newScope(span.context());
+
+        IncomingSpanImpl incomingSpan = new IncomingSpanImpl(span, http, transactionName,
+                messageSupplier, threadContextHolder, scope, redMetrics, pauseDetector,
+                stackProfiler, reaper, threadUsage);
 
         ThreadContextImpl threadContext = new ThreadContextImpl(tracing, threadContextThreadLocal,
-                incomingSpan, rootNestingGroupId, rootSuppressionKeyId, null);
+                incomingSpan, rootNestingGroupId, rootSuppressionKeyId, null, redMetrics,
+                pauseDetector, spanRecycling);
         threadContextHolder.set(threadContext);
 
+        // unsampled transactions aren't watched, since their snapshot wouldn't be reported anyways
+        if (watchdog != null && !span.isNoop()) {
+            watchdog.transactionStarted(threadContext);
+        }
+
         return incomingSpan;
     }
 
-    private static <C> TraceContextOrSamplingFlags extract(Getter<C> getter, C carrier) {
+    @SuppressWarnings("unchecked")
+    static <C> TraceContextOrSamplingFlags extract(Getter<C> getter, C carrier) {
+        TraceContextOrSamplingFlags extracted = getter instanceof BinaryGetter
+                ? BinaryPropagation.extract((BinaryGetter<C>) getter, carrier)
+                : BinaryPropagation.extract(carrier);
+        if (extracted != null) {
+            return extracted;
+        }
         Extractor<C> extractor = Propagation.B3_STRING.extractor(new BraveGetter<C>(getter));
         return extractor.extract(carrier);
     }
 
+    static class Builder {
+
+        private final Tracing tracing;
+        private final ThreadContextThreadLocal threadContextThreadLocal;
+
+        private @Nullable MessageBatcher messageBatcher;
+        private @Nullable ApplicationTracings applicationTracings;
+        private @Nullable RedMetrics redMetrics;
+        private @Nullable PauseDetector pauseDetector;
+        private @Nullable StackProfiler stackProfiler;
+        private @Nullable StuckTransactionWatchdog watchdog;
+        private @Nullable AsyncSpanReaper reaper;
+        private boolean threadUsage;
+        private boolean spanRecycling;
+
+        private Builder(Tracing tracing, ThreadContextThreadLocal threadContextThreadLocal) {
+            this.tracing = tracing;
+            this.threadContextThreadLocal = threadContextThreadLocal;
+        }
+
+        Builder messageBatcher(@Nullable MessageBatcher messageBatcher) {
+            this.messageBatcher = messageBatcher;
+            return this;
+        }
+
+        Builder applicationTracings(@Nullable ApplicationTracings applicationTracings) {
+            this.applicationTracings = applicationTracings;
+            return this;
+        }
+
+        Builder redMetrics(@Nullable RedMetrics redMetrics) {
+            this.redMetrics = redMetrics;
+            return this;
+        }
+
+        Builder pauseDetector(@Nullable PauseDetector pauseDetector) {
+            this.pauseDetector = pauseDetector;
+            return this;
+        }
+
+        Builder stackProfiler(@Nullable StackProfiler stackProfiler) {
+            this.stackProfiler = stackProfiler;
+            return this;
+        }
+
+        Builder watchdog(@Nullable StuckTransactionWatchdog watchdog) {
+            this.watchdog = watchdog;
+            return this;
+        }
+
+        Builder reaper(@Nullable AsyncSpanReaper reaper) {
+            this.reaper = reaper;
+            return this;
+        }
+
+        Builder threadUsage(boolean threadUsage) {
+            this.threadUsage = threadUsage;
+            return this;
+        }
+
+        Builder spanRecycling(boolean spanRecycling) {
+            this.spanRecycling = spanRecycling;
+            return this;
+        }
+
+        AgentImpl build() {
+            return new AgentImpl(this);
+        }
+    }
+
     private static class BraveGetter<C> implements brave.propagation.Propagation.Getter<C, String> {
 
         private final Getter<C> getter;
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+// jvm-wide switch that is flipped by attaching the agent to a running jvm with the "stop" and
+// "start" arguments, see MainEntryPoint.agentmain()
+//
+// while disabled, AgentImpl, ThreadContextImpl and AuxThreadContextImpl return nop spans right
+// away (transactions that are already in progress still end normally), and the agent's background
+// tasks are suspended (see BackgroundTasks)
+class AgentSwitch {
+
+    private static volatile boolean enabled = true;
+
+    private AgentSwitch() {}
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        AgentSwitch.enabled = enabled;
+    }
+}
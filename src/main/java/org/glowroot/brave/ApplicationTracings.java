@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Set;
+
+import brave.Tracing;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.brave.TracingFactory.ManagedTracing;
+
+// resolves the Tracing for the application that is currently executing on a thread, based on the
+// thread context class loader (which app servers set to the web application class loader while
+// dispatching a request into that application)
+//
+// threads that are not running inside an application (e.g. app server threads, or a plain java
+// application) use the default Tracing
+class ApplicationTracings {
+
+    private static final Logger logger = LoggerFactory.getLogger(ApplicationTracings.class);
+
+    private final Tracing defaultTracing;
+    private final TracingFactory tracingFactory;
+    private final Map<String, String> serviceNames;
+
+    // class loaders of the app server / plain java application, these are never treated as
+    // application class loaders (in particular, java 9+ gives the system class loader a name)
+    private final Set<ClassLoader> nonApplicationClassLoaders = Sets.newIdentityHashSet();
+
+    // weak keys so that an undeployed application's class loader can still be collected, at which
+    // point its Tracing is closed (this also gives identity comparison of the class loaders)
+    private final LoadingCache<ClassLoader, Optional<ManagedTracing>> tracings;
+
+    // most requests on a given server go to the same application, so the last lookup is cached,
+    // which makes the common case a single field read and identity comparison
+    private volatile LastLookup lastLookup;
+
+    ApplicationTracings(Tracing defaultTracing, TracingFactory tracingFactory,
+            Map<String, String> serviceNames) {
+        this.defaultTracing = defaultTracing;
+        this.tracingFactory = tracingFactory;
+        this.serviceNames = serviceNames;
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        while (loader != null) {
+            nonApplicationClassLoaders.add(loader);
+            loader = loader.getParent();
+        }
+        loader = ApplicationTracings.class.getClassLoader();
+        if (loader != null) {
+            nonApplicationClassLoaders.add(loader);
+        }
+        tracings = CacheBuilder.newBuilder()
+                .weakKeys()
+                .removalListener(new CloseOnRemoval())
+                .build(new TracingLoader());
+        lastLookup = new LastLookup(null, defaultTracing);
+    }
+
+    Tracing getTracing() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            return defaultTracing;
+        }
+        LastLookup lastLookup = this.lastLookup;
+        if (lastLookup.loaderRef.get() == loader) {
+            return lastLookup.tracing;
+        }
+        Optional<ManagedTracing> managedTracing = tracings.getUnchecked(loader);
+        Tracing tracing =
+                managedTracing.isPresent() ? managedTracing.get().getTracing() : defaultTracing;
+        this.lastLookup = new LastLookup(loader, tracing);
+        return tracing;
+    }
+
+    private @Nullable String getApplicationName(ClassLoader loader) {
+        if (nonApplicationClassLoaders.contains(loader)) {
+            return null;
+        }
+        // tomcat's WebappClassLoaderBase.getContextName() (e.g. "/petclinic", or "" for ROOT which
+        // then uses the default Tracing)
+        String contextName = invokeStringGetter(loader, "getContextName");
+        if (contextName != null) {
+            return contextName.startsWith("/") ? contextName.substring(1) : contextName;
+        }
+        // jboss modules' ModuleClassLoader.getName() (e.g. "deployment.petclinic.war"), and
+        // ClassLoader.getName() on java 9+
+        return invokeStringGetter(loader, "getName");
+    }
+
+    private static @Nullable String invokeStringGetter(Object obj, String methodName) {
+        Method method;
+        try {
+            method = obj.getClass().getMethod(methodName);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        if (method.getReturnType() != String.class) {
+            return null;
+        }
+        try {
+            String value = (String) method.invoke(obj);
+            return value == null || value.isEmpty() ? null : value;
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private class TracingLoader extends CacheLoader<ClassLoader, Optional<ManagedTracing>> {
+        @Override
+        public Optional<ManagedTracing> load(ClassLoader loader) {
+            String applicationName = getApplicationName(loader);
+            if (applicationName == null) {
+                return Optional.absent();
+            }
+            String serviceName = serviceNames.get(applicationName);
+            if (serviceName == null) {
+                serviceName = applicationName;
+            }
+            logger.debug("creating tracing for application {} with service name {}",
+                    applicationName, serviceName);
+            return Optional.of(tracingFactory.create(serviceName));
+        }
+    }
+
+    private static class CloseOnRemoval
+            implements RemovalListener<ClassLoader, Optional<ManagedTracing>> {
+        @Override
+        public void onRemoval(
+                RemovalNotification<ClassLoader, Optional<ManagedTracing>> notification) {
+            Optional<ManagedTracing> managedTracing = notification.getValue();
+            if (managedTracing != null && managedTracing.isPresent()) {
+                managedTracing.get().close();
+            }
+        }
+    }
+
+    private static class LastLookup {
+
+        // weak so that this doesn't prevent an undeployed application's class loader from being
+        // collected
+        private final WeakReference<ClassLoader> loaderRef;
+        private final Tracing tracing;
+
+        private LastLookup(@Nullable ClassLoader loader, Tracing tracing) {
+            loaderRef = new WeakReference<ClassLoader>(loader);
+            this.tracing = tracing;
+        }
+    }
+}
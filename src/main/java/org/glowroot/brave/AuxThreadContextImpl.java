@@ -21,7 +21,10 @@ import brave.Tracing;
 import brave.propagation.CurrentTraceContext.Scope;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
 import org.glowroot.brave.span.IncomingSpanImpl;
+import org.glowroot.brave.span.ThreadUsage;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.impl.NopTransactionService;
@@ -40,11 +43,25 @@ public class AuxThreadContextImpl implements AuxThreadContext {
 
     private final IncomingSpanImpl incomingSpan;
 
+    private final @Nullable RedMetrics redMetrics;
+    private final @Nullable PauseDetector pauseDetector;
+
+    private final boolean spanRecycling;
+
+    // the aux thread context is created when the work is handed off (e.g. submitted to an
+    // executor), and started when the work begins on the auxiliary thread
+    private final long submitTick;
+
     public AuxThreadContextImpl(Tracing tracing, ThreadContextThreadLocal threadContextThreadLocal,
-            IncomingSpanImpl incomingSpan) {
+            IncomingSpanImpl incomingSpan, @Nullable RedMetrics redMetrics,
+            @Nullable PauseDetector pauseDetector, boolean spanRecycling) {
         this.tracing = tracing;
         this.threadContextThreadLocal = threadContextThreadLocal;
         this.incomingSpan = incomingSpan;
+        this.redMetrics = redMetrics;
+        this.pauseDetector = pauseDetector;
+        this.spanRecycling = spanRecycling;
+        submitTick = System.nanoTime();
     }
 
     @Override
@@ -58,6 +75,14 @@ public class AuxThreadContextImpl implements AuxThreadContext {
     }
 
     private Span start(boolean completeAsyncTransaction) {
+        if (!AgentSwitch.isEnabled()) {
+            // the transaction isn't continued on this thread, but it still needs to be completed
+            // so that it ends normally
+            if (completeAsyncTransaction) {
+                incomingSpan.setAsyncComplete();
+            }
+            return NopTransactionService.LOCAL_SPAN;
+        }
         ThreadContextThreadLocal.Holder threadContextHolder = threadContextThreadLocal.getHolder();
         ThreadContextPlus threadContext = threadContextHolder.get();
         if (threadContext != null) {
@@ -69,13 +94,14 @@ public class AuxThreadContextImpl implements AuxThreadContext {
         Scope auxScope = tracing.currentTraceContext().newScope(incomingSpan.getTraceContext());
         TwoPartCompletion auxThreadAsyncCompletion = new TwoPartCompletion();
         threadContext = new ThreadContextImpl(tracing, threadContextThreadLocal, incomingSpan, 0, 0,
-                auxThreadAsyncCompletion);
+                auxThreadAsyncCompletion, redMetrics, pauseDetector, spanRecycling);
         threadContextHolder.set(threadContext);
+        ThreadUsage auxThreadUsage = incomingSpan.auxThreadStarted(System.nanoTime() - submitTick);
         if (completeAsyncTransaction) {
             threadContext.setTransactionAsyncComplete();
         }
         return new AuxThreadSpanImpl(auxScope, threadContextHolder, auxThreadAsyncCompletion,
-                incomingSpan);
+                incomingSpan, auxThreadUsage);
     }
 
     private static class AuxThreadSpanImpl implements Span {
@@ -86,13 +112,16 @@ public class AuxThreadContextImpl implements AuxThreadContext {
 
         private final TwoPartCompletion auxThreadAsyncCompletion;
         private final IncomingSpanImpl incomingSpan;
+        private final @Nullable ThreadUsage auxThreadUsage;
 
         private AuxThreadSpanImpl(Scope scope, ThreadContextThreadLocal.Holder threadContextHolder,
-                TwoPartCompletion auxThreadAsyncCompletion, IncomingSpanImpl incomingSpan) {
+                TwoPartCompletion auxThreadAsyncCompletion, IncomingSpanImpl incomingSpan,
+                @Nullable ThreadUsage auxThreadUsage) {
             this.scope = scope;
             this.threadContextHolder = threadContextHolder;
             this.auxThreadAsyncCompletion = auxThreadAsyncCompletion;
             this.incomingSpan = incomingSpan;
+            this.auxThreadUsage = auxThreadUsage;
         }
 
         @Override
@@ -147,6 +176,7 @@ public class AuxThreadContextImpl implements AuxThreadContext {
         private void endInternal() {
             scope.close();
             threadContextHolder.set(null);
+            incomingSpan.auxThreadEnded(auxThreadUsage);
             if (auxThreadAsyncCompletion.completePart2()) {
                 incomingSpan.setAsyncComplete();
             }
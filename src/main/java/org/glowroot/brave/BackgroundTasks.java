@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// the agent's periodic tasks and background threads, which are suspended while tracing is stopped
+// (see MainEntryPoint.agentmain()) so that a stopped agent doesn't keep profiling, exporting
+// metrics, relaying spans, etc., and resumed when tracing is started again
+class BackgroundTasks {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackgroundTasks.class);
+
+    private final ScheduledExecutorService executor;
+
+    // guarded by this
+    private final List<Service> services = Lists.newArrayList();
+    private boolean suspended;
+
+    BackgroundTasks(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    // runs the command periodically on the agent's background thread
+    Service schedule(Runnable command, long interval, TimeUnit unit) {
+        return schedule(executor, command, interval, unit);
+    }
+
+    Service schedule(ScheduledExecutorService executor, Runnable command, long interval,
+            TimeUnit unit) {
+        Service service = new PeriodicTask(executor, command, interval, unit);
+        add(service);
+        return service;
+    }
+
+    // starts the service right away, unless tracing is currently stopped
+    synchronized void add(Service service) {
+        services.add(service);
+        if (!suspended) {
+            start(service);
+        }
+    }
+
+    // stops the service for good, e.g. when the Tracing that it belongs to is closed
+    synchronized void remove(Service service) {
+        if (services.remove(service) && !suspended) {
+            stop(service);
+        }
+    }
+
+    synchronized void suspend() {
+        if (suspended) {
+            return;
+        }
+        suspended = true;
+        for (Service service : services) {
+            stop(service);
+        }
+    }
+
+    synchronized void resume() {
+        if (!suspended) {
+            return;
+        }
+        suspended = false;
+        for (Service service : services) {
+            start(service);
+        }
+    }
+
+    // one service failing to start or stop shouldn't affect the others
+    private static void start(Service service) {
+        try {
+            service.start();
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private static void stop(Service service) {
+        try {
+            service.stop();
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    // start() and stop() are called alternately, starting with start()
+    interface Service {
+
+        void start();
+
+        void stop();
+    }
+
+    private static class PeriodicTask implements Service {
+
+        private final ScheduledExecutorService executor;
+        private final Runnable command;
+        private final long interval;
+        private final TimeUnit unit;
+
+        // only accessed under the BackgroundTasks lock
+        private @Nullable ScheduledFuture<?> future;
+
+        private PeriodicTask(ScheduledExecutorService executor, Runnable command, long interval,
+                TimeUnit unit) {
+            this.executor = executor;
+            this.command = command;
+            this.interval = interval;
+            this.unit = unit;
+        }
+
+        @Override
+        public void start() {
+            future = executor.scheduleWithFixedDelay(command, interval, interval, unit);
+        }
+
+        @Override
+        public void stop() {
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+    }
+}
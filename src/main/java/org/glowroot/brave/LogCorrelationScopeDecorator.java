@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.CurrentTraceContext.ScopeDecorator;
+import brave.propagation.TraceContext;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// publishes the current trace id and span id to the application's logging MDC (slf4j/logback,
+// log4j, log4j2 and jboss logmanager, which backs java.util.logging on jboss/wildfly) whenever a
+// scope is entered or exited, so that they can be included in the application's log lines
+//
+// the hex ids are computed once per trace context (TraceContext caches them), and the MDC is only
+// written when the published value actually changes (e.g. the trace id is not re-published when
+// entering a child span's scope)
+class LogCorrelationScopeDecorator implements ScopeDecorator {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(LogCorrelationScopeDecorator.class);
+
+    static final String TRACE_ID = "traceId";
+    static final String SPAN_ID = "spanId";
+
+    // these need to refer to the application's (unshaded) logging classes, so the class names are
+    // joined at runtime: the shade plugin would relocate a literal "org.slf4j.MDC", and javac folds
+    // concatenated constants into a single literal (see ShadedJarIT)
+    private static final String[] MDC_CLASS_NAMES = {unshaded("org.", "slf4j.MDC"),
+            unshaded("org.apache.", "log4j.MDC"),
+            unshaded("org.apache.logging.", "log4j.ThreadContext"),
+            unshaded("org.jboss.", "logmanager.MDC")};
+
+    // the MDC classes are resolved from the thread context class loader, since each application
+    // in an app server may have its own logging library
+    private final LoadingCache<ClassLoader, MdcBinding[]> bindings = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(new BindingLoader());
+
+    private final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+
+    @Override
+    public Scope decorateScope(@Nullable TraceContext currentSpan, Scope scope) {
+        ThreadState threadState = threadStates.get();
+        String traceId = currentSpan == null ? null : currentSpan.traceIdString();
+        String spanId = currentSpan == null ? null : currentSpan.spanIdString();
+        String prevTraceId = threadState.traceId;
+        String prevSpanId = threadState.spanId;
+        if (equal(traceId, prevTraceId) && equal(spanId, prevSpanId)) {
+            // e.g. an aux thread re-entering the same context, nothing to restore on close
+            return scope;
+        }
+        publish(threadState, traceId, spanId);
+        return new CorrelationScope(scope, threadState, prevTraceId, prevSpanId);
+    }
+
+    private void publish(ThreadState threadState, @Nullable String traceId,
+            @Nullable String spanId) {
+        MdcBinding[] bindings = getBindings(threadState);
+        if (!equal(traceId, threadState.traceId)) {
+            for (MdcBinding binding : bindings) {
+                binding.set(threadState, TRACE_ID, traceId);
+            }
+            threadState.traceId = traceId;
+        }
+        if (!equal(spanId, threadState.spanId)) {
+            for (MdcBinding binding : bindings) {
+                binding.set(threadState, SPAN_ID, spanId);
+            }
+            threadState.spanId = spanId;
+        }
+    }
+
+    private MdcBinding[] getBindings(ThreadState threadState) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+        if (threadState.loaderRef.get() != loader) {
+            threadState.loaderRef = new WeakReference<ClassLoader>(loader);
+            threadState.bindings = bindings.getUnchecked(loader);
+        }
+        return threadState.bindings;
+    }
+
+    private static String unshaded(String packagePrefix, String name) {
+        return new StringBuilder(packagePrefix).append(name).toString();
+    }
+
+    private static boolean equal(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private class CorrelationScope implements Scope {
+
+        private final Scope delegate;
+        private final ThreadState threadState;
+        private final @Nullable String prevTraceId;
+        private final @Nullable String prevSpanId;
+
+        private CorrelationScope(Scope delegate, ThreadState threadState,
+                @Nullable String prevTraceId, @Nullable String prevSpanId) {
+            this.delegate = delegate;
+            this.threadState = threadState;
+            this.prevTraceId = prevTraceId;
+            this.prevSpanId = prevSpanId;
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+            publish(threadState, prevTraceId, prevSpanId);
+        }
+    }
+
+    // only accessed by its own thread
+    private static class ThreadState {
+
+        private WeakReference<ClassLoader> loaderRef = new WeakReference<ClassLoader>(null);
+        private MdcBinding[] bindings = new MdcBinding[0];
+
+        // reused to avoid allocating varargs arrays on every reflective call
+        private final Object[] putArgs = new Object[2];
+        private final Object[] removeArgs = new Object[1];
+
+        // the values that are currently published to the MDC
+        private @Nullable String traceId;
+        private @Nullable String spanId;
+    }
+
+    private static class MdcBinding {
+
+        private final Method putMethod;
+        private final Method removeMethod;
+        private volatile boolean disabled;
+
+        private MdcBinding(Method putMethod, Method removeMethod) {
+            this.putMethod = putMethod;
+            this.removeMethod = removeMethod;
+        }
+
+        private void set(ThreadState threadState, String key, @Nullable String value) {
+            if (disabled) {
+                return;
+            }
+            try {
+                if (value == null) {
+                    threadState.removeArgs[0] = key;
+                    removeMethod.invoke(null, threadState.removeArgs);
+                } else {
+                    threadState.putArgs[0] = key;
+                    threadState.putArgs[1] = value;
+                    putMethod.invoke(null, threadState.putArgs);
+                }
+            } catch (Exception e) {
+                // don't keep failing (and logging) on every scope change
+                disabled = true;
+                logger.warn("disabling log correlation for {}: {}",
+                        putMethod.getDeclaringClass().getName(), e.getMessage(), e);
+            }
+        }
+    }
+
+    private static class BindingLoader extends CacheLoader<ClassLoader, MdcBinding[]> {
+        @Override
+        public MdcBinding[] load(ClassLoader loader) {
+            List<MdcBinding> bindings = Lists.newArrayList();
+            for (String className : MDC_CLASS_NAMES) {
+                Class<?> mdcClass;
+                try {
+                    mdcClass = Class.forName(className, false, loader);
+                } catch (ClassNotFoundException e) {
+                    continue;
+                } catch (LinkageError e) {
+                    logger.debug(e.getMessage(), e);
+                    continue;
+                }
+                Method putMethod = getPutMethod(mdcClass);
+                Method removeMethod = getMethod(mdcClass, "remove", String.class);
+                if (putMethod != null && removeMethod != null) {
+                    bindings.add(new MdcBinding(putMethod, removeMethod));
+                }
+            }
+            return bindings.toArray(new MdcBinding[bindings.size()]);
+        }
+
+        private static @Nullable Method getPutMethod(Class<?> mdcClass) {
+            Method putMethod = getMethod(mdcClass, "put", String.class, String.class);
+            if (putMethod == null) {
+                // log4j 1.x MDC.put(String, Object)
+                putMethod = getMethod(mdcClass, "put", String.class, Object.class);
+            }
+            return putMethod;
+        }
+
+        private static @Nullable Method getMethod(Class<?> clazz, String name,
+                Class<?>... parameterTypes) {
+            try {
+                return clazz.getMethod(name, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    }
+}
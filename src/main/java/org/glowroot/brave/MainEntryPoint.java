@@ -17,18 +17,38 @@ package org.glowroot.brave;
 
 import java.io.File;
 import java.lang.instrument.Instrumentation;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import brave.Tracing;
-import brave.propagation.ThreadLocalCurrentTraceContext;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
-import zipkin2.reporter.Reporter;
+import org.slf4j.LoggerFactory;
 
+import org.glowroot.brave.BackgroundTasks.Service;
+import org.glowroot.brave.TracingFactory.ManagedTracing;
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.metrics.RedMetricsExporter;
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.brave.profiler.StackProfiler;
+import org.glowroot.brave.reaper.AsyncSpanReaper;
+import org.glowroot.brave.relay.SpanRelay;
+import org.glowroot.brave.watchdog.StuckTransactionWatchdog;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.init.EngineModule;
 import org.glowroot.xyzzy.engine.init.MainEntryPointUtil;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 public class MainEntryPoint {
 
+    // non-null once the agent has started (either at jvm startup or by attaching at runtime)
+    private static volatile @Nullable Retransformer retransformer;
+    private static volatile @Nullable BackgroundTasks backgroundTasks;
+
     private MainEntryPoint() {}
 
     public static void premain(Instrumentation instrumentation, File agentJarFile) {
@@ -52,22 +72,202 @@ public class MainEntryPoint {
         }
     }
 
+    // agentArgs is "start" (the default), "stop" (spans are no longer started and the background
+    // tasks are suspended, but the bytecode stays instrumented so that tracing can be quickly
+    // started again), or "stop,restore" (which also removes the instrumentation from the bytecode)
+    public static synchronized void agentmain(Instrumentation instrumentation, File agentJarFile,
+            @Nullable String agentArgs) {
+        String command = agentArgs == null ? "" : agentArgs.trim();
+        Retransformer retransformer = MainEntryPoint.retransformer;
+        if (retransformer == null) {
+            if (command.startsWith("stop")) {
+                System.err.println("Agent is not running");
+                return;
+            }
+            premain(instrumentation, agentJarFile);
+            retransformer = MainEntryPoint.retransformer;
+            if (retransformer != null) {
+                // classes that were loaded before the agent was attached
+                retransformer.retransformLoadedClasses();
+            }
+            return;
+        }
+        Logger logger = LoggerFactory.getLogger(MainEntryPoint.class);
+        BackgroundTasks backgroundTasks = MainEntryPoint.backgroundTasks;
+        if (command.isEmpty() || command.equals("start")) {
+            retransformer.restoreTransformers();
+            if (backgroundTasks != null) {
+                backgroundTasks.resume();
+            }
+            AgentSwitch.setEnabled(true);
+            logger.info("tracing started");
+        } else if (command.equals("stop")) {
+            AgentSwitch.setEnabled(false);
+            if (backgroundTasks != null) {
+                backgroundTasks.suspend();
+            }
+            logger.info("tracing stopped");
+        } else if (command.equals("stop,restore")) {
+            AgentSwitch.setEnabled(false);
+            if (backgroundTasks != null) {
+                backgroundTasks.suspend();
+            }
+            retransformer.removeTransformers();
+            logger.info("tracing stopped and original bytecode restored");
+        } else {
+            logger.warn("unexpected agent argument: {}", command);
+        }
+    }
+
     private static void start(Instrumentation instrumentation, File agentJarFile) throws Exception {
 
         // FIXME simple way to avoid conflict when multiple java processes being monitored
         File tmpDir = new File(agentJarFile.getParentFile(), "tmp");
 
-        Tracing tracing = Tracing.newBuilder()
-                .currentTraceContext(ThreadLocalCurrentTraceContext.create())
-                .localServiceName("my-service-name")
-                .spanReporter(Reporter.CONSOLE)
-                .build();
+        AgentConfig config = AgentConfig.fromSystemProperties();
+
+        final ScheduledExecutorService backgroundExecutor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Brave-Agent-Background")
+                        .build());
+        BackgroundTasks backgroundTasks = new BackgroundTasks(backgroundExecutor);
 
         ThreadContextThreadLocal threadContextThreadLocal = new ThreadContextThreadLocal();
 
-        AgentImpl agent = new AgentImpl(tracing, threadContextThreadLocal);
+        TracingFactory tracingFactory =
+                new TracingFactory(config, threadContextThreadLocal, backgroundTasks);
+        ManagedTracing managedTracing = tracingFactory.create(config.getServiceName());
+        Tracing tracing = managedTracing.getTracing();
+
+        ApplicationTracings applicationTracings = null;
+        if (config.isPerApplicationTracing()) {
+            applicationTracings = new ApplicationTracings(tracing, tracingFactory,
+                    config.getApplicationServiceNames());
+        }
+
+        MessageBatcher messageBatcher = null;
+        if (!config.getBatchTransactionTypes().isEmpty()) {
+            messageBatcher = new MessageBatcher(config.getBatchTransactionTypes(),
+                    config.getBatchMaxMessages(), config.getBatchMaxIdleMillis(),
+                    config.getBatchMaxDurationMillis(), config.getBatchMaxLinks());
+            // not suspended while tracing is stopped, since it only finishes batches that are
+            // already open (the same as other transactions that are in progress)
+            backgroundExecutor.scheduleWithFixedDelay(messageBatcher,
+                    config.getBatchMaxIdleMillis(), config.getBatchMaxIdleMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        RedMetrics redMetrics = null;
+        if (config.isMetricsEnabled()) {
+            redMetrics = new RedMetrics(config.getMetricsMaxNamesPerKind(),
+                    config.getMetricsTopQueries());
+            long intervalMillis = SECONDS.toMillis(config.getMetricsIntervalSeconds());
+            final RedMetricsExporter exporter =
+                    new RedMetricsExporter(redMetrics, intervalMillis, config.isMetricsLog());
+            // only the default tracing's, per-application tracings log their decisions
+            exporter.setOverheadBudgetController(managedTracing.getController());
+            backgroundTasks.schedule(exporter, intervalMillis, TimeUnit.MILLISECONDS);
+            final int port = config.getMetricsPrometheusPort();
+            if (port != 0) {
+                backgroundTasks.add(new Service() {
+                    // started from the (daemon) background thread so that the http server's
+                    // dispatcher thread is also a daemon thread, and stopped from there too so
+                    // that it is never stopped before it is started
+                    @Override
+                    public void start() {
+                        backgroundExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                exporter.startPrometheusEndpoint(port);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void stop() {
+                        backgroundExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                exporter.stopPrometheusEndpoint();
+                            }
+                        });
+                    }
+                });
+            }
+        }
+
+        PauseDetector pauseDetector = null;
+        if (config.isPauseDetection()) {
+            final PauseDetector detector = new PauseDetector(64,
+                    MILLISECONDS.toNanos(config.getPauseJitterIntervalMillis()),
+                    MILLISECONDS.toNanos(config.getPauseMinMillis()));
+            backgroundTasks.add(new Service() {
+                @Override
+                public void start() {
+                    detector.start();
+                }
+
+                @Override
+                public void stop() {
+                    detector.stop();
+                }
+            });
+            pauseDetector = detector;
+        }
+
+        StackProfiler stackProfiler = null;
+        if (config.getProfilerIntervalMillis() > 0) {
+            stackProfiler = new StackProfiler(
+                    MILLISECONDS.toNanos(config.getProfilerIntervalMillis()),
+                    MILLISECONDS.toNanos(config.getProfilerThresholdMillis()),
+                    config.getProfilerMaxThreads(), config.getProfilerMaxOverheadPercent());
+            backgroundTasks.schedule(stackProfiler, config.getProfilerIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        StuckTransactionWatchdog watchdog = null;
+        if (config.getWatchdogThresholdMillis() > 0) {
+            watchdog = new StuckTransactionWatchdog(
+                    MILLISECONDS.toNanos(config.getWatchdogThresholdMillis()),
+                    config.isWatchdogCaptureStack());
+            backgroundTasks.schedule(watchdog, config.getWatchdogIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        AsyncSpanReaper reaper = null;
+        if (config.getReaperMaxAgeMillis() > 0) {
+            reaper = new AsyncSpanReaper(MILLISECONDS.toNanos(config.getReaperMaxAgeMillis()),
+                    config.getReaperMaxPending(), redMetrics);
+            backgroundTasks.schedule(reaper, config.getReaperIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        if (config.getRelayDirectory() != null && config.isRelayRole()) {
+            // ships the spans of the other agent jvms on this host
+            SpanRelay relay = RelayMain.createRelay(config);
+            if (relay != null) {
+                backgroundTasks.schedule(RelayMain.createExecutor(true), relay,
+                        config.getRelayIntervalMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        AgentImpl agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .messageBatcher(messageBatcher)
+                .applicationTracings(applicationTracings)
+                .redMetrics(redMetrics)
+                .pauseDetector(pauseDetector)
+                .stackProfiler(stackProfiler)
+                .watchdog(watchdog)
+                .reaper(reaper)
+                .threadUsage(config.isThreadUsage())
+                .spanRecycling(config.isSpanRecycling())
+                .build();
 
-        EngineModule.createWithSomeDefaults(instrumentation, tmpDir, threadContextThreadLocal,
-                agent, agentJarFile);
+        Retransformer retransformer = new Retransformer(instrumentation);
+        EngineModule.createWithSomeDefaults(retransformer.getRecordingInstrumentation(), tmpDir,
+                threadContextThreadLocal, agent, agentJarFile);
+        MainEntryPoint.retransformer = retransformer;
+        MainEntryPoint.backgroundTasks = backgroundTasks;
     }
 }
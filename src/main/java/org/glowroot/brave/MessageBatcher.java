@@ -0,0 +1,325 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import brave.Clock;
+import brave.Span.Kind;
+import brave.Tracing;
+import brave.propagation.B3SingleFormat;
+import brave.propagation.CurrentTraceContext.Scope;
+import brave.propagation.TraceContext;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.brave.reaper.AsyncSpanReaper;
+import org.glowroot.brave.span.IncomingSpanImpl;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.Timer;
+
+// batch consumption mode for messaging transaction types (e.g. kafka and jms consumers)
+//
+// the instrumentation starts one incoming span per consumed message, which in batch mode is
+// coalesced with the other messages consumed back-to-back on the same thread into a single root
+// span (bounded by message count, idle gap and total duration)
+//
+// per-message upstream trace contexts are only extracted for a small reservoir sample of messages
+// in sampled batches, and recorded compactly as b3 references in a tag on the batch span
+class MessageBatcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageBatcher.class);
+
+    private final Set<String> transactionTypes;
+    private final int maxMessages;
+    private final long maxIdleNanos;
+    private final long maxDurationNanos;
+    private final int maxLinks;
+
+    private final ThreadLocal<MessageBatch> currentBatch = new ThreadLocal<MessageBatch>();
+
+    // batches are also tracked here so that the last batch on a thread is finished even if no
+    // further messages arrive on that thread
+    private final Set<MessageBatch> openBatches =
+            Collections.newSetFromMap(new ConcurrentHashMap<MessageBatch, Boolean>());
+
+    MessageBatcher(Set<String> transactionTypes, int maxMessages, long maxIdleMillis,
+            long maxDurationMillis, int maxLinks) {
+        this.transactionTypes = transactionTypes;
+        this.maxMessages = maxMessages;
+        maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(maxIdleMillis);
+        maxDurationNanos = TimeUnit.MILLISECONDS.toNanos(maxDurationMillis);
+        this.maxLinks = maxLinks;
+    }
+
+    boolean isBatched(String transactionType) {
+        return transactionTypes.contains(transactionType);
+    }
+
+    <C> Span startMessage(Tracing tracing, ThreadContextThreadLocal threadContextThreadLocal,
+            String transactionName, Getter<C> getter, C carrier, MessageSupplier messageSupplier,
+            ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
+            int rootSuppressionKeyId, @Nullable RedMetrics redMetrics,
+            @Nullable PauseDetector pauseDetector, @Nullable AsyncSpanReaper reaper,
+            boolean spanRecycling) {
+        long startTick = System.nanoTime();
+        MessageBatch batch = currentBatch.get();
+        if (batch == null || batch.tracing != tracing || !batch.startMessage(startTick)) {
+            if (batch != null) {
+                batch.finish();
+                openBatches.remove(batch);
+            }
+            batch = new MessageBatch(tracing, transactionName, messageSupplier,
+                    threadContextHolder, startTick, maxLinks, redMetrics, pauseDetector, reaper);
+            currentBatch.set(batch);
+            openBatches.add(batch);
+        }
+        batch.maybeRecordUpstream(getter, carrier);
+        ThreadContextImpl threadContext = new ThreadContextImpl(tracing,
+                threadContextThreadLocal, batch.incomingSpan, rootNestingGroupId,
+                rootSuppressionKeyId, null, redMetrics, pauseDetector, spanRecycling);
+        threadContextHolder.set(threadContext);
+        Scope scope = tracing.currentTraceContext().newScope(batch.span.context());
+        return new MessageSpanImpl(batch, threadContextHolder, scope);
+    }
+
+    // finishes batches that have been idle longer than the max idle gap
+    @Override
+    public void run() {
+        try {
+            long currTick = System.nanoTime();
+            for (MessageBatch batch : openBatches) {
+                if (batch.finishIfIdle(currTick)) {
+                    openBatches.remove(batch);
+                }
+            }
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private class MessageBatch {
+
+        private final Tracing tracing;
+        private final brave.Span span;
+        private final IncomingSpanImpl incomingSpan;
+        private final Clock clock;
+        private final long startTick;
+
+        // only accessed by the consuming thread
+        private final @Nullable String[] links;
+        private int linkRandom;
+
+        // the fields below are guarded by this, since the batch can be finished by either the
+        // consuming thread or the idle flusher
+        private int messageCount;
+        private int errorCount;
+        private boolean inMessage;
+        private long lastEndTick;
+        private long lastEndMicros;
+        private boolean finished;
+
+        private MessageBatch(Tracing tracing, String transactionName,
+                MessageSupplier messageSupplier,
+                ThreadContextThreadLocal.Holder threadContextHolder, long startTick,
+                int maxLinks, @Nullable RedMetrics redMetrics,
+                @Nullable PauseDetector pauseDetector, @Nullable AsyncSpanReaper reaper) {
+            this.tracing = tracing;
+            span = tracing.tracer().newTrace()
+                    .name(transactionName)
+                    .kind(Kind.CONSUMER)
+                    .start();
+            incomingSpan = new IncomingSpanImpl(span, false, transactionName, messageSupplier,
+                    threadContextHolder, null, redMetrics, pauseDetector, null, reaper, false);
+            clock = tracing.clock(span.context());
+            this.startTick = startTick;
+            links = new String[span.isNoop() ? 0 : maxLinks];
+            // any non-zero seed works for xorshift
+            linkRandom = (int) span.context().spanId() | 1;
+            inMessage = true;
+            messageCount = 1;
+        }
+
+        // returns false if this batch cannot take any more messages
+        private synchronized boolean startMessage(long currTick) {
+            if (finished || messageCount >= maxMessages || currTick - lastEndTick > maxIdleNanos
+                    || currTick - startTick > maxDurationNanos) {
+                return false;
+            }
+            inMessage = true;
+            messageCount++;
+            return true;
+        }
+
+        // reservoir sampling (algorithm R), which only extracts the upstream context for messages
+        // that will actually be kept
+        private <C> void maybeRecordUpstream(Getter<C> getter, C carrier) {
+            if (links.length == 0) {
+                return;
+            }
+            int messageIndex = getMessageCount() - 1;
+            int slot = messageIndex < links.length ? messageIndex : nextRandom(messageIndex + 1);
+            if (slot >= links.length) {
+                return;
+            }
+            TraceContext upstream = AgentImpl.extract(getter, carrier).context();
+            if (upstream != null) {
+                links[slot] = B3SingleFormat.writeB3SingleFormatWithoutParentId(upstream);
+            }
+        }
+
+        private synchronized int getMessageCount() {
+            return messageCount;
+        }
+
+        private synchronized void endMessage(@Nullable Throwable t, boolean error) {
+            inMessage = false;
+            lastEndTick = System.nanoTime();
+            lastEndMicros = clock.currentTimeMicroseconds();
+            if (error) {
+                if (t != null) {
+                    // only the first one is kept
+                    incomingSpan.setError(t);
+                }
+                errorCount++;
+            }
+        }
+
+        private synchronized boolean finishIfIdle(long currTick) {
+            if (finished || inMessage || currTick - lastEndTick <= maxIdleNanos) {
+                return false;
+            }
+            finish();
+            return true;
+        }
+
+        private synchronized void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            span.tag("messaging.batch.size", Integer.toString(messageCount));
+            if (errorCount > 0) {
+                span.tag("messaging.batch.errors", Integer.toString(errorCount));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String link : links) {
+                if (link != null) {
+                    if (sb.length() > 0) {
+                        sb.append(' ');
+                    }
+                    sb.append(link);
+                }
+            }
+            if (sb.length() > 0) {
+                span.tag("messaging.batch.links", sb.toString());
+            }
+            // finished through the incoming span so that the RED metrics, pause tags and reaper
+            // all see the batch like any other transaction
+            incomingSpan.endAt(lastEndTick, lastEndMicros, errorCount > 0);
+        }
+
+        // xorshift, so the consuming thread doesn't contend on a shared Random
+        private int nextRandom(int bound) {
+            int x = linkRandom;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            linkRandom = x;
+            return (x & Integer.MAX_VALUE) % bound;
+        }
+    }
+
+    private static class MessageSpanImpl implements Span {
+
+        private final MessageBatch batch;
+        private final ThreadContextThreadLocal.Holder threadContextHolder;
+        private final Scope scope;
+
+        private MessageSpanImpl(MessageBatch batch,
+                ThreadContextThreadLocal.Holder threadContextHolder, Scope scope) {
+            this.batch = batch;
+            this.threadContextHolder = threadContextHolder;
+            this.scope = scope;
+        }
+
+        @Override
+        public void end() {
+            endInternal(null, false);
+        }
+
+        @Override
+        public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
+            endInternal(null, false);
+        }
+
+        @Override
+        public void endWithError(Throwable t) {
+            endInternal(t, true);
+        }
+
+        @Override
+        public void endWithError(@Nullable String message) {
+            endInternal(null, true);
+        }
+
+        @Override
+        public void endWithError(@Nullable String message, Throwable t) {
+            endInternal(t, true);
+        }
+
+        @Override
+        public void endWithInfo(Throwable t) {
+            endInternal(null, false);
+        }
+
+        @Override
+        public Timer extend() {
+            throw new UnsupportedOperationException(
+                    "extend() shouldn't be called on incoming span");
+        }
+
+        @Override
+        public Object getMessageSupplier() {
+            return batch.incomingSpan.getMessageSupplier();
+        }
+
+        @Override
+        @Deprecated
+        public <R> void propagateToResponse(R response, Setter<R> setter) {}
+
+        @Override
+        @Deprecated
+        public <R> void extractFromResponse(R response, Getter<R> getter) {}
+
+        private void endInternal(@Nullable Throwable t, boolean error) {
+            scope.close();
+            threadContextHolder.set(null);
+            batch.endMessage(t, error);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Locale;
+
+import brave.Span;
+import brave.Span.Kind;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// models outgoing spans as client spans, parsing the http method and remote host/port out of the
+// outgoing span text (e.g. "GET http://example.com:8080/owners/1?x=y")
+//
+// the span is named after the http method instead of the full url (which is recorded in a tag
+// instead), since span names need to be low cardinality for the collector
+//
+// any user info (e.g. "user:password@") is stripped from the url before it is recorded, so that
+// credentials don't end up in the collector
+//
+// the parsed endpoint is cached by url prefix (method, scheme, host and port), since applications
+// typically make many calls to the same small set of downstream services
+class OutgoingEndpoints {
+
+    private static final int MAX_CACHED_ENDPOINTS = 1000;
+
+    private static final Cache<String, Endpoint> endpoints = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_ENDPOINTS)
+            .build();
+
+    private OutgoingEndpoints() {}
+
+    // returns the normalized target (e.g. "GET example.com:8080") that is used for RED metrics
+    static String customize(Span span, String type, String text) {
+        span.kind(Kind.CLIENT);
+        int schemeIndex = text.indexOf("://");
+        if (schemeIndex == -1) {
+            // not a url (e.g. a redis command), so there is no host to parse
+            span.name(text);
+            span.remoteServiceName(type.toLowerCase(Locale.ENGLISH));
+            return type;
+        }
+        int hostIndex = schemeIndex + 3;
+        int pathIndex = indexOfAny(text, "/?#", hostIndex);
+        String prefix = text.substring(0, pathIndex);
+        Endpoint endpoint = endpoints.getIfPresent(prefix);
+        if (endpoint == null) {
+            endpoint = parse(prefix, schemeIndex);
+            endpoints.put(prefix, endpoint);
+        }
+        span.name(endpoint.method == null ? type : endpoint.method);
+        if (endpoint.method != null) {
+            span.tag("http.method", endpoint.method);
+        }
+        int queryIndex = indexOfAny(text, "?#", pathIndex);
+        span.tag("http.path",
+                pathIndex == queryIndex ? "/" : text.substring(pathIndex, queryIndex));
+        span.tag("http.url", endpoint.url + text.substring(pathIndex));
+        if (endpoint.host != null) {
+            span.remoteServiceName(endpoint.host);
+            span.remoteIpAndPort(endpoint.host, endpoint.port);
+        }
+        return endpoint.target;
+    }
+
+    private static Endpoint parse(String prefix, int schemeIndex) {
+        // the method is the word immediately preceding the url
+        String method = null;
+        int urlIndex = prefix.lastIndexOf(' ', schemeIndex) + 1;
+        if (urlIndex > 1) {
+            int methodIndex = prefix.lastIndexOf(' ', urlIndex - 2) + 1;
+            method = prefix.substring(methodIndex, urlIndex - 1).toUpperCase(Locale.ENGLISH);
+        }
+        String scheme = prefix.substring(urlIndex, schemeIndex).toLowerCase(Locale.ENGLISH);
+        String authority = prefix.substring(schemeIndex + 3);
+        int userInfoIndex = authority.lastIndexOf('@');
+        if (userInfoIndex != -1) {
+            authority = authority.substring(userInfoIndex + 1);
+        }
+        String url = prefix.substring(urlIndex, schemeIndex + 3) + authority;
+        String host;
+        int port = -1;
+        int portIndex = authority.lastIndexOf(':');
+        if (portIndex != -1 && portIndex > authority.lastIndexOf(']')) {
+            host = authority.substring(0, portIndex);
+            port = parsePort(authority.substring(portIndex + 1));
+        } else {
+            host = authority;
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            // ipv6 literal
+            host = host.substring(1, host.length() - 1);
+        }
+        if (port == -1) {
+            port = scheme.equals("https") ? 443 : scheme.equals("http") ? 80 : 0;
+        }
+        StringBuilder target = new StringBuilder();
+        if (method != null) {
+            target.append(method).append(' ');
+        }
+        target.append(host).append(':').append(port);
+        return new Endpoint(method, url, host.isEmpty() ? null : host, port, target.toString());
+    }
+
+    private static int parsePort(String port) {
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int indexOfAny(String text, String chars, int fromIndex) {
+        for (int i = fromIndex; i < text.length(); i++) {
+            if (chars.indexOf(text.charAt(i)) != -1) {
+                return i;
+            }
+        }
+        return text.length();
+    }
+
+    private static class Endpoint {
+
+        private final @Nullable String method;
+        // the url up to the path, without any user info
+        private final String url;
+        private final @Nullable String host;
+        private final int port;
+        private final String target;
+
+        private Endpoint(@Nullable String method, String url, @Nullable String host, int port,
+                String target) {
+            this.method = method;
+            this.url = url;
+            this.host = host;
+            this.port = port;
+            this.target = target;
+        }
+    }
+}
@@ -22,7 +22,7 @@ import java.lang.reflect.Method;
 import java.security.CodeSource;
 import java.util.jar.JarFile;
 
-// this class is registered as the Premain-Class in the MANIFEST.MF of the agent jar
+// this class is registered as the Premain-Class and Agent-Class in the MANIFEST.MF of the agent jar
 //
 // this class should have minimal dependencies since it will live in the system class loader while
 // the rest of the agent will live in the bootstrap class loader
@@ -36,7 +36,7 @@ public class Premain {
             CodeSource codeSource = Premain.class.getProtectionDomain().getCodeSource();
             File agentJarFile = getAgentJarFile(codeSource);
             instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(agentJarFile));
-            Class<?> mainEntryPointClass = Class.forName("org.glowroot.zipkin.MainEntryPoint", true,
+            Class<?> mainEntryPointClass = Class.forName("org.glowroot.brave.MainEntryPoint", true,
                     Premain.class.getClassLoader());
             Method premainMethod =
                     mainEntryPointClass.getMethod("premain", Instrumentation.class, File.class);
@@ -48,6 +48,27 @@ public class Premain {
         }
     }
 
+    // called when the agent is attached to a running jvm (this can happen more than once, e.g. to
+    // stop and then start tracing again, see MainEntryPoint.agentmain())
+    public static void agentmain(String agentArgs, Instrumentation instrumentation) {
+        try {
+            CodeSource codeSource = Premain.class.getProtectionDomain().getCodeSource();
+            File agentJarFile = getAgentJarFile(codeSource);
+            if (!isOnBootstrapClassPath("org.glowroot.brave.MainEntryPoint")) {
+                instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(agentJarFile));
+            }
+            Class<?> mainEntryPointClass = Class.forName("org.glowroot.brave.MainEntryPoint", true,
+                    Premain.class.getClassLoader());
+            Method agentmainMethod = mainEntryPointClass.getMethod("agentmain",
+                    Instrumentation.class, File.class, String.class);
+            agentmainMethod.invoke(null, instrumentation, agentJarFile, agentArgs);
+        } catch (Throwable t) {
+            // log error but don't re-throw which would fail the attach in the monitored jvm
+            System.err.println("Glowroot failed to attach: " + t.getMessage());
+            t.printStackTrace();
+        }
+    }
+
     static File getAgentJarFile(CodeSource codeSource) throws Exception {
         if (codeSource == null) {
             throw new IOException("Could not determine glowroot jar location");
@@ -58,4 +79,13 @@ public class Premain {
         }
         throw new IOException("Could not determine glowroot jar location");
     }
+
+    private static boolean isOnBootstrapClassPath(String className) {
+        try {
+            Class.forName(className, false, null);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import brave.propagation.TraceContext;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Span;
+import zipkin2.reporter.InMemoryReporterMetrics;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.brave.span.SpanFinisher;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+
+// routes spans between two reporter queues (lanes), so that when reporting falls behind and the
+// queues fill up, the spans that are dropped are routine spans rather than the spans of error and
+// slow transactions
+//
+// the priority lane has its own reserved queue capacity (and its own flush thread, which flushes
+// more often), so it only drops spans when the error and slow spans alone overflow it
+//
+// the lane is decided per transaction, since whether a transaction failed or became slow is only
+// known when its root span ends, after its child spans have ended (possibly on other threads): the
+// spans of a transaction are held until its root span is finished (see SpanFinisher)
+//
+// transactions are keyed by the span id of their root span (the local root), not by trace id, since
+// concurrent transactions can join the same upstream trace (e.g. fan-out from an upstream service),
+// and each has its own lane
+//
+// a span's local root is the root of the thread context of the thread that finishes it, as long
+// as that thread context is in the same trace, otherwise (e.g. an async span ending on a thread
+// outside of its transaction) it is the span's parent, which is the local root for the spans that
+// are started directly in a transaction
+//
+// the root span and the spans that were held for it go to the priority lane when the root span
+// has an error, is at least as long as the slow threshold, or exceeded a slow threshold set by
+// instrumentation (see IncomingSpanImpl), otherwise each held span is routed on its own (e.g. a
+// failed query still goes to the priority lane)
+//
+// spans that end after their transaction (e.g. async spans) follow the transaction's lane, and
+// spans whose transaction never ends (e.g. spans started directly through brave apis outside of
+// any transaction) are routed on their own when run periodically, at most two runs later
+//
+// when run periodically, this also logs the number of spans dropped from each lane since the last
+// run
+class PriorityLaneReporter implements Reporter<Span>, Closeable, Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PriorityLaneReporter.class);
+
+    // the lanes of recently ended transactions by local root span id, so that spans which end after
+    // their transaction's root span follow it
+    private static final int MAX_ENDED_TRANSACTIONS = 10000;
+
+    private final Reporter<Span> priorityReporter;
+    private final Reporter<Span> routineReporter;
+
+    private final ThreadContextThreadLocal threadContextThreadLocal;
+
+    // these are null when the lanes don't track metrics (e.g. when logging to the console)
+    private final @Nullable InMemoryReporterMetrics priorityMetrics;
+    private final @Nullable InMemoryReporterMetrics routineMetrics;
+
+    // 0 means spans are only routed to the priority lane based on errors
+    private final long slowThresholdMicros;
+
+    // spans beyond this are routed on their own instead of being held for their transaction
+    private final int maxHeldSpans;
+
+    private final ConcurrentMap<String, Transaction> transactions =
+            new ConcurrentHashMap<String, Transaction>();
+    private final AtomicInteger heldSpans = new AtomicInteger();
+
+    private final Cache<String, Boolean> endedTransactions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENDED_TRANSACTIONS)
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            .build();
+
+    // only accessed by the thread that runs this periodically
+    private long lastPriorityDropped;
+    private long lastRoutineDropped;
+
+    PriorityLaneReporter(Reporter<Span> priorityReporter,
+            @Nullable InMemoryReporterMetrics priorityMetrics, Reporter<Span> routineReporter,
+            @Nullable InMemoryReporterMetrics routineMetrics,
+            ThreadContextThreadLocal threadContextThreadLocal, long slowThresholdMicros,
+            int maxHeldSpans) {
+        this.priorityReporter = priorityReporter;
+        this.priorityMetrics = priorityMetrics;
+        this.routineReporter = routineReporter;
+        this.routineMetrics = routineMetrics;
+        this.threadContextThreadLocal = threadContextThreadLocal;
+        this.slowThresholdMicros = slowThresholdMicros;
+        this.maxHeldSpans = maxHeldSpans;
+    }
+
+    @Override
+    public void report(Span span) {
+        if (SpanFinisher.isFinishingRoot()) {
+            String localRootId = span.id();
+            boolean priority = isPriority(span);
+            // recorded before the held spans are routed, see Transaction.add()
+            endedTransactions.put(localRootId, priority);
+            Transaction transaction = transactions.remove(localRootId);
+            if (transaction == null) {
+                route(span, priority);
+            } else {
+                List<Span> spans = end(transaction);
+                spans.add(span);
+                route(spans, priority);
+            }
+            return;
+        }
+        String localRootId = getLocalRootId(span);
+        Boolean priority = endedTransactions.getIfPresent(localRootId);
+        if (priority != null) {
+            route(span, priority || isPriority(span));
+        } else if (SpanFinisher.isFinishingDetached() || !hold(span, localRootId)) {
+            route(span, isPriority(span));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            routeExpiredTransactions();
+            logDropped();
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    long getPriorityDropped() {
+        return priorityMetrics == null ? 0 : priorityMetrics.spansDropped();
+    }
+
+    long getRoutineDropped() {
+        return routineMetrics == null ? 0 : routineMetrics.spansDropped();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Map.Entry<String, Transaction> entry : transactions.entrySet()) {
+            routeRemaining(entry.getKey(), entry.getValue());
+        }
+        // the priority lane is closed first, so that its spans are flushed first
+        close(priorityReporter);
+        close(routineReporter);
+    }
+
+    // returns false if the span was not held (and so still needs to be routed)
+    private boolean hold(Span span, String localRootId) {
+        if (heldSpans.incrementAndGet() > maxHeldSpans) {
+            heldSpans.decrementAndGet();
+            return false;
+        }
+        Transaction transaction = transactions.get(localRootId);
+        if (transaction == null) {
+            transaction = new Transaction();
+            Transaction existing = transactions.putIfAbsent(localRootId, transaction);
+            if (existing != null) {
+                transaction = existing;
+            }
+        }
+        if (transaction.add(span)) {
+            Boolean priority = endedTransactions.getIfPresent(localRootId);
+            if (priority != null && transactions.remove(localRootId, transaction)) {
+                // the transaction ended after this span checked for it, but before the span was
+                // added
+                route(end(transaction), priority);
+            }
+        } else {
+            // the transaction ended concurrently
+            heldSpans.decrementAndGet();
+            Boolean priority = endedTransactions.getIfPresent(localRootId);
+            route(span, (priority != null && priority) || isPriority(span));
+        }
+        return true;
+    }
+
+    // the first run marks the transactions, and the next run routes the ones that are still held
+    private void routeExpiredTransactions() {
+        for (Map.Entry<String, Transaction> entry : transactions.entrySet()) {
+            Transaction transaction = entry.getValue();
+            if (!transaction.expired) {
+                transaction.expired = true;
+            } else {
+                routeRemaining(entry.getKey(), transaction);
+            }
+        }
+    }
+
+    // the held spans of a transaction that didn't end are routed on their own
+    private void routeRemaining(String localRootId, Transaction transaction) {
+        if (transactions.remove(localRootId, transaction)) {
+            route(end(transaction), false);
+        }
+    }
+
+    private String getLocalRootId(Span span) {
+        ThreadContextPlus threadContext = threadContextThreadLocal.get();
+        if (threadContext instanceof ThreadContextImpl) {
+            TraceContext localRoot = ((ThreadContextImpl) threadContext).getLocalRootContext();
+            if (localRoot.traceIdString().equals(span.traceId())) {
+                return localRoot.spanIdString();
+            }
+        }
+        String parentId = span.parentId();
+        // a root span that isn't the root of a transaction (e.g. started directly through brave
+        // apis outside of any transaction) is keyed by its own id
+        return parentId == null ? span.id() : parentId;
+    }
+
+    private void route(Span span, boolean priority) {
+        if (priority) {
+            priorityReporter.report(span);
+        } else {
+            routineReporter.report(span);
+        }
+    }
+
+    private List<Span> end(Transaction transaction) {
+        List<Span> spans = transaction.end();
+        heldSpans.addAndGet(-spans.size());
+        return spans;
+    }
+
+    private void route(List<Span> spans, boolean priority) {
+        List<Span> routineSpans = Lists.newArrayList();
+        for (Span span : spans) {
+            if (priority || isPriority(span)) {
+                priorityReporter.report(span);
+            } else {
+                routineSpans.add(span);
+            }
+        }
+        if (routineReporter instanceof SpanHandoffReporter) {
+            // handed off together, the same as the spans that SpanHandoffReporter holds itself
+            // until their transaction ends
+            ((SpanHandoffReporter) routineReporter).reportBatch(routineSpans);
+        } else {
+            for (Span span : routineSpans) {
+                routineReporter.report(span);
+            }
+        }
+    }
+
+    private void logDropped() {
+        long priorityDropped = getPriorityDropped();
+        long routineDropped = getRoutineDropped();
+        if (priorityDropped > lastPriorityDropped) {
+            logger.warn("dropped {} error and slow spans (and {} routine spans) since the last"
+                    + " check", priorityDropped - lastPriorityDropped,
+                    routineDropped - lastRoutineDropped);
+        } else if (routineDropped > lastRoutineDropped) {
+            logger.info("dropped {} routine spans since the last check",
+                    routineDropped - lastRoutineDropped);
+        }
+        lastPriorityDropped = priorityDropped;
+        lastRoutineDropped = routineDropped;
+    }
+
+    private boolean isPriority(Span span) {
+        if (slowThresholdMicros > 0 && span.durationAsLong() >= slowThresholdMicros) {
+            return true;
+        }
+        return span.tags().containsKey("error") || span.tags().containsKey("slow");
+    }
+
+    private static void close(Reporter<Span> reporter) throws IOException {
+        if (reporter instanceof Closeable) {
+            ((Closeable) reporter).close();
+        }
+    }
+
+    // the spans held for a transaction (in the order that they ended)
+    private static class Transaction {
+
+        // guarded by this
+        private final List<Span> spans = Lists.newArrayList();
+        private boolean ended;
+
+        // only accessed by the thread that runs PriorityLaneReporter periodically
+        private boolean expired;
+
+        // returns false if the transaction has already ended, in which case the span still follows
+        // the transaction's lane, since the lane is recorded before the transaction is ended
+        private synchronized boolean add(Span span) {
+            if (ended) {
+                return false;
+            }
+            spans.add(span);
+            return true;
+        }
+
+        private synchronized List<Span> end() {
+            ended = true;
+            return Lists.newArrayList(spans);
+        }
+    }
+}
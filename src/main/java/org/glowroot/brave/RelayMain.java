@@ -0,0 +1,96 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.reporter.okhttp3.OkHttpSender;
+
+import org.glowroot.brave.relay.SpanRelay;
+
+// runs the span relay (see SpanRelay) as a standalone process, for hosts where none of the agent
+// jvms is configured with the relay role, e.g.
+//
+//   java -Dbrave.relay.directory=/var/run/brave-relay
+//        -Dbrave.zipkin.endpoint=http://zipkin:9411/api/v2/spans -jar brave-agent.jar
+public class RelayMain {
+
+    private static final Logger logger = LoggerFactory.getLogger(RelayMain.class);
+
+    private RelayMain() {}
+
+    public static void main(String[] args) {
+        AgentConfig config = AgentConfig.fromSystemProperties();
+        final SpanRelay relay = createRelay(config);
+        if (relay == null) {
+            System.exit(1);
+            return;
+        }
+        final ScheduledExecutorService executor = createExecutor(false);
+        int intervalMillis = config.getRelayIntervalMillis();
+        executor.scheduleWithFixedDelay(relay, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // waits for a scheduled run in progress, and then drains whatever is left
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(10, TimeUnit.SECONDS);
+                    relay.run();
+                    relay.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        }));
+    }
+
+    // also used by an agent that is configured with the relay role, which runs the relay on its
+    // own schedule (see MainEntryPoint), returns null if the relay is not configured
+    static @Nullable SpanRelay createRelay(AgentConfig config) {
+        String relayDirectory = config.getRelayDirectory();
+        String zipkinEndpoint = config.getZipkinEndpoint();
+        if (relayDirectory == null || zipkinEndpoint == null) {
+            logger.error("the relay requires both brave.relay.directory and"
+                    + " brave.zipkin.endpoint");
+            return null;
+        }
+        File directory = new File(relayDirectory);
+        directory.mkdirs();
+        logger.info("relaying spans from {} to {}", directory, zipkinEndpoint);
+        return new SpanRelay(directory, OkHttpSender.create(zipkinEndpoint));
+    }
+
+    // the relay runs on its own thread, since sending to the collector can block, the thread is a
+    // daemon thread when the relay runs inside an agent jvm
+    static ScheduledExecutorService createExecutor(boolean daemon) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(daemon)
+                .setNameFormat("Brave-Agent-Relay")
+                .build());
+    }
+}
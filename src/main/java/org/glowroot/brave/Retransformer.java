@@ -0,0 +1,276 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// keeps track of the class file transformers that the engine registers, so that when the agent is
+// attached to a running jvm, the classes that were already loaded can be retransformed, and so that
+// on detach the transformers can be removed and the original bytecode restored
+//
+// only the classes that the engine actually instruments are retransformed, since retransforming a
+// class discards its jit compiled code, and attaching usually happens on a jvm that is already
+// misbehaving: on attach (and start) each loaded class is first offered to the engine's
+// transformers, and only retransformed if one of them would change it, and on restore only the
+// classes that the transformers did change are retransformed
+class Retransformer {
+
+    private static final Logger logger = LoggerFactory.getLogger(Retransformer.class);
+
+    private static final int BATCH_SIZE = 100;
+
+    private static final String[] EXCLUDED_PREFIXES = {"org.glowroot.brave.",
+            "org.glowroot.xyzzy.", "java.lang.instrument.", "sun.instrument.", "jdk.internal."};
+
+    private final Instrumentation instrumentation;
+
+    // guarded by this
+    private final List<RecordingTransformer> transformers = Lists.newArrayList();
+    private boolean transformersRemoved;
+
+    // internal names of the classes that the engine's transformers have changed (whether at load
+    // time or when retransformed)
+    private final Set<String> transformedClassNames =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    Retransformer(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    // returns an Instrumentation which records the transformers that are added through it
+    Instrumentation getRecordingInstrumentation() {
+        return (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(),
+                new Class<?>[] {Instrumentation.class}, new RecordingHandler());
+    }
+
+    synchronized void retransformLoadedClasses() {
+        if (!isRetransformSupported()) {
+            return;
+        }
+        List<Class<?>> classes = Lists.newArrayList();
+        int candidates = 0;
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (isRetransformable(clazz)) {
+                candidates++;
+                if (wouldTransform(clazz)) {
+                    classes.add(clazz);
+                }
+            }
+        }
+        retransform(classes);
+        logger.info("retransformed {} of {} loaded classes", classes.size(), candidates);
+    }
+
+    // the original bytecode is restored by retransforming without the engine's transformers
+    synchronized void removeTransformers() {
+        if (transformersRemoved) {
+            return;
+        }
+        for (RecordingTransformer transformer : transformers) {
+            instrumentation.removeTransformer(transformer);
+        }
+        transformersRemoved = true;
+        if (!isRetransformSupported()) {
+            return;
+        }
+        List<Class<?>> classes = Lists.newArrayList();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (transformedClassNames.contains(getInternalName(clazz))
+                    && isRetransformable(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        retransform(classes);
+        transformedClassNames.clear();
+        logger.info("restored {} loaded classes", classes.size());
+    }
+
+    synchronized void restoreTransformers() {
+        if (!transformersRemoved) {
+            return;
+        }
+        for (RecordingTransformer transformer : transformers) {
+            instrumentation.addTransformer(transformer, true);
+        }
+        transformersRemoved = false;
+        retransformLoadedClasses();
+    }
+
+    private boolean isRetransformSupported() {
+        if (instrumentation.isRetransformClassesSupported()) {
+            return true;
+        }
+        logger.warn("retransforming classes is not supported by this jvm, classes that were"
+                + " already loaded when the agent was attached (or started or stopped) will not be"
+                + " changed");
+        return false;
+    }
+
+    private boolean isRetransformable(Class<?> clazz) {
+        if (clazz.isArray() || clazz.isPrimitive() || !instrumentation.isModifiableClass(clazz)) {
+            return false;
+        }
+        String name = clazz.getName();
+        for (String excludedPrefix : EXCLUDED_PREFIXES) {
+            if (name.startsWith(excludedPrefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // offers the class file to the engine's transformers without installing the result, classes
+    // whose class file can't be read (e.g. generated proxies) are never instrumented by the engine
+    private boolean wouldTransform(Class<?> clazz) {
+        ClassLoader loader = clazz.getClassLoader();
+        String internalName = getInternalName(clazz);
+        byte[] classFile = readClassFile(loader, internalName);
+        if (classFile == null) {
+            return false;
+        }
+        ProtectionDomain protectionDomain;
+        try {
+            protectionDomain = clazz.getProtectionDomain();
+        } catch (SecurityException e) {
+            logger.debug(e.getMessage(), e);
+            protectionDomain = null;
+        }
+        for (RecordingTransformer transformer : transformers) {
+            try {
+                if (transformer.delegate.transform(loader, internalName, clazz, protectionDomain,
+                        classFile) != null) {
+                    return true;
+                }
+            } catch (Throwable t) {
+                logger.debug("could not check {}: {}", clazz.getName(), t.getMessage(), t);
+            }
+        }
+        return false;
+    }
+
+    private void retransform(List<Class<?>> classes) {
+        for (List<Class<?>> batch : Lists.partition(classes, BATCH_SIZE)) {
+            retransformBatch(batch);
+        }
+    }
+
+    private void retransformBatch(List<Class<?>> batch) {
+        try {
+            instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+        } catch (Throwable t) {
+            // retry one at a time so that a single failing class doesn't stop the rest of the batch
+            logger.debug(t.getMessage(), t);
+            for (Class<?> clazz : batch) {
+                try {
+                    instrumentation.retransformClasses(clazz);
+                } catch (Throwable u) {
+                    logger.debug("could not retransform {}: {}", clazz.getName(), u.getMessage(),
+                            u);
+                }
+            }
+        }
+    }
+
+    private static String getInternalName(Class<?> clazz) {
+        return clazz.getName().replace('.', '/');
+    }
+
+    @Nullable
+    private static byte[] readClassFile(@Nullable ClassLoader loader, String internalName) {
+        String resourceName = internalName + ".class";
+        InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(resourceName)
+                : loader.getResourceAsStream(resourceName);
+        if (in == null) {
+            return null;
+        }
+        try {
+            try {
+                return ByteStreams.toByteArray(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // records the classes that the engine's transformer changes
+    private class RecordingTransformer implements ClassFileTransformer {
+
+        private final ClassFileTransformer delegate;
+
+        private RecordingTransformer(ClassFileTransformer delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        @Nullable
+        public byte[] transform(@Nullable ClassLoader loader, String className,
+                @Nullable Class<?> classBeingRedefined,
+                @Nullable ProtectionDomain protectionDomain, byte[] classfileBuffer)
+                throws IllegalClassFormatException {
+            byte[] transformed = delegate.transform(loader, className, classBeingRedefined,
+                    protectionDomain, classfileBuffer);
+            if (transformed != null && className != null) {
+                transformedClassNames.add(className);
+            }
+            return transformed;
+        }
+    }
+
+    private class RecordingHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("addTransformer")) {
+                RecordingTransformer transformer =
+                        new RecordingTransformer((ClassFileTransformer) args[0]);
+                synchronized (Retransformer.this) {
+                    transformers.add(transformer);
+                }
+                // always registered as retransform capable, so that the original bytecode can be
+                // restored later
+                instrumentation.addTransformer(transformer, true);
+                return null;
+            }
+            try {
+                return method.invoke(instrumentation, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+
+// hands finished spans off to the delegate reporter in per-thread batches, so that request threads
+// finishing spans concurrently don't all contend on the delegate's queue (e.g. the lock that guards
+// AsyncReporter's queue) for every span
+//
+// each thread buffers its spans until its transaction ends (detected by the thread no longer
+// having a thread context, which IncomingSpanImpl clears before finishing the root span) or until
+// the buffer reaches the max batch size, and then hands the whole batch off with a single
+// non-blocking enqueue
+//
+// when run periodically (from a single thread), this drains the handed off batches into the
+// delegate in bulk, followed by whatever is left in the per-thread buffers (e.g. spans finished
+// on threads that are outside of any transaction)
+class SpanHandoffReporter implements Reporter<Span>, Closeable, Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpanHandoffReporter.class);
+
+    private final Reporter<Span> delegate;
+    private final ThreadContextThreadLocal threadContextThreadLocal;
+    private final int maxBatchSpans;
+    // batches that would exceed this are dropped, since the consumer is not keeping up
+    private final int maxPendingSpans;
+
+    private final Queue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+
+    private final Queue<List<Span>> batches = new ConcurrentLinkedQueue<List<Span>>();
+    private final AtomicInteger pendingSpans = new AtomicInteger();
+    private final AtomicLong droppedSpans = new AtomicLong();
+
+    private final ThreadLocal<Buffer> currentThreadBuffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            Buffer buffer = new Buffer(Thread.currentThread());
+            buffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    // only accessed by the thread that runs this periodically
+    private long lastDroppedSpans;
+
+    // guarded by this, drain() and close() are serialized so that close() doesn't close the
+    // delegate while a periodic drain is still reporting to it (cancelling the periodic task
+    // doesn't wait for a run that is in progress)
+    private boolean closed;
+
+    SpanHandoffReporter(Reporter<Span> delegate, ThreadContextThreadLocal threadContextThreadLocal,
+            int maxBatchSpans, int maxPendingSpans) {
+        this.delegate = delegate;
+        this.threadContextThreadLocal = threadContextThreadLocal;
+        this.maxBatchSpans = maxBatchSpans;
+        this.maxPendingSpans = maxPendingSpans;
+    }
+
+    @Override
+    public void report(Span span) {
+        boolean transactionEnded = threadContextThreadLocal.getHolder().get() == null;
+        List<Span> batch = currentThreadBuffer.get().add(span, maxBatchSpans, transactionEnded);
+        if (batch != null) {
+            handOff(batch);
+        }
+    }
+
+    // hands off spans that the caller has already batched (e.g. the spans of a transaction that
+    // PriorityLaneReporter held until the transaction ended) as a single batch
+    void reportBatch(List<Span> batch) {
+        if (!batch.isEmpty()) {
+            handOff(batch);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            drain();
+            long dropped = droppedSpans.get();
+            if (dropped > lastDroppedSpans) {
+                logger.warn("dropped {} spans since the last check, since the span handoff is not"
+                        + " keeping up", dropped - lastDroppedSpans);
+                lastDroppedSpans = dropped;
+            }
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    long getDroppedSpans() {
+        return droppedSpans.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        drain();
+        closed = true;
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    private void handOff(List<Span> batch) {
+        if (pendingSpans.addAndGet(batch.size()) > maxPendingSpans) {
+            pendingSpans.addAndGet(-batch.size());
+            droppedSpans.addAndGet(batch.size());
+            return;
+        }
+        batches.add(batch);
+    }
+
+    private synchronized void drain() {
+        if (closed) {
+            return;
+        }
+        // handed off batches first, so that each thread's spans are reported in the order that
+        // they finished
+        List<Span> batch;
+        while ((batch = batches.poll()) != null) {
+            reportAll(batch);
+            pendingSpans.addAndGet(-batch.size());
+        }
+        Iterator<Buffer> i = buffers.iterator();
+        while (i.hasNext()) {
+            Buffer buffer = i.next();
+            Thread thread = buffer.threadRef.get();
+            // checked before draining, so that nothing added before the thread terminated is lost
+            boolean terminated = thread == null || !thread.isAlive();
+            List<Span> remaining = buffer.drain();
+            if (remaining != null) {
+                reportAll(remaining);
+            }
+            if (terminated) {
+                i.remove();
+            }
+        }
+    }
+
+    private void reportAll(List<Span> spans) {
+        for (Span span : spans) {
+            delegate.report(span);
+        }
+    }
+
+    // only contended when the consumer drains a thread's buffer while that thread is adding to it
+    private static class Buffer {
+
+        private final WeakReference<Thread> threadRef;
+
+        // guarded by this
+        private @Nullable List<Span> spans;
+
+        private Buffer(Thread thread) {
+            threadRef = new WeakReference<Thread>(thread);
+        }
+
+        // returns the batch to hand off, if any
+        private synchronized @Nullable List<Span> add(Span span, int maxBatchSpans,
+                boolean flush) {
+            if (spans == null) {
+                spans = Lists.newArrayList();
+            }
+            spans.add(span);
+            if (!flush && spans.size() < maxBatchSpans) {
+                return null;
+            }
+            List<Span> batch = spans;
+            spans = null;
+            return batch;
+        }
+
+        private synchronized @Nullable List<Span> drain() {
+            List<Span> batch = spans;
+            spans = null;
+            return batch;
+        }
+    }
+}
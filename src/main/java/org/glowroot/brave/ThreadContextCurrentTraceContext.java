@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+
+// stores the current brave trace context in the xyzzy thread context (when the thread is inside a
+// transaction), so that a single thread local lookup serves both the instrumentation and brave,
+// and so that spans started through ThreadContextImpl don't need any thread local lookup at all
+//
+// outside of a transaction (and for the scope that is opened right before a transaction's thread
+// context is set on the thread) the trace context is stored in a separate thread local, the same
+// as ThreadLocalCurrentTraceContext
+class ThreadContextCurrentTraceContext extends CurrentTraceContext {
+
+    private final ThreadContextThreadLocal threadContextThreadLocal;
+
+    private final ThreadLocal<TraceContext> fallback = new ThreadLocal<TraceContext>();
+
+    private ThreadContextCurrentTraceContext(Builder builder) {
+        super(builder);
+        threadContextThreadLocal = builder.threadContextThreadLocal;
+    }
+
+    static Builder newBuilder(ThreadContextThreadLocal threadContextThreadLocal) {
+        return new Builder(threadContextThreadLocal);
+    }
+
+    @Override
+    public @Nullable TraceContext get() {
+        ThreadContextPlus threadContext = threadContextThreadLocal.get();
+        if (threadContext instanceof ThreadContextImpl) {
+            return ((ThreadContextImpl) threadContext).getTraceContext();
+        }
+        return fallback.get();
+    }
+
+    @Override
+    public Scope newScope(@Nullable TraceContext currentSpan) {
+        ThreadContextPlus threadContext = threadContextThreadLocal.get();
+        if (threadContext instanceof ThreadContextImpl) {
+            return newScope((ThreadContextImpl) threadContext, currentSpan);
+        }
+        TraceContext previous = fallback.get();
+        fallback.set(currentSpan);
+        return decorateScope(currentSpan, new FallbackScope(previous));
+    }
+
+    // used by ThreadContextImpl, which already knows that it is the current thread context
+    Scope newScope(ThreadContextImpl threadContext, @Nullable TraceContext currentSpan) {
+        TraceContext previous = threadContext.getTraceContext();
+        threadContext.setTraceContext(currentSpan);
+        return decorateScope(currentSpan, new ThreadContextScope(threadContext, previous));
+    }
+
+    static class Builder extends CurrentTraceContext.Builder {
+
+        private final ThreadContextThreadLocal threadContextThreadLocal;
+
+        private Builder(ThreadContextThreadLocal threadContextThreadLocal) {
+            this.threadContextThreadLocal = threadContextThreadLocal;
+        }
+
+        @Override
+        public Builder addScopeDecorator(ScopeDecorator scopeDecorator) {
+            super.addScopeDecorator(scopeDecorator);
+            return this;
+        }
+
+        @Override
+        public ThreadContextCurrentTraceContext build() {
+            return new ThreadContextCurrentTraceContext(this);
+        }
+    }
+
+    private static class ThreadContextScope implements Scope {
+
+        private final ThreadContextImpl threadContext;
+        private final @Nullable TraceContext previous;
+
+        private ThreadContextScope(ThreadContextImpl threadContext,
+                @Nullable TraceContext previous) {
+            this.threadContext = threadContext;
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            threadContext.setTraceContext(previous);
+        }
+    }
+
+    private class FallbackScope implements Scope {
+
+        private final @Nullable TraceContext previous;
+
+        private FallbackScope(@Nullable TraceContext previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            fallback.set(previous);
+        }
+    }
+}
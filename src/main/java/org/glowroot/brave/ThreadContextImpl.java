@@ -17,18 +17,26 @@ package org.glowroot.brave;
 
 import java.util.concurrent.TimeUnit;
 
-import brave.ScopedSpan;
 import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.CurrentTraceContext.Scope;
 import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Injector;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.brave.propagation.BinaryPropagation;
+import org.glowroot.brave.propagation.BinarySetter;
 import org.glowroot.brave.span.AsyncOutgoingSpanImpl;
 import org.glowroot.brave.span.AsyncQuerySpanImpl;
 import org.glowroot.brave.span.IncomingSpanImpl;
 import org.glowroot.brave.span.OutgoingSpanImpl;
 import org.glowroot.brave.span.QuerySpanImpl;
+import org.glowroot.brave.span.SpanFinisher;
+import org.glowroot.brave.span.SpanPool;
+import org.glowroot.brave.watchdog.WatchedTransaction;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.impl.NopTransactionService;
@@ -45,7 +53,7 @@ import org.glowroot.xyzzy.instrumentation.api.Span;
 import org.glowroot.xyzzy.instrumentation.api.Timer;
 import org.glowroot.xyzzy.instrumentation.api.TimerName;
 
-public class ThreadContextImpl implements ThreadContextPlus {
+public class ThreadContextImpl implements ThreadContextPlus, WatchedTransaction {
 
     private final Tracing tracing;
 
@@ -58,9 +66,33 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private final @Nullable TwoPartCompletion auxThreadAsyncCompletion;
 
+    private final @Nullable RedMetrics redMetrics;
+    private final @Nullable PauseDetector pauseDetector;
+
+    // non-null when span recycling is enabled, in which case this is the pool of the thread that
+    // this thread context belongs to (thread contexts are always created on their own thread)
+    private final @Nullable SpanPool spanPool;
+
+    // non-null when the current trace context is stored in this thread context (see
+    // ThreadContextCurrentTraceContext), in which case spans are started and scoped directly
+    // against traceContext, without any thread local lookup
+    private final @Nullable ThreadContextCurrentTraceContext unifiedCurrentTraceContext;
+    // only accessed by the thread that this thread context belongs to
+    private @Nullable TraceContext traceContext;
+
+    // the kind and name of the last child span started in scope on this thread, which describe
+    // what a stuck transaction is doing when traceContext is (still) that span (see
+    // reportSnapshot()), written without allocating, and read racily from the watchdog thread,
+    // which is fine since this is only informational
+    private long currentChildSpanId;
+    private @Nullable String currentChildKind;
+    private @Nullable String currentChildName;
+
     public ThreadContextImpl(Tracing tracing, ThreadContextThreadLocal threadContextThreadLocal,
             IncomingSpanImpl incomingSpan, int rootNestingGroupId, int rootSuppressionKeyId,
-            @Nullable TwoPartCompletion auxThreadAsyncCompletion) {
+            @Nullable TwoPartCompletion auxThreadAsyncCompletion,
+            @Nullable RedMetrics redMetrics, @Nullable PauseDetector pauseDetector,
+            boolean spanRecycling) {
 
         this.tracing = tracing;
         this.threadContextThreadLocal = threadContextThreadLocal;
@@ -68,6 +100,18 @@ public class ThreadContextImpl implements ThreadContextPlus {
         currentNestingGroupId = rootNestingGroupId;
         currentSuppressionKeyId = rootSuppressionKeyId;
         this.auxThreadAsyncCompletion = auxThreadAsyncCompletion;
+        this.redMetrics = redMetrics;
+        this.pauseDetector = pauseDetector;
+        spanPool = spanRecycling ? SpanPool.forCurrentThread() : null;
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        if (currentTraceContext instanceof ThreadContextCurrentTraceContext) {
+            unifiedCurrentTraceContext = (ThreadContextCurrentTraceContext) currentTraceContext;
+        } else {
+            unifiedCurrentTraceContext = null;
+        }
+        // the thread context is set on the thread while the incoming span (or for auxiliary
+        // threads, the incoming span's context) is in scope
+        traceContext = incomingSpan.getTraceContext();
     }
 
     @Override
@@ -90,39 +134,74 @@ public class ThreadContextImpl implements ThreadContextPlus {
     @Override
     public QuerySpan startQuerySpan(String queryType, String queryText,
             QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
-        return new QuerySpanImpl(tracing.tracer().startScopedSpan(queryText));
+        if (!AgentSwitch.isEnabled()) {
+            return NopTransactionService.QUERY_SPAN;
+        }
+        brave.Span span = nextSpan()
+                .name(queryText)
+                .tag("db.type", queryType)
+                .start();
+        setCurrentChild(span.context(), RedMetrics.QUERY, queryText);
+        Scope scope = newScope(span.context());
+        if (spanPool != null) {
+            return spanPool.getQuerySpan(span, scope, queryMessageSupplier, queryText, redMetrics,
+                    pauseDetector);
+        }
+        return new QuerySpanImpl(span, scope, queryMessageSupplier, queryText, redMetrics,
+                pauseDetector);
     }
 
     @Override
     public QuerySpan startQuerySpan(String queryType, String queryText, long queryExecutionCount,
             QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
-        return new QuerySpanImpl(tracing.tracer().startScopedSpan(queryText));
+        return startQuerySpan(queryType, queryText, queryMessageSupplier, timerName);
     }
 
     @Override
     public AsyncQuerySpan startAsyncQuerySpan(String queryType, String queryText,
             QueryMessageSupplier queryMessageSupplier, TimerName timerName) {
-        return new AsyncQuerySpanImpl(tracing.tracer().nextSpan()
+        if (!AgentSwitch.isEnabled()) {
+            return NopTransactionService.ASYNC_QUERY_SPAN;
+        }
+        return new AsyncQuerySpanImpl(nextSpan()
                 .name(queryText)
-                .start());
+                .tag("db.type", queryType)
+                .start(), queryMessageSupplier, queryText, redMetrics, pauseDetector,
+                incomingSpan.getReaper());
     }
 
     @Override
     public <C> Span startOutgoingSpan(String type, String text, Setter<C> setter, C carrier,
             MessageSupplier messageSupplier, TimerName timerName) {
-        ScopedSpan scopedSpan = tracing.tracer().startScopedSpan(text);
-        inject(scopedSpan.context(), setter, carrier);
-        return new OutgoingSpanImpl(scopedSpan);
+        if (!AgentSwitch.isEnabled()) {
+            return NopTransactionService.LOCAL_SPAN;
+        }
+        brave.Span span = nextSpan();
+        String target = OutgoingEndpoints.customize(span, type, text);
+        span.start();
+        inject(span.context(), setter, carrier);
+        setCurrentChild(span.context(), RedMetrics.CLIENT, target);
+        Scope scope = newScope(span.context());
+        if (spanPool != null) {
+            return spanPool.getOutgoingSpan(span, scope, messageSupplier, target, redMetrics,
+                    pauseDetector);
+        }
+        return new OutgoingSpanImpl(span, scope, messageSupplier, target, redMetrics,
+                pauseDetector);
     }
 
     @Override
     public <C> AsyncSpan startAsyncOutgoingSpan(String type, String text, Setter<C> setter,
             C carrier, MessageSupplier messageSupplier, TimerName timerName) {
-        brave.Span span = tracing.tracer().nextSpan()
-                .name(text)
-                .start();
+        if (!AgentSwitch.isEnabled()) {
+            return NopTransactionService.ASYNC_SPAN;
+        }
+        brave.Span span = nextSpan();
+        String target = OutgoingEndpoints.customize(span, type, text);
+        span.start();
         inject(span.context(), setter, carrier);
-        return new AsyncOutgoingSpanImpl(span);
+        return new AsyncOutgoingSpanImpl(span, messageSupplier, target, redMetrics,
+                pauseDetector, incomingSpan.getReaper());
     }
 
     @Override
@@ -132,7 +211,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     @Override
     public AuxThreadContext createAuxThreadContext() {
-        return new AuxThreadContextImpl(tracing, threadContextThreadLocal, incomingSpan);
+        return new AuxThreadContextImpl(tracing, threadContextThreadLocal, incomingSpan,
+                redMetrics, pauseDetector, spanPool != null);
     }
 
     @Override
@@ -154,7 +234,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     public void setTransactionType(String transactionType, int priority) {}
 
     @Override
-    public void setTransactionName(String transactionName, int priority) {}
+    public void setTransactionName(String transactionName, int priority) {
+        incomingSpan.setTransactionName(transactionName, priority);
+    }
 
     @Override
     public void setTransactionUser(String user, int priority) {
@@ -165,7 +247,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     public void addTransactionAttribute(String name, String value) {}
 
     @Override
-    public void setTransactionSlowThreshold(long threshold, TimeUnit unit, int priority) {}
+    public void setTransactionSlowThreshold(long threshold, TimeUnit unit, int priority) {
+        incomingSpan.setSlowThreshold(unit.toNanos(threshold), priority);
+    }
 
     @Override
     public void setTransactionError(Throwable t) {
@@ -181,13 +265,19 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     @Override
-    public void addErrorSpan(Throwable t) {}
+    public void addErrorSpan(Throwable t) {
+        addErrorLog(t.toString());
+    }
 
     @Override
-    public void addErrorSpan(String message) {}
+    public void addErrorSpan(String message) {
+        addErrorLog(message);
+    }
 
     @Override
-    public void addErrorSpan(String message, Throwable t) {}
+    public void addErrorSpan(String message, Throwable t) {
+        addErrorLog(message + ": " + t);
+    }
 
     @Override
     public void trackResourceAcquired(Object resource, boolean withLocationStackTrace) {}
@@ -225,7 +315,107 @@ public class ThreadContextImpl implements ThreadContextPlus {
         this.currentSuppressionKeyId = suppressionKeyId;
     }
 
+    @Override
+    public long getStartTick() {
+        return incomingSpan.getStartTick();
+    }
+
+    @Override
+    public long getSlowThresholdNanos() {
+        return incomingSpan.getSlowThresholdNanos();
+    }
+
+    @Override
+    public boolean isEnded() {
+        return incomingSpan.isFinished();
+    }
+
+    // the context of the transaction's root span, which is the same on auxiliary threads
+    TraceContext getLocalRootContext() {
+        return incomingSpan.getTraceContext();
+    }
+
+    // reports a snapshot of the transaction as a child of the (still open) root span, covering the
+    // time since the root span started
+    @Override
+    public void reportSnapshot(long durationNanos, String threadName,
+            @Nullable String threadStack) {
+        TraceContext rootContext = incomingSpan.getTraceContext();
+        long nowMicros = tracing.clock(rootContext).currentTimeMicroseconds();
+        brave.Span snapshot = tracing.tracer().newChild(rootContext)
+                .name("stuck transaction")
+                .tag("stuck.transaction_name", incomingSpan.getTransactionName())
+                .tag("stuck.duration_millis",
+                        Long.toString(TimeUnit.NANOSECONDS.toMillis(durationNanos)))
+                .tag("stuck.thread", threadName);
+        // racy read from the watchdog thread, which is fine since this is only informational
+        TraceContext currentContext = traceContext;
+        if (currentContext != null && currentContext.spanId() != rootContext.spanId()) {
+            snapshot.tag("stuck.current_span_id", currentContext.spanIdString());
+            String currentChildKind = this.currentChildKind;
+            String currentChildName = this.currentChildName;
+            if (currentContext.spanId() == currentChildSpanId && currentChildKind != null
+                    && currentChildName != null) {
+                snapshot.tag("stuck.current_span_kind", currentChildKind);
+                snapshot.tag("stuck.current_span_name", currentChildName);
+            }
+        }
+        if (threadStack != null) {
+            snapshot.tag("stuck.stack", threadStack);
+        }
+        snapshot.start(nowMicros - TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        // reported right away, instead of being held until the transaction ends
+        SpanFinisher.finishDetached(snapshot, nowMicros);
+    }
+
+    @Nullable
+    TraceContext getTraceContext() {
+        return traceContext;
+    }
+
+    void setTraceContext(@Nullable TraceContext traceContext) {
+        this.traceContext = traceContext;
+    }
+
+    private void setCurrentChild(TraceContext context, String kind, String name) {
+        currentChildKind = kind;
+        currentChildName = name;
+        currentChildSpanId = context.spanId();
+    }
+
+    // errors logged by the application are annotated on the root span rather than being separate
+    // spans, see ErrorLogs
+    private void addErrorLog(String message) {
+        if (!AgentSwitch.isEnabled()) {
+            return;
+        }
+        incomingSpan.addErrorLog(message, tracing.clock(incomingSpan.getTraceContext()));
+    }
+
+    private brave.Span nextSpan() {
+        if (unifiedCurrentTraceContext == null) {
+            return tracing.tracer().nextSpan();
+        }
+        TraceContext parent = traceContext;
+        return parent == null ? tracing.tracer().newTrace() : tracing.tracer().newChild(parent);
+    }
+
+    private Scope newScope(TraceContext context) {
+        if (unifiedCurrentTraceContext == null) {
+            return tracing.currentTraceContext().newScope(context);
+        }
+        return unifiedCurrentTraceContext.newScope(this, context);
+    }
+
+    @SuppressWarnings("unchecked")
     private static <C> void inject(TraceContext context, Setter<C> setter, C carrier) {
+        if (setter instanceof BinarySetter) {
+            BinaryPropagation.inject(context, (BinarySetter<C>) setter, carrier);
+            return;
+        }
+        if (BinaryPropagation.inject(context, carrier)) {
+            return;
+        }
         Injector<C> injector = Propagation.B3_STRING.injector(new BraveSetter<C>(setter));
         injector.inject(context, carrier);
     }
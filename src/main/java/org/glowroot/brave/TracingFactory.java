@@ -0,0 +1,270 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.sampler.Sampler;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Span;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.InMemoryReporterMetrics;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
+import zipkin2.reporter.okhttp3.OkHttpSender;
+
+import org.glowroot.brave.BackgroundTasks.Service;
+import org.glowroot.brave.jfr.JfrSpanReporter;
+import org.glowroot.brave.relay.RelayReporter;
+import org.glowroot.brave.sampler.AdaptiveSampler;
+import org.glowroot.brave.sampler.OverheadBudgetController;
+import org.glowroot.brave.sampler.OverheadBudgetController.ReporterQueue;
+import org.glowroot.brave.sampler.SpanCountingReporter;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+
+// creates the agent's default Tracing, and (when per-application tracing is enabled) one Tracing
+// per application, each with its own sampler and its own bounded reporter queue so that one
+// application's span volume cannot starve the reporting of the others
+class TracingFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(TracingFactory.class);
+
+    private final AgentConfig config;
+    private final ThreadContextThreadLocal threadContextThreadLocal;
+    private final @Nullable BackgroundTasks backgroundTasks;
+
+    // shared by all Tracing instances, so that scopes are visible across applications (e.g. when
+    // one application calls directly into another inside the same request)
+    private final CurrentTraceContext currentTraceContext;
+
+    // the connection pool is shared, only the queues are per application
+    private final @Nullable Sender sender;
+
+    // whether spans are also (or only) emitted as java flight recorder events
+    private final boolean jfr;
+    private final boolean jfrOnly;
+
+    TracingFactory(AgentConfig config, ThreadContextThreadLocal threadContextThreadLocal,
+            @Nullable BackgroundTasks backgroundTasks) {
+        this.config = config;
+        this.threadContextThreadLocal = threadContextThreadLocal;
+        this.backgroundTasks = backgroundTasks;
+        ThreadContextCurrentTraceContext.Builder currentTraceContextBuilder =
+                ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal);
+        if (config.isLogCorrelation()) {
+            currentTraceContextBuilder.addScopeDecorator(new LogCorrelationScopeDecorator());
+        }
+        currentTraceContext = currentTraceContextBuilder.build();
+        String reporterJfr = config.getReporterJfr();
+        if (reporterJfr.equals("only") || reporterJfr.equals("alongside")) {
+            jfr = isJfrPresent();
+            if (!jfr) {
+                logger.warn("java flight recorder is not available in this jvm, so spans will not"
+                        + " be emitted as flight recorder events");
+            }
+        } else {
+            if (!reporterJfr.equals("off")) {
+                logger.warn("unexpected reporter.jfr value: {}", reporterJfr);
+            }
+            jfr = false;
+        }
+        jfrOnly = jfr && reporterJfr.equals("only");
+        String zipkinEndpoint = config.getZipkinEndpoint();
+        boolean relayWriter = config.getRelayDirectory() != null && !config.isRelayRole();
+        sender = zipkinEndpoint == null || jfrOnly || relayWriter ? null
+                : OkHttpSender.create(zipkinEndpoint);
+    }
+
+    ManagedTracing create(String serviceName) {
+        // the collector queues (if any), which are watched by the sample rate controller
+        List<ReporterQueue> reporterQueues = Lists.newArrayList();
+        Reporter<Span> reporter;
+        // the periodic tasks of the relay reporter or the priority lanes (which are never both
+        // used, since the lanes are only used with a collector queue), the handoff and the sample
+        // rate controller, which are suspended while tracing is stopped (see BackgroundTasks)
+        //
+        // spans that are handed off while the handoff is suspended are reported once it resumes,
+        // or when the Tracing is closed
+        List<Service> tasks = Lists.newArrayList();
+        if (jfrOnly) {
+            reporter = new JfrSpanReporter(null);
+        } else {
+            reporter = createReporter(reporterQueues);
+            if (reporter instanceof RelayReporter && backgroundTasks != null) {
+                tasks.add(backgroundTasks.schedule((RelayReporter) reporter, 1,
+                        TimeUnit.MINUTES));
+            }
+            int handoffMaxBatchSpans = config.getReporterHandoffMaxBatchSpans();
+            if (handoffMaxBatchSpans > 0 && backgroundTasks != null) {
+                SpanHandoffReporter handoffReporter = new SpanHandoffReporter(reporter,
+                        threadContextThreadLocal, handoffMaxBatchSpans,
+                        config.getReporterQueuedMaxSpans());
+                tasks.add(backgroundTasks.schedule(handoffReporter,
+                        config.getReporterHandoffIntervalMillis(), TimeUnit.MILLISECONDS));
+                reporter = handoffReporter;
+            }
+            // the lanes need to see spans on the threads that finish them (see SpanFinisher), so
+            // only the routine lane (which has nearly all of the spans) goes through the handoff
+            PriorityLaneReporter laneReporter =
+                    createPriorityLaneReporter(reporter, reporterQueues);
+            if (laneReporter != null) {
+                if (backgroundTasks != null) {
+                    tasks.add(backgroundTasks.schedule(laneReporter, 1, TimeUnit.MINUTES));
+                }
+                reporter = laneReporter;
+            }
+            if (jfr) {
+                reporter = new JfrSpanReporter(reporter);
+            }
+        }
+        OverheadBudgetController controller = null;
+        Sampler sampler;
+        if (config.isAdaptiveSampling() && backgroundTasks != null) {
+            AdaptiveSampler adaptiveSampler = new AdaptiveSampler(config.getSampleRate());
+            // spans are counted as they finish, regardless of where they are reported to
+            SpanCountingReporter spanCounter = new SpanCountingReporter(reporter);
+            reporter = spanCounter;
+            controller = new OverheadBudgetController(adaptiveSampler,
+                    config.getSamplerMinRate(), config.getSampleRate(),
+                    config.getSamplerMaxSpansPerSecond(), config.getSamplerMaxCpuPercent(),
+                    config.getSamplerMaxAllocatedBytesPerSecond(), spanCounter, reporterQueues,
+                    Ticker.systemTicker());
+            tasks.add(backgroundTasks.schedule(controller, 1, TimeUnit.SECONDS));
+            sampler = adaptiveSampler;
+        } else {
+            sampler = Sampler.create(config.getSampleRate());
+        }
+        Tracing tracing = Tracing.newBuilder()
+                .currentTraceContext(currentTraceContext)
+                .localServiceName(serviceName)
+                .sampler(sampler)
+                .spanReporter(reporter)
+                .build();
+        return new ManagedTracing(tracing, reporter, controller, backgroundTasks, tasks);
+    }
+
+    // adds the collector queues that are created to reporterQueues
+    private Reporter<Span> createReporter(List<ReporterQueue> reporterQueues) {
+        String relayDirectory = config.getRelayDirectory();
+        if (relayDirectory != null && !config.isRelayRole()) {
+            try {
+                return RelayReporter.create(new File(relayDirectory), config.getRelayRingBytes());
+            } catch (IOException e) {
+                logger.error("could not create relay file in {}, spans will not be reported: {}",
+                        relayDirectory, e.getMessage(), e);
+                return Reporter.NOOP;
+            }
+        }
+        if (sender == null) {
+            return Reporter.CONSOLE;
+        }
+        InMemoryReporterMetrics reporterMetrics = new InMemoryReporterMetrics();
+        AsyncReporter<Span> reporter = AsyncReporter.builder(sender)
+                .metrics(reporterMetrics)
+                .queuedMaxSpans(config.getReporterQueuedMaxSpans())
+                .build();
+        reporterQueues.add(new ReporterQueue(reporterMetrics, config.getReporterQueuedMaxSpans()));
+        return reporter;
+    }
+
+    // returns null if there are no priority lanes (which are only used with a collector queue)
+    private @Nullable PriorityLaneReporter createPriorityLaneReporter(
+            Reporter<Span> routineReporter, List<ReporterQueue> reporterQueues) {
+        int priorityQueuedMaxSpans = config.getReporterPriorityQueuedMaxSpans();
+        if (priorityQueuedMaxSpans == 0 || sender == null || reporterQueues.isEmpty()) {
+            return null;
+        }
+        InMemoryReporterMetrics routineMetrics = reporterQueues.get(0).getMetrics();
+        InMemoryReporterMetrics priorityMetrics = new InMemoryReporterMetrics();
+        AsyncReporter<Span> priorityReporter = AsyncReporter.builder(sender)
+                .metrics(priorityMetrics)
+                .queuedMaxSpans(priorityQueuedMaxSpans)
+                .messageTimeout(100, TimeUnit.MILLISECONDS)
+                .build();
+        reporterQueues.add(new ReporterQueue(priorityMetrics, priorityQueuedMaxSpans));
+        // the spans held until their transactions end are bounded the same as the routine queue
+        return new PriorityLaneReporter(priorityReporter, priorityMetrics, routineReporter,
+                routineMetrics, threadContextThreadLocal,
+                TimeUnit.MILLISECONDS.toMicros(config.getReporterSlowThresholdMillis()),
+                config.getReporterQueuedMaxSpans());
+    }
+
+    // JfrSpanReporter can only be loaded when jdk.jfr is present (java 11+ and 8u262+)
+    private static boolean isJfrPresent() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder", false, TracingFactory.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    static class ManagedTracing {
+
+        private final Tracing tracing;
+        private final @Nullable Reporter<Span> reporter;
+        // non-null when adaptive sampling is enabled
+        private final @Nullable OverheadBudgetController controller;
+        private final @Nullable BackgroundTasks backgroundTasks;
+        private final List<Service> tasks;
+
+        ManagedTracing(Tracing tracing, @Nullable Reporter<Span> reporter,
+                @Nullable OverheadBudgetController controller,
+                @Nullable BackgroundTasks backgroundTasks, List<Service> tasks) {
+            this.tracing = tracing;
+            this.reporter = reporter;
+            this.controller = controller;
+            this.backgroundTasks = backgroundTasks;
+            this.tasks = tasks;
+        }
+
+        Tracing getTracing() {
+            return tracing;
+        }
+
+        @Nullable
+        OverheadBudgetController getController() {
+            return controller;
+        }
+
+        // flushes any spans still queued, and stops the reporter threads and sample rate controller
+        void close() {
+            if (backgroundTasks != null) {
+                for (Service task : tasks) {
+                    backgroundTasks.remove(task);
+                }
+            }
+            tracing.close();
+            if (reporter instanceof Closeable) {
+                try {
+                    ((Closeable) reporter).close();
+                } catch (IOException e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.jfr;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import jdk.jfr.Timestamp;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import zipkin2.Span;
+import zipkin2.Span.Kind;
+import zipkin2.reporter.Reporter;
+
+// emits server, client and query spans as java flight recorder events, either in place of or
+// alongside reporting to a collector (the delegate)
+//
+// this is a low overhead way to look at spans together with the jvm's own events (gc, locks,
+// allocations, etc), and it is free when no recording has these events enabled, since the event
+// types are checked before anything is allocated
+//
+// jdk.jfr is only available on java 11+ (and 8u262+), so this class (and the event classes) must
+// only be loaded after checking that jdk.jfr is present, see TracingFactory
+//
+// spans that are neither server, client nor query spans (e.g. local spans) are only reported to
+// the delegate
+public class JfrSpanReporter implements Reporter<Span>, Closeable {
+
+    public static final String SERVER_EVENT_NAME = "org.glowroot.brave.ServerSpan";
+    public static final String CLIENT_EVENT_NAME = "org.glowroot.brave.ClientSpan";
+    public static final String QUERY_EVENT_NAME = "org.glowroot.brave.QuerySpan";
+
+    // see ThreadContextImpl
+    private static final String QUERY_TYPE_TAG = "db.type";
+
+    private static final EventType serverEventType;
+    private static final EventType clientEventType;
+    private static final EventType queryEventType;
+
+    static {
+        // registered up front so that the event types show up in recording configurations even
+        // before the first span is reported
+        FlightRecorder.register(ServerSpanEvent.class);
+        FlightRecorder.register(ClientSpanEvent.class);
+        FlightRecorder.register(QuerySpanEvent.class);
+        serverEventType = EventType.getEventType(ServerSpanEvent.class);
+        clientEventType = EventType.getEventType(ClientSpanEvent.class);
+        queryEventType = EventType.getEventType(QuerySpanEvent.class);
+    }
+
+    private final @Nullable Reporter<Span> delegate;
+
+    // delegate is null when spans are only emitted as flight recorder events
+    public JfrSpanReporter(@Nullable Reporter<Span> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void report(Span span) {
+        if (delegate != null) {
+            delegate.report(span);
+        }
+        SpanEvent event = createEventIfEnabled(span);
+        if (event == null) {
+            return;
+        }
+        event.traceId = span.traceId();
+        event.spanId = span.id();
+        event.parentId = span.parentId();
+        event.name = span.name();
+        event.spanStartTime = span.timestampAsLong() / 1000;
+        event.spanDuration = span.durationAsLong();
+        event.error = span.tags().get("error");
+        event.commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    private static @Nullable SpanEvent createEventIfEnabled(Span span) {
+        Kind kind = span.kind();
+        if (kind == Kind.SERVER || kind == Kind.CONSUMER) {
+            return serverEventType.isEnabled() ? new ServerSpanEvent() : null;
+        }
+        if (kind == Kind.CLIENT || kind == Kind.PRODUCER) {
+            return clientEventType.isEnabled() ? new ClientSpanEvent() : null;
+        }
+        if (span.tags().containsKey(QUERY_TYPE_TAG)) {
+            return queryEventType.isEnabled() ? new QuerySpanEvent() : null;
+        }
+        return null;
+    }
+
+    // the event is committed when the span is reported (after it ends), so the event's own start
+    // time and duration are not the span's, which are recorded in separate fields instead
+    @Category({"Brave Agent", "Spans"})
+    @StackTrace(false)
+    abstract static class SpanEvent extends Event {
+
+        @Label("Trace Id")
+        @Nullable
+        String traceId;
+
+        @Label("Span Id")
+        @Nullable
+        String spanId;
+
+        @Label("Parent Id")
+        @Nullable
+        String parentId;
+
+        @Label("Name")
+        @Nullable
+        String name;
+
+        @Label("Span Start Time")
+        @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+        long spanStartTime;
+
+        @Label("Span Duration")
+        @Timespan(Timespan.MICROSECONDS)
+        long spanDuration;
+
+        @Label("Error")
+        @Nullable
+        String error;
+    }
+
+    @Name(SERVER_EVENT_NAME)
+    @Label("Server Span")
+    static class ServerSpanEvent extends SpanEvent {}
+
+    @Name(CLIENT_EVENT_NAME)
+    @Label("Client Span")
+    static class ClientSpanEvent extends SpanEvent {}
+
+    @Name(QUERY_EVENT_NAME)
+    @Label("Query Span")
+    static class QuerySpanEvent extends SpanEvent {}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+// log-linear histogram buckets in microseconds, similar to HdrHistogram
+//
+// values below 32 microseconds get a bucket each, and above that each power of two is split into
+// 16 linear sub-buckets, so a bucket's upper bound is within ~6% of the values recorded in it
+public final class LatencyBuckets {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    // covers up to 2^36 microseconds (~19 hours), anything longer is recorded in the last bucket
+    private static final int MAGNITUDES = 31;
+
+    public static final int COUNT = (MAGNITUDES + 2) * HALF_SUB_BUCKETS;
+
+    private LatencyBuckets() {}
+
+    public static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (micros >>> magnitude) - HALF_SUB_BUCKETS;
+        int index = (magnitude + 1) * HALF_SUB_BUCKETS + subBucket;
+        return Math.min(index, COUNT - 1);
+    }
+
+    public static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = (index - HALF_SUB_BUCKETS) / HALF_SUB_BUCKETS;
+        int subBucket = (index - HALF_SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((long) (subBucket + 1) << magnitude) - 1;
+    }
+}
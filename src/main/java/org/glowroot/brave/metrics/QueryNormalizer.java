@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+import java.util.Locale;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// reduces query text to a low cardinality target (the operation and the table, e.g.
+// "SELECT orders"), which is what the query RED metrics are recorded under, so that literals
+// inlined into the query text (which can be customer data) never end up in metric names, and so
+// that the same statement with different literals is aggregated under one name
+//
+// the top queries need to tell apart different statements against the same table, so they are
+// recorded under the statement's shape instead (the query text with its literals replaced by ?)
+//
+// this is a lenient scan rather than a sql parser, queries that it doesn't recognize (including
+// non-sql queries, e.g. "GET key") are recorded under their first word
+final class QueryNormalizer {
+
+    private QueryNormalizer() {}
+
+    static String getTarget(String queryText) {
+        Scanner scanner = new Scanner(queryText);
+        String operation = scanner.nextWord();
+        if (operation == null) {
+            return RedMetrics.OTHER;
+        }
+        operation = operation.toUpperCase(Locale.ENGLISH);
+        String tableKeyword;
+        if (operation.equals("SELECT") || operation.equals("DELETE")
+                || operation.equals("WITH")) {
+            tableKeyword = "FROM";
+        } else if (operation.equals("INSERT") || operation.equals("MERGE")
+                || operation.equals("REPLACE")) {
+            tableKeyword = "INTO";
+        } else if (operation.equals("UPDATE")) {
+            tableKeyword = null;
+        } else {
+            return operation;
+        }
+        if (tableKeyword != null && !scanner.skipPastWord(tableKeyword)) {
+            return operation;
+        }
+        String table = scanner.nextWord();
+        return table == null ? operation : operation + ' ' + table;
+    }
+
+    // the query text with string and number literals replaced by ?, and with comments dropped and
+    // whitespace collapsed, e.g. "select * from orders where id = ?"
+    static String getShape(String queryText) {
+        return new Scanner(queryText).shape();
+    }
+
+    private static class Scanner {
+
+        private final String text;
+        private int index;
+
+        private Scanner(String text) {
+            this.text = text;
+        }
+
+        // returns the next identifier (including qualified and quoted identifiers), or null if
+        // the next token is not an identifier (e.g. a subquery)
+        private @Nullable String nextWord() {
+            skipWhitespaceAndComments();
+            if (index == text.length()) {
+                return null;
+            }
+            char c = text.charAt(index);
+            if (c == '"' || c == '`' || c == '[') {
+                char close = c == '[' ? ']' : c;
+                int end = text.indexOf(close, index + 1);
+                if (end == -1) {
+                    return null;
+                }
+                String word = text.substring(index + 1, end);
+                index = end + 1;
+                return word;
+            }
+            int start = index;
+            while (index < text.length() && isWordChar(text.charAt(index))) {
+                index++;
+            }
+            return index == start ? null : text.substring(start, index);
+        }
+
+        private String shape() {
+            StringBuilder sb = new StringBuilder(text.length());
+            while (true) {
+                int start = index;
+                skipWhitespaceAndComments();
+                if (index == text.length()) {
+                    return sb.toString();
+                }
+                if (index > start && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                char c = text.charAt(index);
+                if (c == '\'') {
+                    skipStringLiteral();
+                    sb.append('?');
+                } else if (c == '"' || c == '`' || c == '[') {
+                    // quoted identifier
+                    int end = text.indexOf(c == '[' ? ']' : c, index + 1);
+                    end = end == -1 ? text.length() : end + 1;
+                    sb.append(text, index, end);
+                    index = end;
+                } else if (isWordChar(c)) {
+                    int wordStart = index;
+                    while (index < text.length() && isWordChar(text.charAt(index))) {
+                        index++;
+                    }
+                    if (Character.isDigit(c)) {
+                        // number literal (including decimals, exponents and hex)
+                        sb.append('?');
+                    } else {
+                        sb.append(text, wordStart, index);
+                    }
+                } else {
+                    sb.append(c);
+                    index++;
+                }
+            }
+        }
+
+        // advances past the next occurrence of the keyword outside of literals, returns false if
+        // there is none
+        private boolean skipPastWord(String keyword) {
+            while (true) {
+                skipWhitespaceAndComments();
+                if (index == text.length()) {
+                    return false;
+                }
+                char c = text.charAt(index);
+                if (c == '\'') {
+                    skipStringLiteral();
+                } else if (isWordChar(c)) {
+                    int start = index;
+                    while (index < text.length() && isWordChar(text.charAt(index))) {
+                        index++;
+                    }
+                    if (index - start == keyword.length()
+                            && text.regionMatches(true, start, keyword, 0, keyword.length())) {
+                        return true;
+                    }
+                } else {
+                    index++;
+                }
+            }
+        }
+
+        private void skipStringLiteral() {
+            index++;
+            while (index < text.length()) {
+                if (text.charAt(index++) == '\'') {
+                    if (index < text.length() && text.charAt(index) == '\'') {
+                        // escaped quote
+                        index++;
+                    } else {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void skipWhitespaceAndComments() {
+            while (index < text.length()) {
+                char c = text.charAt(index);
+                if (Character.isWhitespace(c)) {
+                    index++;
+                } else if (text.startsWith("--", index)) {
+                    int end = text.indexOf('\n', index);
+                    index = end == -1 ? text.length() : end + 1;
+                } else if (text.startsWith("/*", index)) {
+                    int end = text.indexOf("*/", index + 2);
+                    index = end == -1 ? text.length() : end + 2;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+        }
+    }
+}
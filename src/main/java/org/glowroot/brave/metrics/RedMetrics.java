@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.brave.metrics.RedStats.Interval;
+
+// rate, errors and duration (RED) metrics, aggregated in the agent at span end
+//
+// these are recorded for every span regardless of sampling, so they stay accurate when traces are
+// heavily sampled
+public class RedMetrics {
+
+    public static final String SERVER = "server";
+    // incoming spans that are not http requests (e.g. background jobs and message consumers)
+    public static final String INCOMING = "incoming";
+    public static final String CLIENT = "client";
+    public static final String QUERY = "query";
+    // time that work handed off to an auxiliary thread spent waiting in an executor's queue (by
+    // executor, which is named after its worker threads)
+    public static final String QUEUE = "queue";
+    // async spans and async transactions that were never ended, and were force-finished by the
+    // reaper once they exceeded the max age (by the kind of span, e.g. "client", with the age as
+    // the duration), see AsyncSpanReaper
+    public static final String ABANDONED = "abandoned";
+
+    // names beyond the limit are all aggregated under this name, which bounds memory when
+    // something unexpectedly high cardinality ends up in a name
+    static final String OTHER = "other";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final int maxNamesPerKind;
+
+    private final @Nullable TopQueries topQueries;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, RedStats>> stats =
+            new ConcurrentHashMap<String, ConcurrentMap<String, RedStats>>();
+
+    // guarded by this
+    private List<Interval> lastIntervals = ImmutableList.of();
+
+    // topQueries is the number of queries reported in each of the top queries rankings, 0 means
+    // top queries are not tracked
+    public RedMetrics(int maxNamesPerKind, int topQueries) {
+        this.maxNamesPerKind = maxNamesPerKind;
+        this.topQueries = topQueries == 0 ? null : new TopQueries(topQueries);
+    }
+
+    public void record(String kind, String name, long durationNanos, boolean error) {
+        getStats(kind, name).record(durationNanos, error);
+    }
+
+    // query RED metrics are recorded by target (operation and table), and top queries by
+    // statement shape (literals replaced by ?), see QueryNormalizer
+    public void recordQuery(String queryText, long durationNanos, boolean error) {
+        getStats(QUERY, QueryNormalizer.getTarget(queryText)).record(durationNanos, error);
+        if (topQueries != null) {
+            topQueries.record(QueryNormalizer.getShape(queryText), durationNanos);
+        }
+    }
+
+    // merges the per-thread stripes, and returns the activity since the previous merge
+    public synchronized List<Interval> merge() {
+        List<Interval> intervals = Lists.newArrayList();
+        for (ConcurrentMap<String, RedStats> statsByName : stats.values()) {
+            for (RedStats redStats : statsByName.values()) {
+                intervals.add(redStats.merge());
+            }
+        }
+        lastIntervals = intervals;
+        if (topQueries != null) {
+            topQueries.merge();
+        }
+        return intervals;
+    }
+
+    // top queries over the last merge interval, null if top queries are not tracked
+    public @Nullable String getTopQueriesText() {
+        if (topQueries == null) {
+            return null;
+        }
+        return topQueries.getLastSnapshot().getText();
+    }
+
+    @Nullable
+    TopQueries getTopQueries() {
+        return topQueries;
+    }
+
+    // prometheus text exposition format, as of the last merge (quantiles are over the last merge
+    // interval, counts and sums are cumulative)
+    public synchronized String getPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP brave_agent_span_duration_seconds Span durations recorded by the agent"
+                + " (quantiles are over the last interval)\n");
+        sb.append("# TYPE brave_agent_span_duration_seconds summary\n");
+        for (Interval interval : lastIntervals) {
+            for (double quantile : QUANTILES) {
+                sb.append("brave_agent_span_duration_seconds");
+                appendLabels(sb, interval, Double.toString(quantile));
+                sb.append(' ');
+                sb.append(interval.getValueAtQuantile(quantile) / 1e6);
+                sb.append('\n');
+            }
+            sb.append("brave_agent_span_duration_seconds_count");
+            appendLabels(sb, interval, null);
+            sb.append(' ');
+            sb.append(interval.getTotalCount());
+            sb.append('\n');
+            sb.append("brave_agent_span_duration_seconds_sum");
+            appendLabels(sb, interval, null);
+            sb.append(' ');
+            sb.append(interval.getTotalSumMicros() / 1e6);
+            sb.append('\n');
+        }
+        sb.append("# HELP brave_agent_span_errors_total Spans recorded by the agent that ended"
+                + " with an error\n");
+        sb.append("# TYPE brave_agent_span_errors_total counter\n");
+        for (Interval interval : lastIntervals) {
+            sb.append("brave_agent_span_errors_total");
+            appendLabels(sb, interval, null);
+            sb.append(' ');
+            sb.append(interval.getTotalErrors());
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private RedStats getStats(String kind, String name) {
+        ConcurrentMap<String, RedStats> statsByName = stats.get(kind);
+        if (statsByName == null) {
+            stats.putIfAbsent(kind, new ConcurrentHashMap<String, RedStats>());
+            statsByName = stats.get(kind);
+        }
+        RedStats redStats = statsByName.get(name);
+        if (redStats != null) {
+            return redStats;
+        }
+        if (statsByName.size() >= maxNamesPerKind) {
+            name = OTHER;
+            redStats = statsByName.get(name);
+            if (redStats != null) {
+                return redStats;
+            }
+        }
+        statsByName.putIfAbsent(name, new RedStats(kind, name));
+        return statsByName.get(name);
+    }
+
+    private static void appendLabels(StringBuilder sb, Interval interval,
+            @Nullable String quantile) {
+        sb.append("{kind=\"");
+        appendEscaped(sb, interval.getKind());
+        sb.append("\",name=\"");
+        appendEscaped(sb, interval.getName());
+        if (quantile != null) {
+            sb.append("\",quantile=\"");
+            sb.append(quantile);
+        }
+        sb.append("\"}");
+    }
+
+    private static void appendEscaped(StringBuilder sb, String labelValue) {
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.brave.metrics.RedStats.Interval;
+import org.glowroot.brave.sampler.OverheadBudgetController;
+import org.glowroot.brave.sampler.OverheadBudgetController.Decision;
+
+// merges the RED metrics on a schedule, and exports them as a log line per name and/or through a
+// prometheus text endpoint (along with the top queries, which are also served as plain text at
+// /queries)
+//
+// the endpoint only listens on the loopback interface, so it is only reachable from the host
+// (e.g. by a local prometheus agent or sidecar)
+public class RedMetricsExporter implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedMetricsExporter.class);
+
+    private final RedMetrics redMetrics;
+    private final long intervalMillis;
+    private final boolean log;
+
+    // non-null when adaptive sampling is enabled, in which case the last sample rate decision is
+    // served along with the RED metrics, so that it is possible to see why the rate changed
+    private volatile @Nullable OverheadBudgetController overheadBudgetController;
+
+    // guarded by this, non-null while the endpoint is started
+    private @Nullable HttpServer server;
+    private @Nullable ExecutorService serverExecutor;
+
+    public RedMetricsExporter(RedMetrics redMetrics, long intervalMillis, boolean log) {
+        this.redMetrics = redMetrics;
+        this.intervalMillis = intervalMillis;
+        this.log = log;
+    }
+
+    @Override
+    public void run() {
+        try {
+            List<Interval> intervals = redMetrics.merge();
+            if (log) {
+                for (Interval interval : intervals) {
+                    if (interval.getCount() > 0) {
+                        logInterval(interval);
+                    }
+                }
+                TopQueries topQueries = redMetrics.getTopQueries();
+                if (topQueries != null && !topQueries.getLastSnapshot().isEmpty()) {
+                    logger.info("{}", topQueries.getLastSnapshot().getText());
+                }
+            }
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    // this needs to be called from a daemon thread, since the http server's dispatcher thread
+    // inherits its daemon status from the thread that starts it
+    //
+    // can be started again after being stopped (see BackgroundTasks)
+    public synchronized void startPrometheusEndpoint(int port) {
+        HttpServer server;
+        try {
+            server = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        } catch (IOException e) {
+            logger.error("could not start prometheus metrics endpoint on port {}: {}", port,
+                    e.getMessage(), e);
+            return;
+        }
+        server.createContext("/metrics", new PrometheusHandler());
+        server.createContext("/queries", new TopQueriesHandler());
+        ExecutorService serverExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Brave-Agent-Metrics")
+                        .build());
+        server.setExecutor(serverExecutor);
+        server.start();
+        this.server = server;
+        this.serverExecutor = serverExecutor;
+        logger.info("prometheus metrics endpoint listening on 127.0.0.1:{}", port);
+    }
+
+    public void setOverheadBudgetController(
+            @Nullable OverheadBudgetController overheadBudgetController) {
+        this.overheadBudgetController = overheadBudgetController;
+    }
+
+    public synchronized void stopPrometheusEndpoint() {
+        if (server != null) {
+            // the executor isn't owned by the server, so it needs to be shut down separately
+            server.stop(0);
+            server = null;
+        }
+        if (serverExecutor != null) {
+            serverExecutor.shutdown();
+            serverExecutor = null;
+        }
+    }
+
+    private void logInterval(Interval interval) {
+        double seconds = intervalMillis / 1000.0;
+        logger.info("{} {}: rate={}/s, errors={}%, p50={}ms, p90={}ms, p99={}ms, avg={}ms",
+                interval.getKind(), interval.getName(),
+                format(interval.getCount() / seconds),
+                format(100.0 * interval.getErrors() / interval.getCount()),
+                format(interval.getValueAtQuantile(0.5) / 1000.0),
+                format(interval.getValueAtQuantile(0.9) / 1000.0),
+                format(interval.getValueAtQuantile(0.99) / 1000.0),
+                format(interval.getSumMicros() / 1000.0 / interval.getCount()));
+    }
+
+    // empty until the controller's first run
+    private static String getDecisionText(@Nullable Decision decision) {
+        if (decision == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP brave_agent_sample_rate Sample rate set by the overhead budget"
+                + " controller\n");
+        sb.append("# TYPE brave_agent_sample_rate gauge\n");
+        sb.append("brave_agent_sample_rate ");
+        sb.append(decision.getNewRate());
+        sb.append('\n');
+        sb.append("# HELP brave_agent_overhead_pressure Ratio of the agent's measured cost to its"
+                + " budget during the last interval, labeled with the budget dimension with the"
+                + " highest pressure\n");
+        sb.append("# TYPE brave_agent_overhead_pressure gauge\n");
+        sb.append("brave_agent_overhead_pressure{reason=\"");
+        sb.append(decision.getReason());
+        sb.append("\"} ");
+        sb.append(decision.getPressure());
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String text)
+            throws IOException {
+        byte[] body = text.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private class PrometheusHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String text = redMetrics.getPrometheusText();
+            OverheadBudgetController overheadBudgetController =
+                    RedMetricsExporter.this.overheadBudgetController;
+            if (overheadBudgetController != null) {
+                text += getDecisionText(overheadBudgetController.getLastDecision());
+            }
+            send(exchange, 200, "text/plain; version=0.0.4", text);
+        }
+    }
+
+    private class TopQueriesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String text = redMetrics.getTopQueriesText();
+            if (text == null) {
+                send(exchange, 404, "text/plain", "top queries are not enabled\n");
+            } else {
+                send(exchange, 200, "text/plain; charset=utf-8", text);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// rate, errors and duration histogram for a single (kind, name)
+//
+// recording is lock-free and striped by thread, so that threads recording the same name don't
+// contend on the same cache lines, and the stripes are only summed up when merged on a schedule
+//
+// the histogram uses LatencyBuckets
+class RedStats {
+
+    private static final int BUCKETS = LatencyBuckets.COUNT;
+
+    static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+    private final String kind;
+    private final String name;
+
+    // stripes are allocated on first use, so names that are only recorded from a few threads only
+    // pay for a few stripes
+    private final AtomicReferenceArray<Stripe> stripes =
+            new AtomicReferenceArray<Stripe>(STRIPES);
+
+    // the fields below are the totals as of the last merge, and are only accessed under the
+    // RedMetrics lock
+    private final long[] mergedCounts = new long[BUCKETS];
+    private long mergedErrors;
+    private long mergedSumMicros;
+
+    RedStats(String kind, String name) {
+        this.kind = kind;
+        this.name = name;
+    }
+
+    void record(long durationNanos, boolean error) {
+        long micros = Math.max(0, durationNanos / 1000);
+        getStripe().record(micros, error);
+    }
+
+    // returns the activity since the previous merge
+    Interval merge() {
+        long[] counts = new long[BUCKETS];
+        long errors = 0;
+        long sumMicros = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe == null) {
+                continue;
+            }
+            for (int j = 0; j < BUCKETS; j++) {
+                counts[j] += stripe.counts.get(j);
+            }
+            errors += stripe.errors.get();
+            sumMicros += stripe.sumMicros.get();
+        }
+        long[] intervalCounts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            intervalCounts[i] = counts[i] - mergedCounts[i];
+            mergedCounts[i] = counts[i];
+        }
+        Interval interval = new Interval(kind, name, intervalCounts, errors - mergedErrors,
+                sumMicros - mergedSumMicros, sum(counts), errors, sumMicros);
+        mergedErrors = errors;
+        mergedSumMicros = sumMicros;
+        return interval;
+    }
+
+    private Stripe getStripe() {
+        int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        Stripe stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new Stripe());
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    private static long sum(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static int stripeCount(int availableProcessors) {
+        int stripes = 1;
+        while (stripes < availableProcessors && stripes < 16) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private static class Stripe {
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong sumMicros = new AtomicLong();
+
+        private void record(long micros, boolean error) {
+            counts.incrementAndGet(LatencyBuckets.indexOf(micros));
+            sumMicros.addAndGet(micros);
+            if (error) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    static class Interval {
+
+        private final String kind;
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long errors;
+        private final long sumMicros;
+        private final long totalCount;
+        private final long totalErrors;
+        private final long totalSumMicros;
+
+        private Interval(String kind, String name, long[] counts, long errors, long sumMicros,
+                long totalCount, long totalErrors, long totalSumMicros) {
+            this.kind = kind;
+            this.name = name;
+            this.counts = counts;
+            this.count = sum(counts);
+            this.errors = errors;
+            this.sumMicros = sumMicros;
+            this.totalCount = totalCount;
+            this.totalErrors = totalErrors;
+            this.totalSumMicros = totalSumMicros;
+        }
+
+        String getKind() {
+            return kind;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getErrors() {
+            return errors;
+        }
+
+        long getSumMicros() {
+            return sumMicros;
+        }
+
+        long getTotalCount() {
+            return totalCount;
+        }
+
+        long getTotalErrors() {
+            return totalErrors;
+        }
+
+        long getTotalSumMicros() {
+            return totalSumMicros;
+        }
+
+        // returns the upper bound (in microseconds) of the bucket containing the given quantile
+        long getValueAtQuantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(quantile * count));
+            long running = 0;
+            for (int i = 0; i < counts.length; i++) {
+                running += counts[i];
+                if (running >= target) {
+                    return LatencyBuckets.upperBound(i);
+                }
+            }
+            return LatencyBuckets.upperBound(counts.length - 1);
+        }
+    }
+}
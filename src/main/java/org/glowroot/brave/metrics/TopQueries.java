@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// bounded "top queries" view (top by total time, by count and by max latency), fed from every
+// query span whether or not it is sampled
+//
+// queries are recorded by their statement shape (see QueryNormalizer), so that executions of the
+// same statement with different inlined literals aggregate, and so that literal values (which can
+// be customer data) are never served
+//
+// each ranking is a space-saving summary (Metwally et al.), which keeps a fixed number of counters
+// regardless of how many distinct statements are executed: a statement without a counter takes
+// over the counter with the smallest value, and inherits that value as its possible overestimation
+//
+// recording is striped by thread (each stripe with its own summaries and lock), and the stripes
+// are merged and reset on a schedule, so the view covers the last interval
+class TopQueries {
+
+    // the number of counters kept per summary, relative to the number of queries reported, the
+    // extra counters are what make the reported top queries accurate
+    private static final int CAPACITY_FACTOR = 10;
+
+    private static final int STRIPES = RedStats.STRIPES;
+
+    private final int size;
+    private final Stripe[] stripes;
+
+    // guarded by this
+    private Snapshot lastSnapshot = new Snapshot(ImmutableList.<QueryCounter>of(),
+            ImmutableList.<QueryCounter>of(), ImmutableList.<QueryCounter>of());
+
+    TopQueries(int size) {
+        this.size = size;
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(size * CAPACITY_FACTOR);
+        }
+    }
+
+    void record(String queryText, long durationNanos) {
+        int index = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        stripes[index].record(queryText, durationNanos);
+    }
+
+    synchronized Snapshot merge() {
+        Map<String, QueryCounter> byTotalTime = Maps.newHashMap();
+        Map<String, QueryCounter> byCount = Maps.newHashMap();
+        Map<String, QueryCounter> byMaxTime = Maps.newHashMap();
+        for (Stripe stripe : stripes) {
+            stripe.drainTo(byTotalTime, byCount, byMaxTime);
+        }
+        lastSnapshot = new Snapshot(top(byTotalTime.values()), top(byCount.values()),
+                top(byMaxTime.values()));
+        return lastSnapshot;
+    }
+
+    synchronized Snapshot getLastSnapshot() {
+        return lastSnapshot;
+    }
+
+    private List<QueryCounter> top(Collection<QueryCounter> counters) {
+        List<QueryCounter> sorted = Lists.newArrayList(counters);
+        Collections.sort(sorted, ValueDescending.INSTANCE);
+        return ImmutableList.copyOf(sorted.subList(0, Math.min(size, sorted.size())));
+    }
+
+    private static class Stripe {
+
+        private final Summary byTotalTime;
+        private final Summary byCount;
+        private final Summary byMaxTime;
+
+        private Stripe(int capacity) {
+            byTotalTime = new Summary(capacity, false);
+            byCount = new Summary(capacity, false);
+            byMaxTime = new Summary(capacity, true);
+        }
+
+        private synchronized void record(String queryText, long durationNanos) {
+            byTotalTime.offer(queryText, durationNanos);
+            byCount.offer(queryText, 1);
+            byMaxTime.offer(queryText, durationNanos);
+        }
+
+        private synchronized void drainTo(Map<String, QueryCounter> byTotalTime,
+                Map<String, QueryCounter> byCount, Map<String, QueryCounter> byMaxTime) {
+            this.byTotalTime.drainTo(byTotalTime);
+            this.byCount.drainTo(byCount);
+            this.byMaxTime.drainTo(byMaxTime);
+        }
+    }
+
+    private static class Summary {
+
+        private final int capacity;
+        // when true, a counter keeps the max of the offered values instead of their sum
+        private final boolean max;
+
+        private final Map<String, QueryCounter> counters;
+
+        // cached so that the common case of a full max summary rejecting a value that is smaller
+        // than everything it holds doesn't need to scan
+        private @Nullable QueryCounter min;
+
+        private Summary(int capacity, boolean max) {
+            this.capacity = capacity;
+            this.max = max;
+            counters = Maps.newHashMapWithExpectedSize(capacity);
+        }
+
+        private void offer(String queryText, long value) {
+            QueryCounter counter = counters.get(queryText);
+            if (counter != null) {
+                if (max) {
+                    counter.value = Math.max(counter.value, value);
+                } else {
+                    counter.value += value;
+                }
+                if (counter == min) {
+                    min = null;
+                }
+                return;
+            }
+            if (counters.size() < capacity) {
+                counters.put(queryText, new QueryCounter(queryText, value, 0));
+                min = null;
+                return;
+            }
+            QueryCounter min = getMin();
+            if (max) {
+                if (value <= min.value) {
+                    return;
+                }
+                // unlike the sums, the max of a statement that was evicted can't be larger than
+                // the max of the statement that replaced it, so there is no overestimation
+                counter = new QueryCounter(queryText, value, 0);
+            } else {
+                counter = new QueryCounter(queryText, min.value + value, min.value);
+            }
+            counters.remove(min.queryText);
+            counters.put(queryText, counter);
+            this.min = null;
+        }
+
+        private QueryCounter getMin() {
+            QueryCounter min = this.min;
+            if (min == null) {
+                for (QueryCounter counter : counters.values()) {
+                    if (min == null || counter.value < min.value) {
+                        min = counter;
+                    }
+                }
+                this.min = min;
+            }
+            return min;
+        }
+
+        private void drainTo(Map<String, QueryCounter> merged) {
+            for (QueryCounter counter : counters.values()) {
+                QueryCounter existing = merged.get(counter.queryText);
+                if (existing == null) {
+                    merged.put(counter.queryText, counter);
+                } else if (max) {
+                    existing.value = Math.max(existing.value, counter.value);
+                } else {
+                    existing.value += counter.value;
+                    existing.error += counter.error;
+                }
+            }
+            counters.clear();
+            min = null;
+        }
+    }
+
+    static class Snapshot {
+
+        private final List<QueryCounter> byTotalTime;
+        private final List<QueryCounter> byCount;
+        private final List<QueryCounter> byMaxTime;
+
+        private Snapshot(List<QueryCounter> byTotalTime, List<QueryCounter> byCount,
+                List<QueryCounter> byMaxTime) {
+            this.byTotalTime = byTotalTime;
+            this.byCount = byCount;
+            this.byMaxTime = byMaxTime;
+        }
+
+        // values are in nanoseconds
+        List<QueryCounter> getByTotalTime() {
+            return byTotalTime;
+        }
+
+        List<QueryCounter> getByCount() {
+            return byCount;
+        }
+
+        // values are in nanoseconds
+        List<QueryCounter> getByMaxTime() {
+            return byMaxTime;
+        }
+
+        boolean isEmpty() {
+            return byCount.isEmpty();
+        }
+
+        String getText() {
+            StringBuilder sb = new StringBuilder();
+            appendTimes(sb, "top queries by total time", byTotalTime);
+            sb.append('\n');
+            sb.append("top queries by count\n");
+            for (QueryCounter counter : byCount) {
+                sb.append(counter.value);
+                appendError(sb, Long.toString(counter.error), counter.error);
+                sb.append("  ");
+                sb.append(counter.queryText);
+                sb.append('\n');
+            }
+            sb.append('\n');
+            appendTimes(sb, "top queries by max time", byMaxTime);
+            return sb.toString();
+        }
+
+        private static void appendTimes(StringBuilder sb, String title,
+                List<QueryCounter> counters) {
+            sb.append(title);
+            sb.append('\n');
+            for (QueryCounter counter : counters) {
+                sb.append(formatMillis(counter.value));
+                sb.append("ms");
+                appendError(sb, formatMillis(counter.error) + "ms", counter.error);
+                sb.append("  ");
+                sb.append(counter.queryText);
+                sb.append('\n');
+            }
+        }
+
+        private static void appendError(StringBuilder sb, String formatted, long error) {
+            if (error > 0) {
+                sb.append(" (overestimated by at most ");
+                sb.append(formatted);
+                sb.append(')');
+            }
+        }
+
+        private static String formatMillis(long nanos) {
+            return String.format("%.2f", nanos / 1000000.0);
+        }
+    }
+
+    static class QueryCounter {
+
+        private final String queryText;
+        private long value;
+        private long error;
+
+        private QueryCounter(String queryText, long value, long error) {
+            this.queryText = queryText;
+            this.value = value;
+            this.error = error;
+        }
+
+        String getQueryText() {
+            return queryText;
+        }
+
+        long getValue() {
+            return value;
+        }
+
+        // upper bound on how much the value may be overestimated
+        long getError() {
+            return error;
+        }
+    }
+
+    private static class ValueDescending implements Comparator<QueryCounter> {
+
+        private static final ValueDescending INSTANCE = new ValueDescending();
+
+        @Override
+        public int compare(QueryCounter left, QueryCounter right) {
+            return left.value < right.value ? 1 : left.value > right.value ? -1 : 0;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.pause;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.google.common.collect.ImmutableSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// records recent jvm pauses, so that spans that overlap a pause can be annotated with how long
+// they were paused
+//
+// pauses are detected from gc notifications (stop-the-world collections) and from a jitter thread
+// that sleeps for a short interval and records any oversleep (which also catches non-gc safepoint
+// pauses, and pauses of the whole process, e.g. from the os or hypervisor)
+//
+// the pauses are kept in a small lock-free ring, and the common case of a span that doesn't
+// overlap any recent pause is a single volatile read
+public class PauseDetector {
+
+    private static final Logger logger = LoggerFactory.getLogger(PauseDetector.class);
+
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    // collectors whose notifications cover a whole (mostly concurrent) collection cycle rather
+    // than a pause, e.g. with cms "end of major GC" spans the entire concurrent cycle, which can
+    // take seconds while the application keeps running, the short stop-the-world phases of these
+    // cycles are still caught by the jitter thread
+    private static final Set<String> CONCURRENT_COLLECTORS = ImmutableSet.of(
+            "ConcurrentMarkSweep", "G1 Concurrent GC", "ZGC Cycles", "ZGC Major Cycles",
+            "ZGC Minor Cycles", "Shenandoah Cycles");
+
+    private final long jitterIntervalNanos;
+    private final long minPauseNanos;
+
+    private final AtomicReferenceArray<Pause> ring;
+    private final AtomicLong nextIndex = new AtomicLong();
+
+    // the latest end of the recorded pauses (in System.nanoTime()), only ever moves forward
+    private final AtomicLong lastPauseEndTick;
+
+    // guarded by this, non-null while started
+    private @Nullable GcListener gcListener;
+    private @Nullable Thread jitterThread;
+
+    public PauseDetector(int ringSize, long jitterIntervalNanos, long minPauseNanos) {
+        ring = new AtomicReferenceArray<Pause>(ringSize);
+        this.jitterIntervalNanos = jitterIntervalNanos;
+        this.minPauseNanos = minPauseNanos;
+        lastPauseEndTick = new AtomicLong(System.nanoTime());
+    }
+
+    // can be started again after being stopped (see BackgroundTasks)
+    public synchronized void start() {
+        // gc start and end times are millis since jvm start
+        long jvmStartTick = System.nanoTime()
+                - ManagementFactory.getRuntimeMXBean().getUptime() * 1000000;
+        GcListener gcListener = new GcListener(jvmStartTick);
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gcBean instanceof NotificationEmitter) {
+                ((NotificationEmitter) gcBean).addNotificationListener(gcListener, null, null);
+            }
+        }
+        this.gcListener = gcListener;
+        Thread jitterThread = new Thread(new JitterLoop(), "Brave-Agent-Pause-Detector");
+        jitterThread.setDaemon(true);
+        jitterThread.start();
+        this.jitterThread = jitterThread;
+    }
+
+    public synchronized void stop() {
+        if (gcListener != null) {
+            for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gcBean instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) gcBean).removeNotificationListener(gcListener);
+                    } catch (ListenerNotFoundException e) {
+                        logger.debug(e.getMessage(), e);
+                    }
+                }
+            }
+            gcListener = null;
+        }
+        if (jitterThread != null) {
+            jitterThread.interrupt();
+            jitterThread = null;
+        }
+    }
+
+    public void recordPause(long startTick, long endTick) {
+        if (endTick - startTick < minPauseNanos) {
+            return;
+        }
+        int index = (int) (nextIndex.getAndIncrement() % ring.length());
+        ring.set(index, new Pause(startTick, endTick));
+        // the gc notification thread and the jitter thread both record pauses, so this needs to
+        // be a compare-and-set loop, a lost update could leave it lower than a recorded pause,
+        // and then spans that overlap that pause would take the early return and miss it
+        while (true) {
+            long curr = lastPauseEndTick.get();
+            if (endTick - curr <= 0 || lastPauseEndTick.compareAndSet(curr, endTick)) {
+                return;
+            }
+        }
+    }
+
+    // returns the total time (in nanoseconds) that the given interval overlapped recorded pauses,
+    // pauses that were detected by both the gc notifications and the jitter thread are only
+    // counted once
+    public long getPausedNanos(long startTick, long endTick) {
+        if (lastPauseEndTick.get() - startTick <= 0) {
+            return 0;
+        }
+        Pause[] overlapping = null;
+        int count = 0;
+        for (int i = 0; i < ring.length(); i++) {
+            Pause pause = ring.get(i);
+            if (pause == null || pause.endTick - startTick <= 0
+                    || endTick - pause.startTick <= 0) {
+                continue;
+            }
+            if (overlapping == null) {
+                overlapping = new Pause[ring.length()];
+            }
+            overlapping[count++] = pause;
+        }
+        if (overlapping == null) {
+            return 0;
+        }
+        Arrays.sort(overlapping, 0, count, StartTickOrdering.INSTANCE);
+        long pausedNanos = 0;
+        long coveredUntil = startTick;
+        for (int i = 0; i < count; i++) {
+            Pause pause = overlapping[i];
+            long from = pause.startTick - coveredUntil > 0 ? pause.startTick : coveredUntil;
+            long to = pause.endTick - endTick < 0 ? pause.endTick : endTick;
+            if (to - from > 0) {
+                pausedNanos += to - from;
+                coveredUntil = to;
+            }
+        }
+        return pausedNanos;
+    }
+
+    private static class Pause {
+
+        private final long startTick;
+        private final long endTick;
+
+        private Pause(long startTick, long endTick) {
+            this.startTick = startTick;
+            this.endTick = endTick;
+        }
+    }
+
+    private static class StartTickOrdering implements Comparator<Pause> {
+
+        private static final StartTickOrdering INSTANCE = new StartTickOrdering();
+
+        @Override
+        public int compare(Pause left, Pause right) {
+            long diff = left.startTick - right.startTick;
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    }
+
+    private class GcListener implements NotificationListener {
+
+        private final long jvmStartTick;
+
+        private GcListener(long jvmStartTick) {
+            this.jvmStartTick = jvmStartTick;
+        }
+
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            if (!notification.getType().equals(GC_NOTIFICATION)) {
+                return;
+            }
+            try {
+                CompositeData info = (CompositeData) notification.getUserData();
+                if (CONCURRENT_COLLECTORS.contains((String) info.get("gcName"))) {
+                    return;
+                }
+                String gcAction = (String) info.get("gcAction");
+                // concurrent collector cycles (e.g. cms or g1 concurrent marking) are reported
+                // with other actions, and mostly don't pause the application
+                if (!gcAction.equals("end of minor GC") && !gcAction.equals("end of major GC")) {
+                    return;
+                }
+                CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+                long startMillis = (Long) gcInfo.get("startTime");
+                long endMillis = (Long) gcInfo.get("endTime");
+                recordPause(jvmStartTick + startMillis * 1000000,
+                        jvmStartTick + endMillis * 1000000);
+            } catch (Throwable t) {
+                logger.debug(t.getMessage(), t);
+            }
+        }
+    }
+
+    private class JitterLoop implements Runnable {
+
+        @Override
+        public void run() {
+            long jitterIntervalMillis = Math.max(1, jitterIntervalNanos / 1000000);
+            long expectedNanos = jitterIntervalMillis * 1000000;
+            while (true) {
+                long startTick = System.nanoTime();
+                try {
+                    Thread.sleep(jitterIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long endTick = System.nanoTime();
+                long oversleptNanos = endTick - startTick - expectedNanos;
+                if (oversleptNanos >= minPauseNanos) {
+                    recordPause(endTick - oversleptNanos, endTick);
+                }
+            }
+        }
+    }
+}
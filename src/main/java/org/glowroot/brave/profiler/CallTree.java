@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.profiler;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// stack samples of a single transaction (across all of its threads), aggregated into a call tree
+//
+// the tree is bounded, once it reaches MAX_NODES, samples that would need new nodes are only
+// counted in the part of their stack that already exists
+public class CallTree {
+
+    private static final int MAX_NODES = 1000;
+
+    // the rendered tree is capped, so that the profile tag stays well within the sender's message
+    // size, children are rendered hottest first, so it is the least sampled frames that are cut
+    private static final int MAX_TEXT_LENGTH = 16 * 1024;
+
+    private static final String TRUNCATED = "(truncated)\n";
+
+    private final Node root = new Node(null);
+
+    // guarded by this
+    private int nodeCount;
+    private int sampleCount;
+
+    synchronized void add(StackTraceElement[] stackTrace) {
+        if (stackTrace.length == 0) {
+            return;
+        }
+        sampleCount++;
+        Node node = root;
+        // the stack trace is innermost frame first
+        for (int i = stackTrace.length - 1; i >= 0; i--) {
+            Node child = node.getChild(stackTrace[i]);
+            if (child == null) {
+                if (nodeCount == MAX_NODES) {
+                    return;
+                }
+                child = new Node(stackTrace[i]);
+                node.children.add(child);
+                nodeCount++;
+            }
+            child.sampleCount++;
+            node = child;
+        }
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    // one line per node with its depth and sample count, in depth-first order, e.g.
+    //
+    // 0 12 java.lang.Thread.run(Thread.java:748)
+    // 1 12 com.example.Handler.handle(Handler.java:42)
+    // 2 9 com.example.Dao.find(Dao.java:17)
+    // 2 3 com.example.Handler.render(Handler.java:60)
+    //
+    // ending with "(truncated)" when the tree didn't fit in MAX_TEXT_LENGTH
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (!appendChildren(sb, root, 0)) {
+            sb.append(TRUNCATED);
+        }
+        return sb.toString();
+    }
+
+    // returns false if the text was truncated
+    private static boolean appendChildren(StringBuilder sb, Node node, int depth) {
+        List<Node> children = node.children;
+        if (children.size() > 1) {
+            children = Lists.newArrayList(children);
+            Collections.sort(children, SampleCountDescending.INSTANCE);
+        }
+        for (Node child : children) {
+            int length = sb.length();
+            sb.append(depth);
+            sb.append(' ');
+            sb.append(child.sampleCount);
+            sb.append(' ');
+            sb.append(child.frame);
+            sb.append('\n');
+            if (sb.length() > MAX_TEXT_LENGTH - TRUNCATED.length()) {
+                sb.setLength(length);
+                return false;
+            }
+            if (!appendChildren(sb, child, depth + 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class SampleCountDescending implements Comparator<Node> {
+
+        private static final SampleCountDescending INSTANCE = new SampleCountDescending();
+
+        @Override
+        public int compare(Node left, Node right) {
+            return right.sampleCount - left.sampleCount;
+        }
+    }
+
+    private static class Node {
+
+        // null for the root node
+        private final @Nullable StackTraceElement frame;
+        private final List<Node> children = Lists.newArrayListWithCapacity(1);
+        private int sampleCount;
+
+        private Node(@Nullable StackTraceElement frame) {
+            this.frame = frame;
+        }
+
+        private @Nullable Node getChild(StackTraceElement frame) {
+            for (Node child : children) {
+                if (frame.equals(child.frame)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+}
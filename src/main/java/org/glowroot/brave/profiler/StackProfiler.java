@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// low-frequency stack sampling of the threads that are currently inside a (sampled) transaction
+//
+// threads register themselves when a transaction starts or continues on them, so the profiler
+// never walks all threads in the jvm, and the stacks of all registered threads are captured with
+// a single batched ThreadMXBean call per tick
+//
+// the per-jvm overhead is bounded in two ways: at most maxThreads are captured per tick (each tick
+// continuing where the previous one stopped, so that all registered threads are sampled in turn),
+// and when capturing takes more than maxOverheadPercent of the interval, the following ticks are
+// skipped to bring the average back under the limit
+public class StackProfiler implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StackProfiler.class);
+
+    private static final int MAX_STACK_DEPTH = 200;
+
+    private final long intervalNanos;
+    private final long thresholdNanos;
+    private final int maxThreads;
+    private final double maxOverheadPercent;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final ConcurrentMap<Thread, CallTree> activeThreads =
+            new ConcurrentHashMap<Thread, CallTree>();
+
+    // only accessed by the (single) scheduling thread
+    private int skipTicks;
+    private int nextOffset;
+
+    public StackProfiler(long intervalNanos, long thresholdNanos, int maxThreads,
+            double maxOverheadPercent) {
+        this.intervalNanos = intervalNanos;
+        this.thresholdNanos = thresholdNanos;
+        this.maxThreads = maxThreads;
+        this.maxOverheadPercent = maxOverheadPercent;
+    }
+
+    // profiles are only attached to transactions that take at least this long
+    public long getThresholdNanos() {
+        return thresholdNanos;
+    }
+
+    public void addCurrentThread(CallTree callTree) {
+        activeThreads.put(Thread.currentThread(), callTree);
+    }
+
+    public void removeCurrentThread(CallTree callTree) {
+        activeThreads.remove(Thread.currentThread(), callTree);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (skipTicks > 0) {
+                skipTicks--;
+                return;
+            }
+            long startTick = System.nanoTime();
+            captureStacks();
+            long elapsedNanos = System.nanoTime() - startTick;
+            double budgetNanos = intervalNanos * maxOverheadPercent / 100;
+            if (elapsedNanos > budgetNanos) {
+                skipTicks = (int) Math.min(Integer.MAX_VALUE, elapsedNanos / budgetNanos);
+            }
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private void captureStacks() {
+        if (activeThreads.isEmpty()) {
+            return;
+        }
+        long[] threadIds = new long[maxThreads];
+        CallTree[] callTrees = new CallTree[maxThreads];
+        int size = activeThreads.size();
+        int offset = size <= maxThreads ? 0 : nextOffset % size;
+        int count = 0;
+        // the entries from the offset on, and then the ones before the offset (the iteration order
+        // is stable enough between ticks for this, even though threads come and go)
+        for (int pass = 0; pass < 2 && count < maxThreads; pass++) {
+            int index = 0;
+            for (Map.Entry<Thread, CallTree> entry : activeThreads.entrySet()) {
+                if (count == maxThreads || pass == 1 && index == offset) {
+                    break;
+                }
+                if (pass == 1 || index >= offset) {
+                    threadIds[count] = entry.getKey().getId();
+                    callTrees[count] = entry.getValue();
+                    count++;
+                }
+                index++;
+            }
+            if (offset == 0) {
+                break;
+            }
+        }
+        nextOffset = offset + count;
+        if (count < maxThreads) {
+            long[] trimmed = new long[count];
+            System.arraycopy(threadIds, 0, trimmed, 0, count);
+            threadIds = trimmed;
+        }
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIds, MAX_STACK_DEPTH);
+        for (int i = 0; i < count; i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo != null) {
+                // the thread may have moved on to another transaction since the entry was read,
+                // but that is rare enough at these sampling rates that it isn't worth guarding
+                callTrees[i].add(threadInfo.getStackTrace());
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.propagation;
+
+import brave.propagation.B3SingleFormat;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// propagates the trace context as a single "b3" header written and parsed directly as bytes, for
+// carriers that support it: either through instrumentation that implements BinaryGetter and
+// BinarySetter, or kafka records (and record headers), which are recognized regardless of the
+// instrumentation (see KafkaHeaders)
+//
+// this is one header value (and one byte array) per message instead of the three or four Strings
+// of the multi-header B3 format, and brave's B3 extraction (including the string path in this
+// agent) reads the single "b3" header, so receivers that don't use the binary path still
+// understand it
+public class BinaryPropagation {
+
+    static final String B3 = "b3";
+
+    private BinaryPropagation() {}
+
+    public static <C> void inject(TraceContext context, BinarySetter<C> setter, C carrier) {
+        // same as brave's messaging instrumentation, the receiver starts a child span anyways
+        setter.putBytes(carrier, B3, B3SingleFormat.writeB3SingleFormatWithoutParentIdAsBytes(
+                context));
+    }
+
+    // returns false if the carrier doesn't support bytes, in which case the caller falls back to
+    // the string path
+    public static boolean inject(TraceContext context, @Nullable Object carrier) {
+        KafkaHeaders kafkaHeaders = KafkaHeaders.forCarrier(carrier);
+        if (kafkaHeaders == null) {
+            return false;
+        }
+        inject(context, kafkaHeaders, carrier);
+        return true;
+    }
+
+    // returns null when the carrier has no (valid) "b3" header, in which case the caller falls back
+    // to the string path, e.g. for upstream services that send the multi-header B3 format
+    @Nullable
+    public static <C> TraceContextOrSamplingFlags extract(BinaryGetter<C> getter, C carrier) {
+        byte[] b3 = getter.getBytes(carrier, B3);
+        if (b3 == null) {
+            return null;
+        }
+        return B3SingleFormat.parseB3SingleFormat(new AsciiCharSequence(b3));
+    }
+
+    // returns null when the carrier doesn't support bytes, or has no (valid) "b3" header
+    public static @Nullable TraceContextOrSamplingFlags extract(@Nullable Object carrier) {
+        KafkaHeaders kafkaHeaders = KafkaHeaders.forCarrier(carrier);
+        return kafkaHeaders == null ? null : extract(kafkaHeaders, carrier);
+    }
+
+    // read-only view of ascii bytes, so that parsing doesn't first decode them into a String
+    private static class AsciiCharSequence implements CharSequence {
+
+        private final byte[] bytes;
+
+        private AsciiCharSequence(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.propagation;
+
+// implemented (in addition to Setter) by instrumentation whose carrier stores header values as
+// bytes, so that the trace context is written without going through a String, see
+// BinaryPropagation
+//
+// kafka records don't need this, since they are recognized regardless of the instrumentation (see
+// KafkaHeaders)
+public interface BinarySetter<C> {
+
+    void putBytes(C carrier, String key, byte[] value);
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.propagation;
+
+import java.lang.reflect.Method;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// reads and writes kafka record headers through reflection (kafka is only on the application's
+// class path), so that kafka carriers take the binary path even though the instrumentation that
+// passes them only implements Getter or Setter
+//
+// the carrier is either the record headers (org.apache.kafka.common.header.Headers) or a record
+// with a headers() method (ProducerRecord and ConsumerRecord)
+class KafkaHeaders implements BinaryGetter<Object>, BinarySetter<Object> {
+
+    private static final Logger logger = LoggerFactory.getLogger(KafkaHeaders.class);
+
+    private static final String HEADERS_CLASS_NAME = "org.apache.kafka.common.header.Headers";
+
+    private static final LoadingCache<Class<?>, Optional<KafkaHeaders>> carrierTypes =
+            CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .build(new KafkaHeadersLoader());
+
+    // null when the carrier is the headers itself
+    private final @Nullable Method headersMethod;
+    private final Method lastHeaderMethod;
+    private final Method valueMethod;
+    private final Method removeMethod;
+    private final Method addMethod;
+
+    private volatile boolean disabled;
+
+    private KafkaHeaders(@Nullable Method headersMethod, Method lastHeaderMethod,
+            Method valueMethod, Method removeMethod, Method addMethod) {
+        this.headersMethod = headersMethod;
+        this.lastHeaderMethod = lastHeaderMethod;
+        this.valueMethod = valueMethod;
+        this.removeMethod = removeMethod;
+        this.addMethod = addMethod;
+    }
+
+    // returns null if the carrier is not a kafka record (or record headers)
+    static @Nullable KafkaHeaders forCarrier(@Nullable Object carrier) {
+        if (carrier == null) {
+            return null;
+        }
+        KafkaHeaders kafkaHeaders = carrierTypes.getUnchecked(carrier.getClass()).orNull();
+        if (kafkaHeaders == null || kafkaHeaders.disabled) {
+            return null;
+        }
+        return kafkaHeaders;
+    }
+
+    @Override
+    @Nullable
+    public byte[] getBytes(Object carrier, String key) {
+        try {
+            Object header = lastHeaderMethod.invoke(getHeaders(carrier), key);
+            return header == null ? null : (byte[]) valueMethod.invoke(header);
+        } catch (Exception e) {
+            disable(e);
+            return null;
+        }
+    }
+
+    @Override
+    public void putBytes(Object carrier, String key, byte[] value) {
+        try {
+            Object headers = getHeaders(carrier);
+            // a record that is resent (e.g. on retry) would otherwise carry more than one header
+            removeMethod.invoke(headers, key);
+            addMethod.invoke(headers, key, value);
+        } catch (Exception e) {
+            disable(e);
+        }
+    }
+
+    private Object getHeaders(Object carrier) throws Exception {
+        return headersMethod == null ? carrier : headersMethod.invoke(carrier);
+    }
+
+    private void disable(Exception e) {
+        // don't keep failing (and logging) on every message
+        disabled = true;
+        logger.warn("disabling binary propagation through kafka headers: {}", e.getMessage(), e);
+    }
+
+    private static class KafkaHeadersLoader
+            extends CacheLoader<Class<?>, Optional<KafkaHeaders>> {
+        @Override
+        public Optional<KafkaHeaders> load(Class<?> carrierClass) {
+            Class<?> headersClass = getHeadersClass(carrierClass);
+            Method headersMethod = null;
+            if (headersClass == null) {
+                headersMethod = getMethod(carrierClass, "headers");
+                if (headersMethod == null) {
+                    return Optional.absent();
+                }
+                headersClass = getHeadersClass(headersMethod.getReturnType());
+                if (headersClass == null) {
+                    return Optional.absent();
+                }
+            }
+            Method lastHeaderMethod = getMethod(headersClass, "lastHeader", String.class);
+            Method removeMethod = getMethod(headersClass, "remove", String.class);
+            Method addMethod = getMethod(headersClass, "add", String.class, byte[].class);
+            if (lastHeaderMethod == null || removeMethod == null || addMethod == null) {
+                return Optional.absent();
+            }
+            Method valueMethod = getMethod(lastHeaderMethod.getReturnType(), "value");
+            if (valueMethod == null || valueMethod.getReturnType() != byte[].class) {
+                return Optional.absent();
+            }
+            return Optional.of(new KafkaHeaders(headersMethod, lastHeaderMethod, valueMethod,
+                    removeMethod, addMethod));
+        }
+
+        // returns the kafka Headers interface if the class is (or implements) it
+        private static @Nullable Class<?> getHeadersClass(Class<?> clazz) {
+            if (clazz.getName().equals(HEADERS_CLASS_NAME)) {
+                return clazz;
+            }
+            for (Class<?> iface : clazz.getInterfaces()) {
+                Class<?> headersClass = getHeadersClass(iface);
+                if (headersClass != null) {
+                    return headersClass;
+                }
+            }
+            Class<?> superclass = clazz.getSuperclass();
+            return superclass == null ? null : getHeadersClass(superclass);
+        }
+
+        private static @Nullable Method getMethod(Class<?> clazz, String name,
+                Class<?>... parameterTypes) {
+            try {
+                return clazz.getMethod(name, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    }
+}
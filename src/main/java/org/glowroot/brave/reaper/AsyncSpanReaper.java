@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.reaper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.brave.metrics.RedMetrics;
+
+// force-finishes async spans and async transactions that were started but never ended (e.g.
+// because the future was cancelled, or because of a bug in the async client), once they are
+// older than the max age, so that they are reported (tagged as abandoned) instead of being held
+// until the jvm exits
+//
+// the pending spans are tracked in a fixed size table, so the memory used for tracking is bounded
+// regardless of how many spans are leaked, spans that are started while the table is full are
+// not tracked (and are counted as untracked)
+//
+// registering claims a free slot with a compare-and-set, and ending clears the slot, so the
+// table is only ever scanned from the reaper thread
+public class AsyncSpanReaper implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncSpanReaper.class);
+
+    // slots tried before giving up on tracking a span
+    private static final int MAX_PROBES = 8;
+
+    private final long maxAgeNanos;
+    private final @Nullable RedMetrics redMetrics;
+
+    private final AtomicReferenceArray<Reapable> slots;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    private final AtomicLong reapedCount = new AtomicLong();
+    private final AtomicLong untrackedCount = new AtomicLong();
+
+    // only accessed by the thread that runs this periodically
+    private long lastReapedCount;
+    private long lastUntrackedCount;
+
+    public AsyncSpanReaper(long maxAgeNanos, int maxPending, @Nullable RedMetrics redMetrics) {
+        this.maxAgeNanos = maxAgeNanos;
+        this.redMetrics = redMetrics;
+        slots = new AtomicReferenceArray<Reapable>(maxPending);
+    }
+
+    // returns the slot index, which needs to be passed to unregister() when the span ends, or -1
+    // if the table is full
+    public int register(Reapable reapable) {
+        int length = slots.length();
+        int start = nextIndex.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int index = (start + i) % length;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, reapable)) {
+                return index;
+            }
+        }
+        untrackedCount.incrementAndGet();
+        return -1;
+    }
+
+    public void unregister(int index, Reapable reapable) {
+        if (index != -1) {
+            slots.compareAndSet(index, reapable, null);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            reap();
+            long reaped = reapedCount.get();
+            long untracked = untrackedCount.get();
+            if (reaped > lastReapedCount || untracked > lastUntrackedCount) {
+                logger.warn("reaped {} abandoned async spans since the last check ({} async spans"
+                        + " were not tracked since too many were pending)",
+                        reaped - lastReapedCount, untracked - lastUntrackedCount);
+            }
+            lastReapedCount = reaped;
+            lastUntrackedCount = untracked;
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    public long getReapedCount() {
+        return reapedCount.get();
+    }
+
+    public long getUntrackedCount() {
+        return untrackedCount.get();
+    }
+
+    private void reap() {
+        long currTick = System.nanoTime();
+        for (int i = 0; i < slots.length(); i++) {
+            Reapable reapable = slots.get(i);
+            if (reapable == null) {
+                continue;
+            }
+            long ageNanos = currTick - reapable.getStartTick();
+            if (ageNanos < maxAgeNanos || !slots.compareAndSet(i, reapable, null)) {
+                continue;
+            }
+            if (reapable.abandon()) {
+                reapedCount.incrementAndGet();
+                if (redMetrics != null) {
+                    redMetrics.record(RedMetrics.ABANDONED, reapable.getMetricKind(), ageNanos,
+                            false);
+                }
+            }
+        }
+    }
+}
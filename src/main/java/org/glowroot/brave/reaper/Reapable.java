@@ -0,0 +1,31 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.reaper;
+
+// an async span (or async transaction) that is tracked by AsyncSpanReaper until it ends
+public interface Reapable {
+
+    // System.nanoTime() when the span started
+    long getStartTick();
+
+    // the RedMetrics kind of the span (e.g. RedMetrics.CLIENT), under which it is counted when
+    // it is reaped
+    String getMetricKind();
+
+    // called from the reaper thread, force-finishes the span and tags it as abandoned, returns
+    // false if the span ended in the meantime
+    boolean abandon();
+}
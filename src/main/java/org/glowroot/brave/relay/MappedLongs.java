@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.relay;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// volatile reads and ordered writes of the longs in a memory-mapped buffer, which ByteBuffer
+// doesn't offer, so that one side of a ring file only sees a position after everything that the
+// other side wrote before publishing it (see SpanRingFile)
+//
+// this goes through Unsafe on the buffer's address, and there is no fallback: plain ByteBuffer
+// access gives no ordering guarantee to another process reading the same mapping (the writer's
+// monitor exit only orders things for threads that enter the same monitor), so a ring file can't
+// be created or opened on a jvm without Unsafe
+//
+// Unsafe is looked up and called reflectively, so that compiling doesn't depend on (or warn about)
+// the internal api
+//
+// the longs need to be 8-byte aligned (which the header offsets are, since mappings start at a
+// page boundary) to be read and written atomically
+class MappedLongs {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedLongs.class);
+
+    private static final @Nullable UnsafeMethods unsafeMethods = UnsafeMethods.create();
+
+    private final UnsafeMethods unsafe;
+    private final long address;
+
+    MappedLongs(ByteBuffer buffer) throws IOException {
+        UnsafeMethods unsafe = unsafeMethods;
+        if (unsafe == null) {
+            throw new IOException("sun.misc.Unsafe is not available, which ring files require");
+        }
+        long address = unsafe.getAddress(buffer);
+        if (address == 0) {
+            throw new IOException("could not get the address of the memory-mapped buffer");
+        }
+        this.unsafe = unsafe;
+        this.address = address;
+    }
+
+    static boolean isSupported() {
+        return unsafeMethods != null;
+    }
+
+    long getVolatile(int index) {
+        return unsafe.getLongVolatile(address + index);
+    }
+
+    void putOrdered(int index, long value) {
+        unsafe.putOrderedLong(address + index, value);
+    }
+
+    private static class UnsafeMethods {
+
+        private final Object theUnsafe;
+        private final Method getLongVolatileMethod;
+        private final Method putOrderedLongMethod;
+        private final long addressOffset;
+
+        private UnsafeMethods(Object theUnsafe, Method getLongVolatileMethod,
+                Method putOrderedLongMethod, long addressOffset) {
+            this.theUnsafe = theUnsafe;
+            this.getLongVolatileMethod = getLongVolatileMethod;
+            this.putOrderedLongMethod = putOrderedLongMethod;
+            this.addressOffset = addressOffset;
+        }
+
+        private long getAddress(Buffer buffer) {
+            try {
+                Method getLongMethod =
+                        theUnsafe.getClass().getMethod("getLong", Object.class, long.class);
+                return (Long) getLongMethod.invoke(theUnsafe, buffer, addressOffset);
+            } catch (Throwable t) {
+                logger.debug(t.getMessage(), t);
+                return 0;
+            }
+        }
+
+        private long getLongVolatile(long address) {
+            try {
+                return (Long) getLongVolatileMethod.invoke(theUnsafe, null, address);
+            } catch (Exception e) {
+                throw propagate(e);
+            }
+        }
+
+        private void putOrderedLong(long address, long value) {
+            try {
+                putOrderedLongMethod.invoke(theUnsafe, null, address, value);
+            } catch (Exception e) {
+                throw propagate(e);
+            }
+        }
+
+        private static @Nullable UnsafeMethods create() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                // checked up front, since they are not available on every jvm
+                Method getLongVolatileMethod =
+                        unsafeClass.getMethod("getLongVolatile", Object.class, long.class);
+                Method putOrderedLongMethod = unsafeClass.getMethod("putOrderedLong",
+                        Object.class, long.class, long.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Object theUnsafe = field.get(null);
+                long addressOffset = (Long) unsafeClass.getMethod("objectFieldOffset", Field.class)
+                        .invoke(theUnsafe, Buffer.class.getDeclaredField("address"));
+                return new UnsafeMethods(theUnsafe, getLongVolatileMethod, putOrderedLongMethod,
+                        addressOffset);
+            } catch (Throwable t) {
+                logger.debug(t.getMessage(), t);
+                return null;
+            }
+        }
+
+        private static RuntimeException propagate(Exception e) {
+            if (e instanceof InvocationTargetException) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    return (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+            }
+            return new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.relay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.reporter.Reporter;
+
+// reports spans by writing them into this jvm's ring file in the host-shared relay directory,
+// from where the relay ships them to the collector (see SpanRelay), so that each jvm on the host
+// doesn't need its own sender threads, connections and reporter queue
+//
+// spans are encoded on the thread that finishes them, and are dropped when the ring is full
+//
+// when run periodically, this logs the number of spans dropped since the last run
+public class RelayReporter implements Reporter<Span>, Closeable, Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RelayReporter.class);
+
+    private final SpanRingFile ringFile;
+
+    private final AtomicLong droppedSpans = new AtomicLong();
+
+    // only accessed by the thread that runs this periodically
+    private long lastDroppedSpans;
+
+    private RelayReporter(SpanRingFile ringFile) {
+        this.ringFile = ringFile;
+    }
+
+    public static RelayReporter create(File directory, int ringBytes) throws IOException {
+        directory.mkdirs();
+        return new RelayReporter(SpanRingFile.create(directory, ringBytes));
+    }
+
+    @Override
+    public void report(Span span) {
+        if (!ringFile.write(SpanBytesEncoder.JSON_V2.encode(span))) {
+            droppedSpans.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        long dropped = droppedSpans.get();
+        if (dropped > lastDroppedSpans) {
+            logger.warn("dropped {} spans since the last check, since the relay ring file is full"
+                    + " (the relay is not keeping up, or is not running)",
+                    dropped - lastDroppedSpans);
+            lastDroppedSpans = dropped;
+        }
+    }
+
+    public long getDroppedSpans() {
+        return droppedSpans.get();
+    }
+
+    // the file is left for the relay to drain and delete
+    @Override
+    public void close() throws IOException {
+        ringFile.close();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.relay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.reporter.Sender;
+
+// ships the spans that the jvms on this host write into their ring files (see RelayReporter) to
+// the collector, batching spans across all of the jvms into as few messages as possible
+//
+// this runs periodically from a single thread, either in a standalone relay process (see
+// RelayMain) or in one agent jvm on the host that is configured with the relay role
+//
+// the ring files of jvms that have exited are deleted once they have been drained
+public class SpanRelay implements Runnable, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpanRelay.class);
+
+    private final File directory;
+    private final Sender sender;
+
+    // only accessed by the thread that runs this periodically
+    private final Map<File, SpanRingFile> ringFiles = Maps.newHashMap();
+    private long sentSpans;
+
+    public SpanRelay(File directory, Sender sender) {
+        this.directory = directory;
+        this.sender = sender;
+        if (!MappedLongs.isSupported()) {
+            logger.error("sun.misc.Unsafe is not available, so ring files in {} cannot be read",
+                    directory);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            relay();
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    long getSentSpans() {
+        return sentSpans;
+    }
+
+    int getRingFileCount() {
+        return ringFiles.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SpanRingFile ringFile : ringFiles.values()) {
+            ringFile.close();
+        }
+        ringFiles.clear();
+        sender.close();
+    }
+
+    private void relay() throws IOException {
+        openNewRingFiles();
+        int maxBytes = sender.messageMaxBytes();
+        List<byte[]> message = Lists.newArrayList();
+        int messageBytes = 0;
+        Iterator<SpanRingFile> i = ringFiles.values().iterator();
+        while (i.hasNext()) {
+            SpanRingFile ringFile = i.next();
+            // checked before draining, so that nothing written before the writer exited is lost
+            boolean writerGone = ringFile.isWriterGone();
+            while (ringFile.hasUnread()) {
+                messageBytes += ringFile.read(message, maxBytes - messageBytes);
+                if (messageBytes >= maxBytes || ringFile.hasUnread()) {
+                    send(message);
+                    message = Lists.newArrayList();
+                    messageBytes = 0;
+                }
+            }
+            if (writerGone) {
+                ringFile.close();
+                if (!ringFile.getFile().delete()) {
+                    logger.warn("could not delete relay file: {}", ringFile.getFile());
+                }
+                i.remove();
+            }
+        }
+        if (!message.isEmpty()) {
+            send(message);
+        }
+    }
+
+    private void openNewRingFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(SpanRingFile.FILE_SUFFIX)
+                    || ringFiles.containsKey(file)) {
+                continue;
+            }
+            try {
+                SpanRingFile ringFile = SpanRingFile.open(file);
+                // null until its writer has finished initializing it
+                if (ringFile != null) {
+                    ringFiles.put(file, ringFile);
+                }
+            } catch (IOException e) {
+                // e.g. deleted in the meantime
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void send(List<byte[]> message) {
+        try {
+            sender.sendSpans(message).execute();
+            sentSpans += message.size();
+        } catch (Exception e) {
+            logger.warn("could not send {} spans to the collector: {}", message.size(),
+                    e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.relay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// a memory-mapped ring of encoded spans, written by one agent jvm and read by the relay (see
+// SpanRelay), which is usually a different process
+//
+// the file starts with a header holding the capacity and two ever increasing positions: the write
+// position, which is only written by the writer, and the read position, which is only written by
+// the reader, so neither side ever blocks the other
+//
+// each record is the span length followed by the encoded span, and a record that doesn't fit
+// before the end of the ring starts over at the beginning (after a wrap marker, if there is room
+// for one)
+//
+// the positions are published with ordered writes and read with volatile reads (see MappedLongs),
+// so each side sees the records (or the free space) covered by a position once it sees the position
+//
+// the writer holds an exclusive lock on the file for as long as it has it open, which is how the
+// relay knows when the writer's jvm has exited and the file can be deleted once it is drained
+class SpanRingFile implements Closeable {
+
+    static final String FILE_SUFFIX = ".ring";
+
+    // counted for each span read, as an upper bound of its overhead in an encoded list of spans
+    static final int LIST_OVERHEAD_PER_SPAN = 2;
+
+    private static final int MAGIC = 0x62726c79;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int WRITE_POSITION_OFFSET = 8;
+    private static final int READ_POSITION_OFFSET = 16;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int WRAP = -1;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final MappedLongs positions;
+    private final int capacity;
+
+    // non-null for the writer, and for the reader once the writer has exited
+    private @Nullable FileLock lock;
+
+    // each position is only written by one side, which keeps its own copy of it
+    private long position;
+
+    private SpanRingFile(File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer,
+            MappedLongs positions, int capacity, @Nullable FileLock lock, long position) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.buffer = buffer;
+        this.positions = positions;
+        this.capacity = capacity;
+        this.lock = lock;
+        this.position = position;
+    }
+
+    static SpanRingFile create(File directory, int capacity) throws IOException {
+        File file = File.createTempFile("spans-", FILE_SUFFIX, directory);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // locked before the header is written, so the relay never sees an initialized file
+            // that isn't locked by a live writer
+            FileLock lock = channel.lock();
+            randomAccessFile.setLength(HEADER_SIZE + capacity);
+            MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            return new SpanRingFile(file, randomAccessFile, buffer, new MappedLongs(buffer),
+                    capacity, lock, 0);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    // returns null if the file is not (yet) fully initialized by its writer
+    static @Nullable SpanRingFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < HEADER_SIZE
+                    || randomAccessFile.readInt() != MAGIC) {
+                randomAccessFile.close();
+                return null;
+            }
+            int capacity = randomAccessFile.readInt();
+            MappedByteBuffer buffer = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+            MappedLongs positions = new MappedLongs(buffer);
+            return new SpanRingFile(file, randomAccessFile, buffer, positions, capacity, null,
+                    positions.getVolatile(READ_POSITION_OFFSET));
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    // returns false if there is not enough room, in which case the span is dropped
+    synchronized boolean write(byte[] span) {
+        int recordSize = 4 + span.length;
+        int offset = (int) (position % capacity);
+        int remaining = capacity - offset;
+        int needed = remaining < recordSize ? remaining + recordSize : recordSize;
+        long readPosition = positions.getVolatile(READ_POSITION_OFFSET);
+        if (needed > capacity - (position - readPosition)) {
+            return false;
+        }
+        if (remaining < recordSize) {
+            if (remaining >= 4) {
+                buffer.putInt(HEADER_SIZE + offset, WRAP);
+            }
+            offset = 0;
+        }
+        buffer.putInt(HEADER_SIZE + offset, span.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(HEADER_SIZE + offset + 4);
+        target.put(span);
+        position += needed;
+        // published last, so the reader never sees a partial record
+        positions.putOrdered(WRITE_POSITION_OFFSET, position);
+        return true;
+    }
+
+    // reads the available spans, up to roughly maxBytes (but always at least one span if any are
+    // available), and returns the number of bytes read (including LIST_OVERHEAD_PER_SPAN)
+    int read(List<byte[]> spans, int maxBytes) {
+        long writePosition = positions.getVolatile(WRITE_POSITION_OFFSET);
+        int bytes = 0;
+        while (position < writePosition) {
+            int offset = (int) (position % capacity);
+            int remaining = capacity - offset;
+            if (remaining < 4) {
+                position += remaining;
+                continue;
+            }
+            int length = buffer.getInt(HEADER_SIZE + offset);
+            if (length == WRAP) {
+                position += remaining;
+                continue;
+            }
+            if (length < 0 || length > remaining - 4) {
+                // the file is corrupt (e.g. the writer's jvm crashed mid-write after wrapping),
+                // so skip whatever is left
+                position = writePosition;
+                break;
+            }
+            if (bytes > 0 && bytes + length + LIST_OVERHEAD_PER_SPAN > maxBytes) {
+                break;
+            }
+            byte[] span = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(HEADER_SIZE + offset + 4);
+            source.get(span);
+            spans.add(span);
+            bytes += length + LIST_OVERHEAD_PER_SPAN;
+            position += 4 + length;
+        }
+        // published after the records are read, so the writer never overwrites a record that is
+        // still being read
+        positions.putOrdered(READ_POSITION_OFFSET, position);
+        return bytes;
+    }
+
+    boolean hasUnread() {
+        return position < positions.getVolatile(WRITE_POSITION_OFFSET);
+    }
+
+    // only called by the reader, returns true if the writer has closed the file or exited
+    boolean isWriterGone() throws IOException {
+        if (lock != null) {
+            return true;
+        }
+        try {
+            lock = randomAccessFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // the writer is in this jvm
+            return false;
+        }
+        return lock != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (lock != null) {
+            lock.release();
+        }
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.sampler;
+
+import brave.sampler.Sampler;
+
+// sampler whose rate can be changed at runtime (by OverheadBudgetController)
+//
+// like brave's BoundarySampler, the decision is derived from the trace id, so it costs a single
+// volatile read and no shared writes on the hot path
+public class AdaptiveSampler extends Sampler {
+
+    private static final long PRECISION = 1000000;
+
+    private volatile long boundary;
+    private volatile float rate;
+
+    public AdaptiveSampler(float rate) {
+        setRate(rate);
+    }
+
+    @Override
+    public boolean isSampled(long traceId) {
+        return (traceId & Long.MAX_VALUE) % PRECISION < boundary;
+    }
+
+    public float getRate() {
+        return rate;
+    }
+
+    void setRate(float rate) {
+        this.rate = rate;
+        boundary = (long) (rate * PRECISION);
+    }
+}
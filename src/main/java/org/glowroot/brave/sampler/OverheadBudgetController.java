@@ -0,0 +1,368 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.sampler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.reporter.InMemoryReporterMetrics;
+
+// periodically estimates the agent's own cost and adjusts the AdaptiveSampler rate to keep that
+// cost within the configured budget
+//
+// the cost is estimated from the rate of finished (sampled) spans, the fill level and dropped spans
+// of the reporter queues (when spans are queued for a collector), and the cpu time and allocated
+// bytes of the agent's reporting threads (which is where spans are encoded and sent, so this
+// scales directly with the sample rate)
+public class OverheadBudgetController implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverheadBudgetController.class);
+
+    // weight given to the newest measurement, the rest comes from the previous smoothed value, so a
+    // single burst only moves the rate part way
+    private static final double SMOOTHING = 0.3;
+    // no change is made while the target rate is within this distance of the current rate, which
+    // avoids oscillating around the budget
+    private static final double DEADBAND = 0.1;
+    // raising the rate is done gradually, since overshooting is more harmful than undershooting
+    private static final double MAX_INCREASE_FACTOR = 1.5;
+    private static final float MIN_INCREASE_BASE = 0.0001f;
+    // reporter queue fill level which is considered to be fully using the budget
+    private static final double QUEUE_HIGH_WATER = 0.5;
+
+    private static final String[] AGENT_THREAD_NAME_PREFIXES = {"AsyncReporter", "Brave-Agent-"};
+
+    private final AdaptiveSampler sampler;
+    private final float minRate;
+    private final float maxRate;
+    private final double maxSpansPerSecond;
+    private final double maxCpuPercent;
+    private final double maxAllocatedBytesPerSecond;
+    private final SpanCountingReporter spanCounter;
+    private final ImmutableList<ReporterQueue> reporterQueues;
+    private final Ticker ticker;
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final int availableProcessors = Runtime.getRuntime().availableProcessors();
+    // checked once, since reading an unsupported counter throws UnsupportedOperationException
+    private final boolean measureCpu;
+    private final boolean measureAllocation;
+
+    // the fields below are only accessed by the (single) scheduling thread
+    private long lastTick;
+    private long lastSpanCount;
+    private long lastDroppedSpans;
+    private Map<Long, long[]> lastAgentThreadUsage;
+    private double smoothedUnitPressure = Double.NaN;
+
+    private volatile @Nullable Decision lastDecision;
+
+    public OverheadBudgetController(AdaptiveSampler sampler, float minRate, float maxRate,
+            double maxSpansPerSecond, double maxCpuPercent, double maxAllocatedBytesPerSecond,
+            SpanCountingReporter spanCounter, List<ReporterQueue> reporterQueues, Ticker ticker) {
+        this.sampler = sampler;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.maxSpansPerSecond = maxSpansPerSecond;
+        this.maxCpuPercent = maxCpuPercent;
+        this.maxAllocatedBytesPerSecond = maxAllocatedBytesPerSecond;
+        this.spanCounter = spanCounter;
+        this.reporterQueues = ImmutableList.copyOf(reporterQueues);
+        this.ticker = ticker;
+        measureCpu = maxCpuPercent > 0 && isCpuTimeAvailable();
+        measureAllocation = maxAllocatedBytesPerSecond > 0 && isAllocatedBytesAvailable();
+        lastTick = ticker.read();
+        lastSpanCount = spanCounter.getSpanCount();
+        lastDroppedSpans = getDroppedSpans();
+        lastAgentThreadUsage = readAgentThreadUsage();
+    }
+
+    @Override
+    public void run() {
+        try {
+            runInternal();
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    // exported so that it is possible to see why the rate changed
+    public @Nullable Decision getLastDecision() {
+        return lastDecision;
+    }
+
+    private void runInternal() {
+        long currTick = ticker.read();
+        double seconds = (currTick - lastTick) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        lastTick = currTick;
+
+        long spanCount = spanCounter.getSpanCount();
+        double spansPerSecond = (spanCount - lastSpanCount) / seconds;
+        lastSpanCount = spanCount;
+        long totalDroppedSpans = getDroppedSpans();
+        long droppedSpans = totalDroppedSpans - lastDroppedSpans;
+        lastDroppedSpans = totalDroppedSpans;
+        // the fullest queue, since that is the one that starts dropping spans first
+        double queueFill = 0;
+        for (ReporterQueue reporterQueue : reporterQueues) {
+            queueFill = Math.max(queueFill, reporterQueue.getFill());
+        }
+        Map<Long, long[]> agentThreadUsage = readAgentThreadUsage();
+        long cpuNanos = 0;
+        long allocatedBytes = 0;
+        for (Map.Entry<Long, long[]> entry : agentThreadUsage.entrySet()) {
+            long[] curr = entry.getValue();
+            long[] prev = lastAgentThreadUsage.get(entry.getKey());
+            cpuNanos += prev == null ? curr[0] : curr[0] - prev[0];
+            allocatedBytes += prev == null ? curr[1] : curr[1] - prev[1];
+        }
+        lastAgentThreadUsage = agentThreadUsage;
+        double cpuPercent = 100 * cpuNanos / (seconds * 1e9 * availableProcessors);
+        double allocatedBytesPerSecond = allocatedBytes / seconds;
+
+        double pressure = 0;
+        String reason = "within budget";
+        if (maxSpansPerSecond > 0 && spansPerSecond / maxSpansPerSecond > pressure) {
+            pressure = spansPerSecond / maxSpansPerSecond;
+            reason = "spans/sec";
+        }
+        if (maxCpuPercent > 0 && cpuPercent / maxCpuPercent > pressure) {
+            pressure = cpuPercent / maxCpuPercent;
+            reason = "agent cpu";
+        }
+        if (maxAllocatedBytesPerSecond > 0
+                && allocatedBytesPerSecond / maxAllocatedBytesPerSecond > pressure) {
+            pressure = allocatedBytesPerSecond / maxAllocatedBytesPerSecond;
+            reason = "agent allocation";
+        }
+        if (queueFill / QUEUE_HIGH_WATER > pressure) {
+            pressure = queueFill / QUEUE_HIGH_WATER;
+            reason = "reporter queue";
+        }
+        if (droppedSpans > 0 && pressure < 2) {
+            // the reporter is already shedding spans, so at least halve the rate
+            pressure = 2;
+            reason = "reporter dropped spans";
+        }
+
+        float prevRate = sampler.getRate();
+        // the raw pressure drops as soon as the rate is lowered, so what is smoothed is the
+        // pressure normalized to a sample rate of 1.0, which stays stable across rate changes
+        double unitPressure = prevRate == 0 ? pressure : pressure / prevRate;
+        if (Double.isNaN(smoothedUnitPressure)) {
+            smoothedUnitPressure = unitPressure;
+        } else {
+            smoothedUnitPressure =
+                    SMOOTHING * unitPressure + (1 - SMOOTHING) * smoothedUnitPressure;
+        }
+        double targetRate = smoothedUnitPressure == 0 ? maxRate : 1 / smoothedUnitPressure;
+
+        float newRate = prevRate;
+        if (targetRate < prevRate * (1 - DEADBAND)) {
+            newRate = (float) targetRate;
+        } else if (targetRate > prevRate * (1 + DEADBAND)) {
+            newRate = (float) Math.min(targetRate,
+                    Math.max(prevRate, MIN_INCREASE_BASE) * MAX_INCREASE_FACTOR);
+        }
+        newRate = Math.max(minRate, Math.min(maxRate, newRate));
+        Decision decision = new Decision(prevRate, newRate, reason, pressure, spansPerSecond,
+                cpuPercent, allocatedBytesPerSecond, queueFill, droppedSpans);
+        if (newRate != prevRate) {
+            sampler.setRate(newRate);
+            logger.info("sample rate changed: {}", decision);
+        } else {
+            logger.debug("sample rate unchanged: {}", decision);
+        }
+        lastDecision = decision;
+    }
+
+    private long getDroppedSpans() {
+        long droppedSpans = 0;
+        for (ReporterQueue reporterQueue : reporterQueues) {
+            droppedSpans += reporterQueue.metrics.spansDropped();
+        }
+        return droppedSpans;
+    }
+
+    private Map<Long, long[]> readAgentThreadUsage() {
+        Map<Long, long[]> usage = Maps.newHashMap();
+        if (!measureCpu && !measureAllocation) {
+            return usage;
+        }
+        for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds())) {
+            if (threadInfo == null || !isAgentThread(threadInfo.getThreadName())) {
+                continue;
+            }
+            long threadId = threadInfo.getThreadId();
+            // these return -1 if measurement has been disabled since, or the thread has exited
+            long cpuNanos = measureCpu ? threadMXBean.getThreadCpuTime(threadId) : 0;
+            long allocatedBytes = measureAllocation
+                    ? ((com.sun.management.ThreadMXBean) threadMXBean)
+                            .getThreadAllocatedBytes(threadId)
+                    : 0;
+            if (cpuNanos != -1 && allocatedBytes != -1) {
+                usage.put(threadId, new long[] {cpuNanos, allocatedBytes});
+            }
+        }
+        return usage;
+    }
+
+    private boolean isCpuTimeAvailable() {
+        try {
+            if (threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+                return true;
+            }
+        } catch (Throwable t) {
+            logger.debug(t.getMessage(), t);
+        }
+        logger.warn("thread cpu time is not supported or not enabled on this jvm, so the agent's"
+                + " cpu time will not count against the overhead budget");
+        return false;
+    }
+
+    private boolean isAllocatedBytesAvailable() {
+        try {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreadMXBean =
+                        (com.sun.management.ThreadMXBean) threadMXBean;
+                if (sunThreadMXBean.isThreadAllocatedMemorySupported()
+                        && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                    return true;
+                }
+            }
+        } catch (Throwable t) {
+            logger.debug(t.getMessage(), t);
+        }
+        logger.warn("thread allocated memory is not supported or not enabled on this jvm, so the"
+                + " agent's allocations will not count against the overhead budget");
+        return false;
+    }
+
+    private static boolean isAgentThread(String threadName) {
+        for (String prefix : AGENT_THREAD_NAME_PREFIXES) {
+            if (threadName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // an AsyncReporter queue (there are two when priority lanes are enabled)
+    public static class ReporterQueue {
+
+        private final InMemoryReporterMetrics metrics;
+        private final int queuedMaxSpans;
+
+        public ReporterQueue(InMemoryReporterMetrics metrics, int queuedMaxSpans) {
+            this.metrics = metrics;
+            this.queuedMaxSpans = queuedMaxSpans;
+        }
+
+        public InMemoryReporterMetrics getMetrics() {
+            return metrics;
+        }
+
+        private double getFill() {
+            return metrics.queuedSpans() / (double) queuedMaxSpans;
+        }
+    }
+
+    public static class Decision {
+
+        private final float prevRate;
+        private final float newRate;
+        private final String reason;
+        private final double pressure;
+        private final double spansPerSecond;
+        private final double cpuPercent;
+        private final double allocatedBytesPerSecond;
+        private final double queueFill;
+        private final long droppedSpans;
+
+        private Decision(float prevRate, float newRate, String reason, double pressure,
+                double spansPerSecond, double cpuPercent, double allocatedBytesPerSecond,
+                double queueFill, long droppedSpans) {
+            this.prevRate = prevRate;
+            this.newRate = newRate;
+            this.reason = reason;
+            this.pressure = pressure;
+            this.spansPerSecond = spansPerSecond;
+            this.cpuPercent = cpuPercent;
+            this.allocatedBytesPerSecond = allocatedBytesPerSecond;
+            this.queueFill = queueFill;
+            this.droppedSpans = droppedSpans;
+        }
+
+        public float getPrevRate() {
+            return prevRate;
+        }
+
+        public float getNewRate() {
+            return newRate;
+        }
+
+        // the budget dimension with the highest pressure
+        public String getReason() {
+            return reason;
+        }
+
+        // ratio of measured cost to budget during the last interval (1.0 means exactly at budget)
+        public double getPressure() {
+            return pressure;
+        }
+
+        public double getSpansPerSecond() {
+            return spansPerSecond;
+        }
+
+        public double getCpuPercent() {
+            return cpuPercent;
+        }
+
+        public double getAllocatedBytesPerSecond() {
+            return allocatedBytesPerSecond;
+        }
+
+        public double getQueueFill() {
+            return queueFill;
+        }
+
+        public long getDroppedSpans() {
+            return droppedSpans;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rate=%s->%s, reason=%s, pressure=%.2f, spans/sec=%.1f,"
+                    + " agent cpu=%.3f%%, agent allocation=%.0f bytes/sec, queue fill=%.2f,"
+                    + " dropped spans=%d", prevRate, newRate, reason, pressure, spansPerSecond,
+                    cpuPercent, allocatedBytesPerSecond, queueFill, droppedSpans);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.sampler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+// counts the (sampled) spans as they finish, before they are handed to the sink, so that the
+// span rate seen by OverheadBudgetController doesn't depend on where spans are reported to (the
+// reporter metrics of the collector queues are not populated when spans go to the console, to
+// flight recorder only or to the relay, and with priority lanes they are split between lanes)
+public class SpanCountingReporter implements Reporter<Span>, Closeable {
+
+    private final Reporter<Span> delegate;
+
+    private final AtomicLong spanCount = new AtomicLong();
+
+    public SpanCountingReporter(Reporter<Span> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void report(Span span) {
+        spanCount.incrementAndGet();
+        delegate.report(span);
+    }
+
+    public long getSpanCount() {
+        return spanCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+}
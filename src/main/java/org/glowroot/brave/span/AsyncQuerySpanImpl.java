@@ -20,50 +20,76 @@ import java.util.concurrent.TimeUnit;
 import brave.Span;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.brave.reaper.AsyncSpanReaper;
+import org.glowroot.brave.reaper.Reapable;
 import org.glowroot.xyzzy.engine.impl.NopTransactionService;
 import org.glowroot.xyzzy.instrumentation.api.AsyncQuerySpan;
 import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
 import org.glowroot.xyzzy.instrumentation.api.Setter;
 import org.glowroot.xyzzy.instrumentation.api.Timer;
 
-public class AsyncQuerySpanImpl implements AsyncQuerySpan {
+public class AsyncQuerySpanImpl implements AsyncQuerySpan, Reapable {
 
     private final Span span;
-
-    public AsyncQuerySpanImpl(Span span) {
+    private final QueryMessageSupplier queryMessageSupplier;
+    private final String metricName;
+    private final @Nullable RedMetrics redMetrics;
+    private final @Nullable PauseDetector pauseDetector;
+    private final long startTick;
+
+    private final @Nullable AsyncSpanReaper reaper;
+    private final int reaperIndex;
+
+    // guarded by this, so that the span is only finished once, even when the reaper races with
+    // (or precedes) the instrumentation ending the span
+    private boolean finished;
+
+    public AsyncQuerySpanImpl(Span span, QueryMessageSupplier queryMessageSupplier,
+            String metricName, @Nullable RedMetrics redMetrics,
+            @Nullable PauseDetector pauseDetector, @Nullable AsyncSpanReaper reaper) {
         this.span = span;
+        this.queryMessageSupplier = queryMessageSupplier;
+        this.metricName = metricName;
+        this.redMetrics = redMetrics;
+        this.pauseDetector = pauseDetector;
+        startTick = System.nanoTime();
+        this.reaper = reaper;
+        reaperIndex = reaper == null || span.isNoop() ? -1 : reaper.register(this);
     }
 
     @Override
     public void end() {
-        span.finish();
+        finish(false);
     }
 
     @Override
     public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
-        span.finish();
+        finish(false);
     }
 
     @Override
     public void endWithError(Throwable t) {
         span.error(t);
-        span.finish();
+        finish(true);
     }
 
     @Override
     public void endWithError(String message) {
-        span.finish();
+        finish(true);
     }
 
     @Override
     public void endWithError(@Nullable String message, Throwable t) {
         span.error(t);
-        span.finish();
+        finish(true);
     }
 
     @Override
     public void endWithInfo(Throwable t) {
-        span.finish();
+        finish(false);
     }
 
     @Override
@@ -72,8 +98,8 @@ public class AsyncQuerySpanImpl implements AsyncQuerySpan {
     }
 
     @Override
-    public @Nullable Object getMessageSupplier() {
-        return null;
+    public Object getMessageSupplier() {
+        return queryMessageSupplier;
     }
 
     @Override
@@ -100,4 +126,51 @@ public class AsyncQuerySpanImpl implements AsyncQuerySpan {
     @Override
     @Deprecated
     public <R> void extractFromResponse(R response, Getter<R> getter) {}
+
+    @Override
+    public long getStartTick() {
+        return startTick;
+    }
+
+    @Override
+    public String getMetricKind() {
+        return RedMetrics.QUERY;
+    }
+
+    // the duration of an abandoned span is not meaningful, so it is not recorded in the RED
+    // metrics (see AsyncSpanReaper)
+    @Override
+    public boolean abandon() {
+        if (!markFinished()) {
+            return false;
+        }
+        span.tag("abandoned", "true");
+        MessageTags.apply(span, queryMessageSupplier);
+        span.finish();
+        return true;
+    }
+
+    private void finish(boolean error) {
+        if (!markFinished()) {
+            return;
+        }
+        if (reaper != null) {
+            reaper.unregister(reaperIndex, this);
+        }
+        MessageTags.apply(span, queryMessageSupplier);
+        long endTick = System.nanoTime();
+        PauseTags.apply(span, pauseDetector, startTick, endTick);
+        span.finish();
+        if (redMetrics != null) {
+            redMetrics.recordQuery(metricName, endTick - startTick, error);
+        }
+    }
+
+    private synchronized boolean markFinished() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        return true;
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.span;
+
+import java.util.Map;
+
+import brave.Span;
+import com.google.common.collect.Maps;
+
+// errors logged by the application during a transaction (e.g. through the logback, log4j and jul
+// instrumentation), which are added as annotations on the root span when it finishes
+//
+// identical messages are recorded once (at the time of the first occurrence) along with a count,
+// and the number of distinct messages and their length are capped, so that a transaction that logs
+// errors in a loop doesn't produce thousands of annotations or dominate the span size
+//
+// not thread safe, see IncomingSpanImpl
+class ErrorLogs {
+
+    static final int MAX_MESSAGES = 20;
+    static final int MAX_MESSAGE_LENGTH = 500;
+
+    private final Map<String, ErrorLog> errorLogs = Maps.newLinkedHashMap();
+
+    // error logs whose message was not already recorded once the cap was reached
+    private int droppedCount;
+
+    void add(String message, long timestampMicros) {
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            message = message.substring(0, MAX_MESSAGE_LENGTH) + "...";
+        }
+        ErrorLog errorLog = errorLogs.get(message);
+        if (errorLog != null) {
+            errorLog.count++;
+        } else if (errorLogs.size() < MAX_MESSAGES) {
+            errorLogs.put(message, new ErrorLog(timestampMicros));
+        } else {
+            droppedCount++;
+        }
+    }
+
+    void apply(Span span) {
+        for (Map.Entry<String, ErrorLog> entry : errorLogs.entrySet()) {
+            ErrorLog errorLog = entry.getValue();
+            String value = "error log: " + entry.getKey();
+            if (errorLog.count > 1) {
+                value += " (logged " + errorLog.count + " times)";
+            }
+            span.annotate(errorLog.timestampMicros, value);
+        }
+        if (droppedCount > 0) {
+            span.tag("error_logs.dropped", Integer.toString(droppedCount));
+        }
+    }
+
+    private static class ErrorLog {
+
+        private final long timestampMicros;
+        private int count = 1;
+
+        private ErrorLog(long timestampMicros) {
+            this.timestampMicros = timestampMicros;
+        }
+    }
+}
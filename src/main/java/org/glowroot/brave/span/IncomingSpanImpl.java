@@ -17,11 +17,19 @@ package org.glowroot.brave.span;
 
 import java.util.concurrent.TimeUnit;
 
+import brave.Clock;
 import brave.Span;
+import brave.propagation.CurrentTraceContext.Scope;
 import brave.propagation.TraceContext;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.brave.profiler.CallTree;
+import org.glowroot.brave.profiler.StackProfiler;
+import org.glowroot.brave.reaper.AsyncSpanReaper;
+import org.glowroot.brave.reaper.Reapable;
 import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.xyzzy.engine.util.TwoPartCompletion;
 import org.glowroot.xyzzy.instrumentation.api.Getter;
@@ -31,26 +39,96 @@ import org.glowroot.xyzzy.instrumentation.api.ThreadContext.ServletRequestInfo;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-public class IncomingSpanImpl implements org.glowroot.xyzzy.instrumentation.api.Span {
+public class IncomingSpanImpl implements org.glowroot.xyzzy.instrumentation.api.Span, Reapable {
 
     private final Span span;
+    // true for http server spans, whose name and tags come from the servlet request info
+    private final boolean http;
 
+    private final String initialTransactionName;
     private final MessageSupplier messageSupplier;
     private final ThreadContextThreadLocal.Holder threadContextHolder;
 
+    private final @Nullable RedMetrics redMetrics;
+    private final @Nullable PauseDetector pauseDetector;
+    private final long startTick;
+
+    private final @Nullable StackProfiler stackProfiler;
+    // only profiled when sampled
+    private final @Nullable CallTree callTree;
+
+    // only tracked when sampled, since the totals are only used to tag the span
+    private final boolean trackThreadUsage;
+    private final @Nullable ThreadUsage threadUsage;
+    // guarded by this, -1 means not available
+    private long totalCpuNanos;
+    private long totalAllocatedBytes;
+
+    // guarded by this, summed across the transaction's auxiliary threads
+    private long totalQueueWaitNanos;
+    private long maxQueueWaitNanos;
+    private int queueWaitCount;
+
+    // the scope of the span on the thread that started it, closed when the span ends on that thread
+    private final @Nullable Scope scope;
+
+    // only the transaction name with the highest priority is kept (e.g. the route set by spring or
+    // jax-rs instrumentation overrides the initial request uri)
+    private volatile @Nullable String transactionName;
+    private volatile int transactionNamePriority = Integer.MIN_VALUE;
+
+    // the threshold with the highest priority is kept, -1 means the stuck transaction watchdog's
+    // default threshold applies
+    private volatile long slowThresholdNanos = -1;
+    private volatile int slowThresholdPriority = Integer.MIN_VALUE;
+
     private volatile @Nullable ServletRequestInfo servletRequestInfo;
 
     private volatile @MonotonicNonNull String user;
 
     private volatile @Nullable Throwable exception;
+    private volatile @Nullable String errorMessage;
+    private volatile boolean error;
+    // true once the span itself has been marked with the error (by endWithError(Throwable))
+    private volatile boolean spanError;
 
     private volatile @Nullable TwoPartCompletion asyncCompletion;
 
-    public IncomingSpanImpl(Span span, MessageSupplier messageSupplier,
-            ThreadContextThreadLocal.Holder threadContextHolder) {
+    // written under the lock, so that the span is only finished once, even when the reaper races
+    // with the async transaction completing
+    private volatile boolean finished;
+
+    // non-null when async transactions that are never completed are reaped, see AsyncSpanReaper
+    private final @Nullable AsyncSpanReaper reaper;
+    private volatile int reaperIndex = -1;
+
+    // guarded by this, created on the first error log
+    private @Nullable ErrorLogs errorLogs;
+
+    public IncomingSpanImpl(Span span, boolean http, String transactionName,
+            MessageSupplier messageSupplier, ThreadContextThreadLocal.Holder threadContextHolder,
+            @Nullable Scope scope, @Nullable RedMetrics redMetrics,
+            @Nullable PauseDetector pauseDetector, @Nullable StackProfiler stackProfiler,
+            @Nullable AsyncSpanReaper reaper, boolean threadUsage) {
         this.span = span;
+        this.http = http;
+        initialTransactionName = transactionName;
         this.messageSupplier = messageSupplier;
         this.threadContextHolder = threadContextHolder;
+        this.scope = scope;
+        this.redMetrics = redMetrics;
+        this.pauseDetector = pauseDetector;
+        startTick = System.nanoTime();
+        this.stackProfiler = stackProfiler;
+        if (stackProfiler == null || span.isNoop()) {
+            callTree = null;
+        } else {
+            callTree = new CallTree();
+            stackProfiler.addCurrentThread(callTree);
+        }
+        trackThreadUsage = threadUsage && !span.isNoop() && ThreadUsage.isAvailable();
+        this.threadUsage = trackThreadUsage ? ThreadUsage.start() : null;
+        this.reaper = reaper;
     }
 
     @Override
@@ -66,17 +144,23 @@ public class IncomingSpanImpl implements org.glowroot.xyzzy.instrumentation.api.
     @Override
     public void endWithError(Throwable t) {
         span.error(t);
+        spanError = true;
+        error = true;
         endInternal();
     }
 
     @Override
     public void endWithError(@Nullable String message) {
+        errorMessage = message;
+        error = true;
         endInternal();
     }
 
     @Override
     public void endWithError(@Nullable String message, Throwable t) {
         span.error(t);
+        spanError = true;
+        error = true;
         endInternal();
     }
 
@@ -108,6 +192,35 @@ public class IncomingSpanImpl implements org.glowroot.xyzzy.instrumentation.api.
         return span.context();
     }
 
+    @Override
+    public long getStartTick() {
+        return startTick;
+    }
+
+    public String getTransactionName() {
+        String transactionName = this.transactionName;
+        return transactionName == null ? initialTransactionName : transactionName;
+    }
+
+    public long getSlowThresholdNanos() {
+        return slowThresholdNanos;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // called when the application logs an error during the transaction (on any of its threads)
+    public synchronized void addErrorLog(String message, Clock clock) {
+        if (span.isNoop() || finished) {
+            return;
+        }
+        if (errorLogs == null) {
+            errorLogs = new ErrorLogs();
+        }
+        errorLogs.add(message, clock.currentTimeMicroseconds());
+    }
+
     public @Nullable ServletRequestInfo getServletRequestInfo() {
         return servletRequestInfo;
     }
@@ -116,17 +229,70 @@ public class IncomingSpanImpl implements org.glowroot.xyzzy.instrumentation.api.
         this.servletRequestInfo = servletRequestInfo;
     }
 
+    // called on an auxiliary thread when the transaction continues on it, queueWaitNanos is the
+    // time since the work was handed off to the auxiliary thread, and the returned value needs to
+    // be passed to auxThreadEnded()
+    public @Nullable ThreadUsage auxThreadStarted(long queueWaitNanos) {
+        if (redMetrics != null) {
+            redMetrics.record(RedMetrics.QUEUE, getExecutorName(Thread.currentThread().getName()),
+                    queueWaitNanos, false);
+        }
+        if (!span.isNoop()) {
+            addQueueWait(queueWaitNanos);
+        }
+        if (stackProfiler != null && callTree != null) {
+            stackProfiler.addCurrentThread(callTree);
+        }
+        return trackThreadUsage ? ThreadUsage.start() : null;
+    }
+
+    // called on an auxiliary thread when the transaction no longer continues on it
+    public void auxThreadEnded(@Nullable ThreadUsage auxThreadUsage) {
+        if (stackProfiler != null && callTree != null) {
+            stackProfiler.removeCurrentThread(callTree);
+        }
+        if (auxThreadUsage != null) {
+            addThreadUsage(auxThreadUsage);
+        }
+    }
+
     public void setAsync() {
         asyncCompletion = new TwoPartCompletion();
+        if (reaper != null && !span.isNoop()) {
+            reaperIndex = reaper.register(this);
+        }
     }
 
     public void setAsyncComplete() {
         checkNotNull(asyncCompletion);
         if (asyncCompletion.completePart1()) {
-            span.finish();
+            finish();
+        }
+    }
+
+    public synchronized void setTransactionName(String transactionName, int priority) {
+        if (priority > transactionNamePriority) {
+            this.transactionName = transactionName;
+            transactionNamePriority = priority;
         }
     }
 
+    public synchronized void setSlowThreshold(long thresholdNanos, int priority) {
+        if (priority > slowThresholdPriority) {
+            slowThresholdNanos = thresholdNanos;
+            slowThresholdPriority = priority;
+        }
+    }
+
+    // finishes the span as of when the last of its messages ended, instead of now, for batch
+    // consumption (see MessageBatcher), error is true if any of the messages ended with an error
+    public void endAt(long endTick, long endMicros, boolean error) {
+        if (error) {
+            this.error = true;
+        }
+        finish(endTick, endMicros);
+    }
+
     public void setUser(@Nullable String user) {
         this.user = user;
     }
@@ -135,12 +301,192 @@ public class IncomingSpanImpl implements org.glowroot.xyzzy.instrumentation.api.
         if (exception == null) {
             exception = t;
         }
+        error = true;
     }
 
     private void endInternal() {
         threadContextHolder.set(null);
+        if (stackProfiler != null && callTree != null) {
+            stackProfiler.removeCurrentThread(callTree);
+        }
+        if (threadUsage != null) {
+            addThreadUsage(threadUsage);
+        }
+        if (scope != null) {
+            scope.close();
+        }
         if (asyncCompletion == null || asyncCompletion.completePart2()) {
-            span.finish();
+            finish();
+        }
+    }
+
+    @Override
+    public String getMetricKind() {
+        return http ? RedMetrics.SERVER : RedMetrics.INCOMING;
+    }
+
+    // the duration of an abandoned transaction is not meaningful, so it is not recorded in the RED
+    // metrics (see AsyncSpanReaper)
+    @Override
+    public boolean abandon() {
+        if (!markFinished()) {
+            return false;
+        }
+        span.tag("abandoned", "true");
+        finishSpan(false, System.nanoTime(), 0);
+        return true;
+    }
+
+    public @Nullable AsyncSpanReaper getReaper() {
+        return reaper;
+    }
+
+    private void finish() {
+        finish(System.nanoTime(), 0);
+    }
+
+    private void finish(long endTick, long endMicros) {
+        if (!markFinished()) {
+            // already force-finished by the reaper
+            return;
+        }
+        if (reaper != null) {
+            reaper.unregister(reaperIndex, this);
+        }
+        finishSpan(true, endTick, endMicros);
+    }
+
+    // endMicros is 0 to finish the span now
+    private void finishSpan(boolean recordMetrics, long endTick, long endMicros) {
+        String name = http ? applyServletRequestInfo() : getTransactionName();
+        span.name(name);
+        MessageTags.apply(span, messageSupplier);
+        long durationNanos = endTick - startTick;
+        if (stackProfiler != null && callTree != null
+                && durationNanos >= stackProfiler.getThresholdNanos()
+                && callTree.getSampleCount() > 0) {
+            span.tag("profile", callTree.toString());
+        }
+        if (error && !spanError) {
+            tagError();
+        }
+        if (slowThresholdNanos != -1 && durationNanos >= slowThresholdNanos) {
+            // exceeded the slow threshold set by instrumentation, see PriorityLaneReporter
+            span.tag("slow", "true");
+        }
+        if (trackThreadUsage) {
+            tagThreadUsage();
+        }
+        tagQueueWait();
+        annotateErrorLogs();
+        PauseTags.apply(span, pauseDetector, startTick, endTick);
+        if (endMicros == 0) {
+            SpanFinisher.finishRoot(span);
+        } else {
+            SpanFinisher.finishRoot(span, endMicros);
+        }
+        if (recordMetrics && redMetrics != null) {
+            // recorded regardless of sampling
+            redMetrics.record(http ? RedMetrics.SERVER : RedMetrics.INCOMING, name,
+                    durationNanos, error);
+        }
+    }
+
+    private synchronized boolean markFinished() {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        return true;
+    }
+
+    // the transaction was marked with an error through setTransactionError() or
+    // endWithError(String), which is tagged the same as endWithError(Throwable)
+    private void tagError() {
+        Throwable exception = this.exception;
+        if (exception != null) {
+            span.error(exception);
+            return;
+        }
+        String errorMessage = this.errorMessage;
+        span.tag("error", errorMessage == null ? "" : errorMessage);
+    }
+
+    private synchronized void addThreadUsage(ThreadUsage threadUsage) {
+        totalCpuNanos = add(totalCpuNanos, threadUsage.getCpuNanosSinceStart());
+        totalAllocatedBytes = add(totalAllocatedBytes, threadUsage.getAllocatedBytesSinceStart());
+    }
+
+    private synchronized void addQueueWait(long queueWaitNanos) {
+        totalQueueWaitNanos += queueWaitNanos;
+        maxQueueWaitNanos = Math.max(maxQueueWaitNanos, queueWaitNanos);
+        queueWaitCount++;
+    }
+
+    private synchronized void tagQueueWait() {
+        if (queueWaitCount > 0) {
+            span.tag("executor.queue_wait_nanos", Long.toString(totalQueueWaitNanos));
+            span.tag("executor.max_queue_wait_nanos", Long.toString(maxQueueWaitNanos));
+            span.tag("executor.queue_wait_count", Integer.toString(queueWaitCount));
+        }
+    }
+
+    private synchronized void annotateErrorLogs() {
+        if (errorLogs != null) {
+            errorLogs.apply(span);
+        }
+    }
+
+    // summed across the thread that started the transaction and all of its auxiliary threads
+    private synchronized void tagThreadUsage() {
+        if (totalCpuNanos != -1) {
+            span.tag("jvm.cpu_time_nanos", Long.toString(totalCpuNanos));
+        }
+        if (totalAllocatedBytes != -1) {
+            span.tag("jvm.allocated_bytes", Long.toString(totalAllocatedBytes));
+        }
+    }
+
+    // the span is named "<method> <route>" when the route is known, and otherwise just "<method>",
+    // since the request uri is too high cardinality for a span name
+    private String applyServletRequestInfo() {
+        ServletRequestInfo servletRequestInfo = this.servletRequestInfo;
+        if (servletRequestInfo == null) {
+            return getTransactionName();
+        }
+        String method = servletRequestInfo.getMethod();
+        span.tag("http.method", method);
+        span.tag("http.path", servletRequestInfo.getUri());
+        String route = transactionName;
+        if (route == null) {
+            return method;
+        }
+        span.tag("http.route", route);
+        return method + " " + route;
+    }
+
+    // worker threads are named after their executor followed by a sequence number (e.g.
+    // "pool-1-thread-3" or "http-nio-8080-exec-12"), so stripping the sequence number gives a low
+    // cardinality name for the executor
+    static String getExecutorName(String threadName) {
+        int end = threadName.length();
+        while (end > 0 && Character.isDigit(threadName.charAt(end - 1))) {
+            end--;
+        }
+        while (end > 0 && isSeparator(threadName.charAt(end - 1))) {
+            end--;
+        }
+        return end == 0 ? threadName : threadName.substring(0, end);
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '-' || c == '_' || c == '#' || c == ' ' || c == '.';
+    }
+
+    private static long add(long total, long value) {
+        if (total == -1 || value == -1) {
+            return -1;
         }
+        return total + value;
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.span;
+
+import java.util.List;
+import java.util.Map;
+
+import brave.Span;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.xyzzy.instrumentation.api.Message;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessage;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.internal.ReadableMessage;
+import org.glowroot.xyzzy.instrumentation.api.internal.ReadableQueryMessage;
+
+// renders message suppliers into span tags
+//
+// this is only done right before a sampled span is finished, so that unsampled spans never pay
+// for building the message (which can be expensive, e.g. request headers or bind parameters), and
+// so that instrumentation can still update the supplier up until the span ends
+class MessageTags {
+
+    private MessageTags() {}
+
+    static void apply(Span span, @Nullable MessageSupplier messageSupplier) {
+        if (messageSupplier == null || span.isNoop()) {
+            return;
+        }
+        Message message = messageSupplier.get();
+        if (message instanceof ReadableMessage) {
+            addDetail(span, "", ((ReadableMessage) message).getDetail());
+        }
+    }
+
+    static void apply(Span span, @Nullable QueryMessageSupplier queryMessageSupplier) {
+        if (queryMessageSupplier == null || span.isNoop()) {
+            return;
+        }
+        QueryMessage queryMessage = queryMessageSupplier.get();
+        if (queryMessage instanceof ReadableQueryMessage) {
+            ReadableQueryMessage readableQueryMessage = (ReadableQueryMessage) queryMessage;
+            // jdbc instrumentation renders the bind parameters into the suffix
+            String suffix = readableQueryMessage.getSuffix().trim();
+            if (!suffix.isEmpty()) {
+                span.tag("db.parameters", suffix);
+            }
+            addDetail(span, "", readableQueryMessage.getDetail());
+        }
+    }
+
+    // nested detail maps are flattened into dotted tag keys
+    private static void addDetail(Span span, String keyPrefix, Map<String, ?> detail) {
+        for (Map.Entry<String, ?> entry : detail.entrySet()) {
+            String key = keyPrefix + entry.getKey();
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, ?> nestedDetail = (Map<String, ?>) value;
+                addDetail(span, key + ".", nestedDetail);
+            } else if (value instanceof List) {
+                StringBuilder sb = new StringBuilder();
+                for (Object item : (List<?>) value) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(item);
+                }
+                span.tag(key, sb.toString());
+            } else {
+                span.tag(key, value.toString());
+            }
+        }
+    }
+}
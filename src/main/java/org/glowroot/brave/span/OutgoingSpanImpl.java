@@ -17,53 +17,84 @@ package org.glowroot.brave.span;
 
 import java.util.concurrent.TimeUnit;
 
-import brave.ScopedSpan;
+import brave.propagation.CurrentTraceContext.Scope;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
 import org.glowroot.xyzzy.engine.impl.NopTransactionService;
 import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
 import org.glowroot.xyzzy.instrumentation.api.Setter;
 import org.glowroot.xyzzy.instrumentation.api.Span;
 import org.glowroot.xyzzy.instrumentation.api.Timer;
 
 public class OutgoingSpanImpl implements Span {
 
-    private final ScopedSpan scopedSpan;
+    // null when the wrapper is not pooled
+    private final @Nullable SpanPool pool;
+
+    // these are cleared when the span ends, so that use after end can be detected, and so that a
+    // pooled wrapper doesn't hold on to them
+    private @Nullable brave.Span span;
+    private @Nullable Scope scope;
+    private @Nullable MessageSupplier messageSupplier;
+    private @Nullable String metricName;
+
+    private @Nullable RedMetrics redMetrics;
+    private @Nullable PauseDetector pauseDetector;
+    private long startTick;
+
+    public OutgoingSpanImpl(brave.Span span, Scope scope, MessageSupplier messageSupplier,
+            String metricName, @Nullable RedMetrics redMetrics,
+            @Nullable PauseDetector pauseDetector) {
+        pool = null;
+        init(span, scope, messageSupplier, metricName, redMetrics, pauseDetector);
+    }
+
+    OutgoingSpanImpl(SpanPool pool) {
+        this.pool = pool;
+    }
 
-    public OutgoingSpanImpl(ScopedSpan scopedSpan) {
-        this.scopedSpan = scopedSpan;
+    void init(brave.Span span, Scope scope, MessageSupplier messageSupplier, String metricName,
+            @Nullable RedMetrics redMetrics, @Nullable PauseDetector pauseDetector) {
+        this.span = span;
+        this.scope = scope;
+        this.messageSupplier = messageSupplier;
+        this.metricName = metricName;
+        this.redMetrics = redMetrics;
+        this.pauseDetector = pauseDetector;
+        startTick = System.nanoTime();
     }
 
     @Override
     public void end() {
-        scopedSpan.finish();
+        finish(null, false);
     }
 
     @Override
     public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
-        scopedSpan.finish();
+        finish(null, false);
     }
 
     @Override
     public void endWithError(Throwable t) {
-        scopedSpan.error(t);
-        scopedSpan.finish();
+        finish(t, true);
     }
 
     @Override
     public void endWithError(String message) {
-        scopedSpan.finish();
+        finish(null, true);
     }
 
     @Override
     public void endWithError(@Nullable String message, Throwable t) {
-        scopedSpan.error(t);
-        scopedSpan.finish();
+        finish(t, true);
     }
 
     @Override
     public void endWithInfo(Throwable t) {
-        scopedSpan.finish();
+        finish(null, false);
     }
 
     @Override
@@ -73,7 +104,7 @@ public class OutgoingSpanImpl implements Span {
 
     @Override
     public @Nullable Object getMessageSupplier() {
-        return null;
+        return messageSupplier;
     }
 
     @Override
@@ -83,4 +114,33 @@ public class OutgoingSpanImpl implements Span {
     @Override
     @Deprecated
     public <R> void extractFromResponse(R response, Getter<R> getter) {}
+
+    private void finish(@Nullable Throwable t, boolean error) {
+        brave.Span span = this.span;
+        Scope scope = this.scope;
+        MessageSupplier messageSupplier = this.messageSupplier;
+        String metricName = this.metricName;
+        if (span == null || scope == null || messageSupplier == null || metricName == null) {
+            SpanPool.useAfterEnd();
+            return;
+        }
+        this.span = null;
+        this.scope = null;
+        this.messageSupplier = null;
+        this.metricName = null;
+        scope.close();
+        if (t != null) {
+            span.error(t);
+        }
+        MessageTags.apply(span, messageSupplier);
+        long endTick = System.nanoTime();
+        PauseTags.apply(span, pauseDetector, startTick, endTick);
+        span.finish();
+        if (redMetrics != null) {
+            redMetrics.record(RedMetrics.CLIENT, metricName, endTick - startTick, error);
+        }
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.span;
+
+import brave.Span;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.brave.pause.PauseDetector;
+
+// annotates spans that overlapped jvm pauses (e.g. gc or safepoint pauses) with how long they were
+// paused
+class PauseTags {
+
+    private PauseTags() {}
+
+    static void apply(Span span, @Nullable PauseDetector pauseDetector, long startTick,
+            long endTick) {
+        if (pauseDetector == null || span.isNoop()) {
+            return;
+        }
+        long pausedNanos = pauseDetector.getPausedNanos(startTick, endTick);
+        if (pausedNanos > 0) {
+            span.tag("jvm.pause_nanos", Long.toString(pausedNanos));
+        }
+    }
+}
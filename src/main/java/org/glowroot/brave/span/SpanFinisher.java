@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.span;
+
+import brave.Span;
+
+// finishes spans that reporters which hold the spans of a transaction until it ends (see
+// PriorityLaneReporter) need to tell apart from the transaction's other spans, regardless of which
+// thread finishes them
+//
+// this relies on brave reporting a span from finish(), on the thread that finishes it
+public class SpanFinisher {
+
+    private static final ThreadLocal<Boolean> finishingRoot = new ThreadLocal<Boolean>();
+    private static final ThreadLocal<Boolean> finishingDetached = new ThreadLocal<Boolean>();
+
+    private SpanFinisher() {}
+
+    // the root span of a transaction, which ends the transaction
+    public static void finishRoot(Span span) {
+        finishingRoot.set(true);
+        try {
+            span.finish();
+        } finally {
+            finishingRoot.remove();
+        }
+    }
+
+    public static void finishRoot(Span span, long timestamp) {
+        finishingRoot.set(true);
+        try {
+            span.finish(timestamp);
+        } finally {
+            finishingRoot.remove();
+        }
+    }
+
+    // a span that should be reported right away, even though its transaction hasn't ended (e.g. a
+    // snapshot of a stuck transaction)
+    public static void finishDetached(Span span, long timestamp) {
+        finishingDetached.set(true);
+        try {
+            span.finish(timestamp);
+        } finally {
+            finishingDetached.remove();
+        }
+    }
+
+    public static boolean isFinishingRoot() {
+        return finishingRoot.get() != null;
+    }
+
+    public static boolean isFinishingDetached() {
+        return finishingDetached.get() != null;
+    }
+}
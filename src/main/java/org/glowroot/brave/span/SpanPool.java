@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.span;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import brave.Span;
+import brave.propagation.CurrentTraceContext.Scope;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+
+// per-thread pool of the synchronous query and outgoing span wrappers, used when span recycling is
+// enabled, so that the jdbc, redis and http client hot path doesn't allocate a wrapper per call
+//
+// synchronous spans are ended on the thread that started them (their scope has to be closed on
+// that thread), so the pool is only ever accessed by its own thread and needs no synchronization
+// (a wrapper that is ended on some other thread anyways is just left for garbage collection)
+public class SpanPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpanPool.class);
+
+    // bounds the pool for threads that have many nested spans open at once
+    private static final int MAX_POOLED = 16;
+
+    private static final ThreadLocal<SpanPool> pools = new ThreadLocal<SpanPool>() {
+        @Override
+        protected SpanPool initialValue() {
+            return new SpanPool(Thread.currentThread());
+        }
+    };
+
+    private static final AtomicBoolean useAfterEndLogged = new AtomicBoolean();
+
+    private final Thread thread;
+
+    private final QuerySpanImpl[] querySpans = new QuerySpanImpl[MAX_POOLED];
+    private int querySpanCount;
+
+    private final OutgoingSpanImpl[] outgoingSpans = new OutgoingSpanImpl[MAX_POOLED];
+    private int outgoingSpanCount;
+
+    private SpanPool(Thread thread) {
+        this.thread = thread;
+    }
+
+    public static SpanPool forCurrentThread() {
+        return pools.get();
+    }
+
+    public QuerySpanImpl getQuerySpan(Span span, Scope scope,
+            QueryMessageSupplier queryMessageSupplier, String metricName,
+            @Nullable RedMetrics redMetrics, @Nullable PauseDetector pauseDetector) {
+        QuerySpanImpl querySpan;
+        if (querySpanCount == 0) {
+            querySpan = new QuerySpanImpl(this);
+        } else {
+            querySpan = querySpans[--querySpanCount];
+            querySpans[querySpanCount] = null;
+        }
+        querySpan.init(span, scope, queryMessageSupplier, metricName, redMetrics, pauseDetector);
+        return querySpan;
+    }
+
+    public OutgoingSpanImpl getOutgoingSpan(Span span, Scope scope,
+            MessageSupplier messageSupplier, String metricName, @Nullable RedMetrics redMetrics,
+            @Nullable PauseDetector pauseDetector) {
+        OutgoingSpanImpl outgoingSpan;
+        if (outgoingSpanCount == 0) {
+            outgoingSpan = new OutgoingSpanImpl(this);
+        } else {
+            outgoingSpan = outgoingSpans[--outgoingSpanCount];
+            outgoingSpans[outgoingSpanCount] = null;
+        }
+        outgoingSpan.init(span, scope, messageSupplier, metricName, redMetrics, pauseDetector);
+        return outgoingSpan;
+    }
+
+    void release(QuerySpanImpl querySpan) {
+        if (Thread.currentThread() == thread && querySpanCount < MAX_POOLED) {
+            querySpans[querySpanCount++] = querySpan;
+        }
+    }
+
+    void release(OutgoingSpanImpl outgoingSpan) {
+        if (Thread.currentThread() == thread && outgoingSpanCount < MAX_POOLED) {
+            outgoingSpans[outgoingSpanCount++] = outgoingSpan;
+        }
+    }
+
+    // the wrapper is no longer attached to a span, so the call is ignored
+    //
+    // when the wrapper is pooled, a stale reference can't be detected once the wrapper has been
+    // handed out again, which is why span recycling is opt-in
+    static void useAfterEnd() {
+        if (useAfterEndLogged.compareAndSet(false, true)) {
+            logger.warn("span was used after it ended (this warning is only logged once)",
+                    new Exception("location stack trace"));
+        } else {
+            logger.debug("span was used after it ended", new Exception("location stack trace"));
+        }
+    }
+}
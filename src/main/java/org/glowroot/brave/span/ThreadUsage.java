@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.span;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// cpu time and allocated bytes of the current thread, captured when a transaction starts (or
+// continues) on the thread, so the difference can be added to the transaction when it ends there
+//
+// only the current thread's counters are read, which doesn't need a safepoint, but each read is
+// still a system call for the cpu time and a lookup of the thread by id for the allocated bytes,
+// which is why this is opt-in
+//
+// whether each counter is supported and enabled is checked once, since reading an unsupported
+// counter throws UnsupportedOperationException
+public class ThreadUsage {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThreadUsage.class);
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private static final boolean cpuTimeAvailable = isCpuTimeAvailable();
+    private static final boolean allocatedBytesAvailable = isAllocatedBytesAvailable();
+
+    private final long startCpuNanos;
+    private final long startAllocatedBytes;
+
+    private ThreadUsage(long startCpuNanos, long startAllocatedBytes) {
+        this.startCpuNanos = startCpuNanos;
+        this.startAllocatedBytes = startAllocatedBytes;
+    }
+
+    // false if neither counter can be read, in which case there is nothing to track
+    static boolean isAvailable() {
+        return cpuTimeAvailable || allocatedBytesAvailable;
+    }
+
+    static ThreadUsage start() {
+        return new ThreadUsage(getCurrentThreadCpuNanos(), getCurrentThreadAllocatedBytes());
+    }
+
+    // returns -1 if not available
+    long getCpuNanosSinceStart() {
+        return difference(startCpuNanos, getCurrentThreadCpuNanos());
+    }
+
+    // returns -1 if not available
+    long getAllocatedBytesSinceStart() {
+        return difference(startAllocatedBytes, getCurrentThreadAllocatedBytes());
+    }
+
+    private static long getCurrentThreadCpuNanos() {
+        if (!cpuTimeAvailable) {
+            return -1;
+        }
+        // returns -1 if cpu time measurement has been disabled since
+        return threadMXBean.getCurrentThreadCpuTime();
+    }
+
+    private static long getCurrentThreadAllocatedBytes() {
+        if (!allocatedBytesAvailable) {
+            return -1;
+        }
+        // returns -1 if thread allocated memory measurement has been disabled since
+        return ((com.sun.management.ThreadMXBean) threadMXBean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static boolean isCpuTimeAvailable() {
+        try {
+            if (threadMXBean.isCurrentThreadCpuTimeSupported()
+                    && threadMXBean.isThreadCpuTimeEnabled()) {
+                return true;
+            }
+        } catch (Throwable t) {
+            logger.debug(t.getMessage(), t);
+        }
+        logger.warn("thread cpu time is not supported or not enabled on this jvm, so"
+                + " jvm.cpu_time_nanos will not be recorded");
+        return false;
+    }
+
+    private static boolean isAllocatedBytesAvailable() {
+        try {
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreadMXBean =
+                        (com.sun.management.ThreadMXBean) threadMXBean;
+                if (sunThreadMXBean.isThreadAllocatedMemorySupported()
+                        && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                    return true;
+                }
+            }
+        } catch (Throwable t) {
+            logger.debug(t.getMessage(), t);
+        }
+        logger.warn("thread allocated memory is not supported or not enabled on this jvm, so"
+                + " jvm.allocated_bytes will not be recorded");
+        return false;
+    }
+
+    private static long difference(long start, long end) {
+        if (start == -1 || end == -1) {
+            return -1;
+        }
+        return Math.max(0, end - start);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.watchdog;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// periodically scans the transactions that are in progress, and has a snapshot reported for any
+// transaction that exceeds its slow threshold, so that transactions that hang (e.g. on a lock or
+// a downstream call) are visible before they end, if they ever do
+//
+// each thread has its own slot, which is added to the registry the first time the thread starts
+// a transaction, so starting a transaction is a thread local lookup and a volatile write to a slot
+// that is only written by that thread, and ending a transaction doesn't touch the registry at all
+// (the watchdog skips slots whose transaction has ended)
+//
+// a transaction is watched through the thread that started it, so an async transaction is no
+// longer watched once that thread starts another transaction
+public class StuckTransactionWatchdog implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StuckTransactionWatchdog.class);
+
+    private static final int MAX_STACK_FRAMES = 100;
+
+    private final long defaultThresholdNanos;
+    private final boolean captureStack;
+
+    private final Queue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+
+    private final ThreadLocal<Slot> currentThreadSlot = new ThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+            Slot slot = new Slot(Thread.currentThread());
+            slots.add(slot);
+            return slot;
+        }
+    };
+
+    public StuckTransactionWatchdog(long defaultThresholdNanos, boolean captureStack) {
+        this.defaultThresholdNanos = defaultThresholdNanos;
+        this.captureStack = captureStack;
+    }
+
+    // called on the thread that starts the transaction
+    public void transactionStarted(WatchedTransaction transaction) {
+        currentThreadSlot.get().transaction = transaction;
+    }
+
+    @Override
+    public void run() {
+        try {
+            scan();
+        } catch (Throwable t) {
+            // don't let an unexpected error stop future executions
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private void scan() {
+        long currTick = System.nanoTime();
+        Iterator<Slot> i = slots.iterator();
+        while (i.hasNext()) {
+            Slot slot = i.next();
+            Thread thread = slot.threadRef.get();
+            if (thread == null || !thread.isAlive()) {
+                i.remove();
+                continue;
+            }
+            WatchedTransaction transaction = slot.transaction;
+            if (transaction == null || transaction == slot.reportedTransaction
+                    || transaction.isEnded()) {
+                continue;
+            }
+            long thresholdNanos = transaction.getSlowThresholdNanos();
+            if (thresholdNanos == -1) {
+                thresholdNanos = defaultThresholdNanos;
+            }
+            long durationNanos = currTick - transaction.getStartTick();
+            if (durationNanos < thresholdNanos) {
+                continue;
+            }
+            String threadStack = captureStack ? getStackText(thread.getStackTrace()) : null;
+            // the transaction could have ended while capturing the stack
+            if (!transaction.isEnded()) {
+                transaction.reportSnapshot(durationNanos, thread.getName(), threadStack);
+            }
+            slot.reportedTransaction = transaction;
+        }
+    }
+
+    private static String getStackText(StackTraceElement[] stackTrace) {
+        StringBuilder sb = new StringBuilder();
+        int frames = Math.min(stackTrace.length, MAX_STACK_FRAMES);
+        for (int i = 0; i < frames; i++) {
+            sb.append(stackTrace[i]);
+            sb.append('\n');
+        }
+        if (stackTrace.length > frames) {
+            sb.append("...");
+            sb.append(stackTrace.length - frames);
+            sb.append(" more\n");
+        }
+        return sb.toString();
+    }
+
+    private static class Slot {
+
+        private final WeakReference<Thread> threadRef;
+
+        // only written by the slot's thread (an ended transaction stays here until the thread
+        // starts its next transaction)
+        private volatile @Nullable WatchedTransaction transaction;
+
+        // only accessed by the watchdog thread, so that a transaction is reported at most once
+        private @Nullable WatchedTransaction reportedTransaction;
+
+        private Slot(Thread thread) {
+            threadRef = new WeakReference<Thread>(thread);
+        }
+    }
+}
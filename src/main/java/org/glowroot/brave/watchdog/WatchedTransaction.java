@@ -0,0 +1,34 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.watchdog;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// a transaction that is watched by StuckTransactionWatchdog
+public interface WatchedTransaction {
+
+    // System.nanoTime() when the transaction started
+    long getStartTick();
+
+    // -1 means the watchdog's default threshold applies
+    long getSlowThresholdNanos();
+
+    boolean isEnded();
+
+    // called (at most once per transaction) from the watchdog thread, threadStack is null when
+    // stack capture is disabled
+    void reportSnapshot(long durationNanos, String threadName, @Nullable String threadStack);
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AgentSwitchTest extends BaseTest {
+
+    @After
+    public void afterEachSwitch() {
+        AgentSwitch.setEnabled(true);
+    }
+
+    @Test
+    public void shouldNotStartSpansWhileDisabled() {
+        // given
+        AgentSwitch.setEnabled(false);
+
+        // when
+        startIncomingSpan("Web", "/one", "one").end();
+
+        // then
+        assertThat(threadContextThreadLocal.get()).isNull();
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    public void shouldEndInFlightTransactionAfterDisabled() {
+        // given
+        Span incomingSpan = startIncomingSpan("Web", "/one", "one");
+
+        // when
+        AgentSwitch.setEnabled(false);
+        startOutgoingSpan("http", "GET /", "GET /").end();
+        incomingSpan.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("/one");
+    }
+
+    @Test
+    public void shouldNotContinueOnAuxThreadWhileDisabled() throws Exception {
+        // given
+        Span incomingSpan = startIncomingSpan("Web", "/one", "one");
+        final AuxThreadContext auxThreadContext =
+                threadContextThreadLocal.getHolder().get().createAuxThreadContext();
+
+        // when
+        AgentSwitch.setEnabled(false);
+        Future<Boolean> future = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                Span auxSpan = auxThreadContext.start();
+                boolean continued = threadContextThreadLocal.get() != null;
+                startOutgoingSpan("http", "GET /", "GET /").end();
+                auxSpan.end();
+                return continued;
+            }
+        });
+        boolean continued = future.get();
+        incomingSpan.end();
+
+        // then
+        assertThat(continued).isFalse();
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("/one");
+    }
+
+    @Test
+    public void shouldStartSpansAgainAfterReenabled() {
+        // given
+        AgentSwitch.setEnabled(false);
+        startIncomingSpan("Web", "/one", "one").end();
+
+        // when
+        AgentSwitch.setEnabled(true);
+        startIncomingSpan("Web", "/two", "two").end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("/two");
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Map;
+
+import brave.Tracing;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.TracingFactory.ManagedTracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ApplicationTracingsTest extends BaseTest {
+
+    private final Map<String, MockReporter> applicationReporters = Maps.newHashMap();
+
+    private ClassLoader originalContextClassLoader;
+
+    @Before
+    public void beforeEachApplication() {
+        originalContextClassLoader = Thread.currentThread().getContextClassLoader();
+        ApplicationTracings applicationTracings = new ApplicationTracings(tracing,
+                new MockTracingFactory(), ImmutableMap.of("app2", "app2-service"));
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .applicationTracings(applicationTracings)
+                .build();
+    }
+
+    @After
+    public void afterEachApplication() {
+        Thread.currentThread().setContextClassLoader(originalContextClassLoader);
+    }
+
+    @Test
+    public void shouldUseApplicationTracing() {
+        // when
+        Thread.currentThread().setContextClassLoader(new WebappClassLoader("/app1"));
+        startIncomingSpan("Web", "/one", "one").end();
+        Thread.currentThread().setContextClassLoader(new WebappClassLoader("/app2"));
+        startIncomingSpan("Web", "/two", "two").end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(applicationReporters.get("app1").getSpans()).hasSize(1);
+        assertThat(applicationReporters.get("app1").getSpans().get(0).localServiceName())
+                .isEqualTo("app1");
+        assertThat(applicationReporters.get("app2-service").getSpans()).hasSize(1);
+    }
+
+    @Test
+    public void shouldReuseTracingForSameApplication() {
+        // given
+        WebappClassLoader loader1 = new WebappClassLoader("/app1");
+        WebappClassLoader loader2 = new WebappClassLoader("/app2");
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            Thread.currentThread().setContextClassLoader(loader1);
+            startIncomingSpan("Web", "/one", "one").end();
+            Thread.currentThread().setContextClassLoader(loader2);
+            startIncomingSpan("Web", "/two", "two").end();
+        }
+
+        // then
+        assertThat(applicationReporters).hasSize(2);
+        assertThat(applicationReporters.get("app1").getSpans()).hasSize(3);
+        assertThat(applicationReporters.get("app2-service").getSpans()).hasSize(3);
+    }
+
+    @Test
+    public void shouldUseDefaultTracingOutsideOfApplication() {
+        // when
+        Thread.currentThread().setContextClassLoader(ClassLoader.getSystemClassLoader());
+        startIncomingSpan("Web", "/one", "one").end();
+        Thread.currentThread().setContextClassLoader(null);
+        startIncomingSpan("Web", "/two", "two").end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(applicationReporters).isEmpty();
+    }
+
+    @Test
+    public void shouldPropagateApplicationTracingToChildSpans() {
+        // when
+        Thread.currentThread().setContextClassLoader(new WebappClassLoader("/app1"));
+        org.glowroot.xyzzy.instrumentation.api.Span incomingSpan =
+                startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /", "GET /").end();
+        incomingSpan.end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(applicationReporters.get("app1").getSpans()).hasSize(2);
+    }
+
+    private class MockTracingFactory extends TracingFactory {
+
+        private MockTracingFactory() {
+            super(AgentConfig.fromSystemProperties(), threadContextThreadLocal, null);
+        }
+
+        @Override
+        ManagedTracing create(String serviceName) {
+            MockReporter reporter = new MockReporter();
+            applicationReporters.put(serviceName, reporter);
+            Tracing tracing = Tracing.newBuilder()
+                    .currentTraceContext(ApplicationTracingsTest.this.tracing
+                            .currentTraceContext())
+                    .localServiceName(serviceName)
+                    .spanReporter(reporter)
+                    .build();
+            return new ManagedTracing(tracing, reporter, null, null,
+                    ImmutableList.<BackgroundTasks.Service>of());
+        }
+    }
+
+    // mimics tomcat's WebappClassLoaderBase
+    public static class WebappClassLoader extends ClassLoader {
+
+        private final String contextName;
+
+        private WebappClassLoader(String contextName) {
+            this.contextName = contextName;
+        }
+
+        public String getContextName() {
+            return contextName;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import brave.Tracing;
+import brave.internal.HexCodec;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.propagation.TraceContext;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.brave.span.IncomingSpanImpl;
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// hammers the async transaction completion path (IncomingSpanImpl.setAsyncComplete(),
+// IncomingSpanImpl.endInternal() and AuxThreadSpanImpl.endInternal()) from many threads, completing
+// in random orders, and validates that each root span is reported exactly once and that no scope
+// or thread context is left behind on any thread
+public class AsyncCompletionStressTest extends BaseTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncCompletionStressTest.class);
+
+    private static final int REQUEST_THREADS = 8;
+    private static final int AUX_THREADS = 16;
+    private static final int TRANSACTIONS = 2000;
+    private static final int AUX_SPANS_PER_TRANSACTION = 6;
+
+    private ConcurrentMockReporter concurrentReporter;
+    private ExecutorService requestExecutor;
+    private ExecutorService auxExecutor;
+
+    private final AtomicInteger leakedScopes = new AtomicInteger();
+    private final AtomicInteger leakedThreadContexts = new AtomicInteger();
+
+    @Before
+    public void beforeEachStress() {
+        concurrentReporter = new ConcurrentMockReporter();
+        tracing.close();
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(ThreadLocalCurrentTraceContext.create())
+                .localServiceName("my-service-name")
+                .spanReporter(concurrentReporter)
+                .build();
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+        requestExecutor = Executors.newFixedThreadPool(REQUEST_THREADS);
+        auxExecutor = Executors.newFixedThreadPool(AUX_THREADS);
+    }
+
+    @After
+    public void afterEachStress() throws InterruptedException {
+        requestExecutor.shutdown();
+        auxExecutor.shutdown();
+        requestExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        auxExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        tracing.close();
+    }
+
+    @Test
+    public void testAsyncTransactionsCompletingInRandomOrder() throws Exception {
+        // given
+        final long[] completionNanos = new long[TRANSACTIONS * (AUX_SPANS_PER_TRANSACTION + 1)];
+        final AtomicInteger completionIndex = new AtomicInteger();
+        List<Future<TraceContext>> futures = Lists.newArrayList();
+
+        // when
+        long startTick = System.nanoTime();
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            final long seed = i;
+            futures.add(requestExecutor.submit(new Callable<TraceContext>() {
+                @Override
+                public TraceContext call() throws Exception {
+                    return runAsyncTransaction(new Random(seed), completionNanos,
+                            completionIndex);
+                }
+            }));
+        }
+        List<TraceContext> rootContexts = Lists.newArrayList();
+        for (Future<TraceContext> future : futures) {
+            rootContexts.add(future.get(60, TimeUnit.SECONDS));
+        }
+        long elapsedNanos = System.nanoTime() - startTick;
+
+        // then
+        for (TraceContext rootContext : rootContexts) {
+            assertThat(concurrentReporter.getReportCount(HexCodec.toLowerHex(rootContext.spanId())))
+                    .isEqualTo(1);
+        }
+        assertThat(concurrentReporter.getSpans())
+                .hasSize(TRANSACTIONS * (AUX_SPANS_PER_TRANSACTION + 1));
+        assertThat(leakedScopes.get()).isZero();
+        assertThat(leakedThreadContexts.get()).isZero();
+
+        logCompletionStats(completionNanos, completionIndex.get(), elapsedNanos);
+    }
+
+    private TraceContext runAsyncTransaction(Random random, final long[] completionNanos,
+            final AtomicInteger completionIndex) throws Exception {
+        Span incomingSpan = startIncomingSpan("A", "B", "C");
+        ThreadContextPlus threadContext = threadContextThreadLocal.getHolder().get();
+        threadContext.setTransactionAsync();
+
+        final int completer = random.nextInt(AUX_SPANS_PER_TRANSACTION);
+        final boolean completeOnStart = random.nextBoolean();
+        final CountDownLatch startGate = new CountDownLatch(1);
+        List<Future<?>> auxFutures = Lists.newArrayList();
+        for (int i = 0; i < AUX_SPANS_PER_TRANSACTION; i++) {
+            final int auxIndex = i;
+            final AuxThreadContext auxThreadContext = threadContext.createAuxThreadContext();
+            final long pauseNanos = random.nextInt(50000);
+            auxFutures.add(auxExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startGate.await();
+                    Span auxSpan;
+                    if (auxIndex == completer && completeOnStart) {
+                        auxSpan = auxThreadContext.startAndMarkAsyncTransactionComplete();
+                    } else {
+                        auxSpan = auxThreadContext.start();
+                    }
+                    Span outgoingSpan = startOutgoingSpan("X", "Y", "Z");
+                    pause(pauseNanos);
+                    outgoingSpan.end();
+                    if (auxIndex == completer && !completeOnStart) {
+                        threadContextThreadLocal.getHolder().get().setTransactionAsyncComplete();
+                    }
+                    long startTick = System.nanoTime();
+                    auxSpan.end();
+                    completionNanos[completionIndex.getAndIncrement()] =
+                            System.nanoTime() - startTick;
+                    checkNothingLeaked();
+                    return null;
+                }
+            }));
+        }
+        boolean endBeforeAuxThreads = random.nextBoolean();
+        if (endBeforeAuxThreads) {
+            endIncomingSpan(incomingSpan, completionNanos, completionIndex);
+            startGate.countDown();
+        } else {
+            startGate.countDown();
+            pause(random.nextInt(50000));
+            endIncomingSpan(incomingSpan, completionNanos, completionIndex);
+        }
+        for (Future<?> auxFuture : auxFutures) {
+            auxFuture.get(30, TimeUnit.SECONDS);
+        }
+        return ((IncomingSpanImpl) incomingSpan).getTraceContext();
+    }
+
+    private void endIncomingSpan(Span incomingSpan, long[] completionNanos,
+            AtomicInteger completionIndex) {
+        long startTick = System.nanoTime();
+        incomingSpan.end();
+        completionNanos[completionIndex.getAndIncrement()] = System.nanoTime() - startTick;
+        checkNothingLeaked();
+    }
+
+    private void checkNothingLeaked() {
+        if (tracing.currentTraceContext().get() != null) {
+            leakedScopes.incrementAndGet();
+        }
+        if (threadContextThreadLocal.getHolder().get() != null) {
+            leakedThreadContexts.incrementAndGet();
+        }
+    }
+
+    private static void pause(long nanos) {
+        long until = System.nanoTime() + nanos;
+        while (System.nanoTime() < until) {
+            Thread.yield();
+        }
+    }
+
+    private static void logCompletionStats(long[] completionNanos, int count, long elapsedNanos) {
+        long[] sorted = Arrays.copyOf(completionNanos, count);
+        Arrays.sort(sorted);
+        double transactionsPerSecond = TRANSACTIONS * 1e9 / elapsedNanos;
+        logger.info("async completion: {} transactions/sec, completion latency p50={}ns,"
+                + " p99={}ns, p99.9={}ns, max={}ns", (long) transactionsPerSecond,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted[count - 1]);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length))];
+    }
+}
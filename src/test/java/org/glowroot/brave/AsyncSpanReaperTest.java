@@ -0,0 +1,162 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.brave.reaper.AsyncSpanReaper;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.AsyncSpan;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.ThreadContext;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AsyncSpanReaperTest extends BaseTest {
+
+    private RedMetrics redMetrics;
+    private AsyncSpanReaper reaper;
+
+    @Test
+    public void shouldReapAbandonedAsyncSpan() {
+        // given
+        createAgent(0, 100);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        AsyncSpan asyncSpan = startAsyncOutgoingSpan();
+        span.end();
+
+        // when
+        reaper.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        zipkin2.Span abandoned = reporter.getSpans().get(1);
+        assertThat(abandoned.tags()).containsEntry("abandoned", "true");
+        assertThat(reaper.getReapedCount()).isEqualTo(1);
+        redMetrics.merge();
+        assertThat(redMetrics.getPrometheusText()).contains(
+                "brave_agent_span_duration_seconds_count{kind=\"abandoned\",name=\"client\"} 1");
+
+        // and ending the span late does not report it again
+        asyncSpan.end();
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotReapEndedAsyncSpan() {
+        // given
+        createAgent(0, 100);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startAsyncOutgoingSpan().end();
+        span.end();
+
+        // when
+        reaper.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).tags()).doesNotContainKey("abandoned");
+        assertThat(reaper.getReapedCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotReapAsyncSpanUnderMaxAge() {
+        // given
+        createAgent(TimeUnit.HOURS.toNanos(1), 100);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        AsyncSpan asyncSpan = startAsyncOutgoingSpan();
+        span.end();
+
+        // when
+        reaper.run();
+        asyncSpan.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(1).tags()).doesNotContainKey("abandoned");
+        assertThat(reaper.getReapedCount()).isZero();
+    }
+
+    @Test
+    public void shouldReapAbandonedAsyncTransaction() {
+        // given
+        createAgent(0, 100);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        ThreadContext threadContext = threadContextThreadLocal.getHolder().get();
+        threadContext.setTransactionAsync();
+        span.end();
+        assertThat(reporter.getSpans()).isEmpty();
+
+        // when
+        reaper.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).tags()).containsEntry("abandoned", "true");
+        assertThat(reaper.getReapedCount()).isEqualTo(1);
+
+        // and completing the transaction late does not report it again
+        threadContext.setTransactionAsyncComplete();
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotTrackAsyncSpansBeyondMaxPending() {
+        // given
+        createAgent(0, 1);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        AsyncSpan asyncSpan1 = startAsyncOutgoingSpan();
+        AsyncSpan asyncSpan2 = startAsyncOutgoingSpan();
+        span.end();
+
+        // when
+        reaper.run();
+
+        // then
+        assertThat(reaper.getReapedCount()).isEqualTo(1);
+        assertThat(reaper.getUntrackedCount()).isEqualTo(1);
+        asyncSpan1.end();
+        asyncSpan2.end();
+        assertThat(reporter.getSpans()).hasSize(3);
+    }
+
+    private void createAgent(long maxAgeNanos, int maxPending) {
+        redMetrics = new RedMetrics(10, 0);
+        reaper = new AsyncSpanReaper(maxAgeNanos, maxPending, redMetrics);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .reaper(reaper)
+                .build();
+    }
+
+    private AsyncSpan startAsyncOutgoingSpan() {
+        return threadContextThreadLocal.getHolder().get().startAsyncOutgoingSpan("http",
+                "GET http://example.com/", NopSetter.INSTANCE, new Object(),
+                MessageSupplier.create("GET /"), ImmutableTimerNameImpl.of("dummy", false));
+    }
+
+    private static class NopSetter implements Setter<Object> {
+
+        private static final NopSetter INSTANCE = new NopSetter();
+
+        @Override
+        public void put(Object carrier, String key, String value) {}
+    }
+}
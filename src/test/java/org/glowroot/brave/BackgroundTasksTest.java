@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.BackgroundTasks.Service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BackgroundTasksTest {
+
+    private ScheduledExecutorService executor;
+    private BackgroundTasks backgroundTasks;
+
+    @Before
+    public void beforeEachTest() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        backgroundTasks = new BackgroundTasks(executor);
+    }
+
+    @After
+    public void afterEachTest() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldNotRunWhileSuspended() throws Exception {
+        // given
+        CountingTask task = new CountingTask();
+        backgroundTasks.schedule(task, 10, TimeUnit.MILLISECONDS);
+        Thread.sleep(100);
+
+        // when
+        backgroundTasks.suspend();
+        Thread.sleep(50);
+        int count = task.count.get();
+        Thread.sleep(100);
+
+        // then
+        assertThat(count).isGreaterThan(0);
+        assertThat(task.count.get()).isEqualTo(count);
+    }
+
+    @Test
+    public void shouldRunAgainWhenResumed() throws Exception {
+        // given
+        CountingTask task = new CountingTask();
+        backgroundTasks.schedule(task, 10, TimeUnit.MILLISECONDS);
+        backgroundTasks.suspend();
+        Thread.sleep(50);
+        int count = task.count.get();
+
+        // when
+        backgroundTasks.resume();
+        Thread.sleep(100);
+
+        // then
+        assertThat(task.count.get()).isGreaterThan(count);
+    }
+
+    @Test
+    public void shouldStopAndStartServices() {
+        // given
+        RecordingService service = new RecordingService();
+        backgroundTasks.add(service);
+
+        // when
+        backgroundTasks.suspend();
+        backgroundTasks.suspend();
+        backgroundTasks.resume();
+
+        // then
+        assertThat(service.events.toString()).isEqualTo("start stop start ");
+    }
+
+    @Test
+    public void shouldNotStartServiceAddedWhileSuspended() {
+        // given
+        backgroundTasks.suspend();
+
+        // when
+        RecordingService service = new RecordingService();
+        backgroundTasks.add(service);
+        backgroundTasks.remove(service);
+        backgroundTasks.resume();
+
+        // then
+        assertThat(service.events.toString()).isEmpty();
+    }
+
+    private static class CountingTask implements Runnable {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void run() {
+            count.incrementAndGet();
+        }
+    }
+
+    private static class RecordingService implements Service {
+
+        private final StringBuilder events = new StringBuilder();
+
+        @Override
+        public void start() {
+            events.append("start ");
+        }
+
+        @Override
+        public void stop() {
+            events.append("stop ");
+        }
+    }
+}
@@ -19,7 +19,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import brave.Tracing;
-import brave.propagation.ThreadLocalCurrentTraceContext;
 import org.junit.After;
 import org.junit.Before;
 
@@ -37,6 +36,7 @@ public abstract class BaseTest {
     private static final TimerName DUMMY_TIMER_NAME = ImmutableTimerNameImpl.of("dummy", false);
 
     protected MockReporter reporter;
+    protected Tracing tracing;
     protected ThreadContextThreadLocal threadContextThreadLocal;
     protected AgentImpl agent;
     protected ExecutorService executor;
@@ -46,15 +46,17 @@ public abstract class BaseTest {
 
         reporter = new MockReporter();
 
-        Tracing tracing = Tracing.newBuilder()
-                .currentTraceContext(ThreadLocalCurrentTraceContext.create())
+        threadContextThreadLocal = new ThreadContextThreadLocal();
+
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(
+                        ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal)
+                                .build())
                 .localServiceName("my-service-name")
                 .spanReporter(reporter)
                 .build();
 
-        threadContextThreadLocal = new ThreadContextThreadLocal();
-
-        agent = new AgentImpl(tracing, threadContextThreadLocal);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
         executor = Executors.newCachedThreadPool();
     }
 
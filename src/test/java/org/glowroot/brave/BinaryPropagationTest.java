@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.Test;
+
+import org.glowroot.brave.propagation.BinaryGetter;
+import org.glowroot.brave.propagation.BinarySetter;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.checker.Nullable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BinaryPropagationTest extends BaseTest {
+
+    @Test
+    public void shouldInjectBinaryHeader() {
+        // given
+        Map<String, byte[]> headers = Maps.newHashMap();
+
+        // when
+        Span span = startIncomingSpan("Background", "job", "job");
+        threadContextThreadLocal.getHolder().get().startOutgoingSpan("Kafka", "send orders",
+                HeadersAccessor.INSTANCE, headers, MessageSupplier.create("send"),
+                ImmutableTimerNameImpl.of("dummy", false)).end();
+        span.end();
+
+        // then
+        zipkin2.Span outgoing = reporter.getSpans().get(0);
+        assertThat(headers).containsKey("b3");
+        assertThat(headers).doesNotContainKey("X-B3-TraceId");
+        assertThat(new String(headers.get("b3"), Charsets.US_ASCII))
+                .isEqualTo(outgoing.traceId() + "-" + outgoing.id() + "-1");
+    }
+
+    @Test
+    public void shouldExtractBinaryHeader() {
+        // given
+        Map<String, byte[]> headers = Maps.newHashMap();
+        headers.put("b3", "463ac35c9f6413ad-a2fb4a1d1a96d312-1".getBytes(Charsets.US_ASCII));
+
+        // when
+        startIncomingSpan(headers).end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(incoming.traceId()).isEqualTo("463ac35c9f6413ad");
+    }
+
+    @Test
+    public void shouldFallBackToStringHeaders() {
+        // given
+        Map<String, byte[]> headers = Maps.newHashMap();
+        headers.put("X-B3-TraceId", "463ac35c9f6413ad".getBytes(Charsets.US_ASCII));
+        headers.put("X-B3-SpanId", "a2fb4a1d1a96d312".getBytes(Charsets.US_ASCII));
+
+        // when
+        startIncomingSpan(headers).end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(incoming.traceId()).isEqualTo("463ac35c9f6413ad");
+    }
+
+    @Test
+    public void shouldIgnoreMalformedBinaryHeader() {
+        // given
+        Map<String, byte[]> headers = Maps.newHashMap();
+        headers.put("b3", "not-a-trace-context".getBytes(Charsets.US_ASCII));
+
+        // when
+        startIncomingSpan(headers).end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    public void shouldInjectIntoKafkaRecordHeaders() {
+        // given
+        ProducerRecord<String, String> record = new ProducerRecord<String, String>("orders", "v");
+
+        // when
+        Span span = startIncomingSpan("Background", "job", "job");
+        threadContextThreadLocal.getHolder().get().startOutgoingSpan("Kafka", "send orders",
+                RecordSetter.INSTANCE, record, MessageSupplier.create("send"),
+                ImmutableTimerNameImpl.of("dummy", false)).end();
+        span.end();
+
+        // then
+        zipkin2.Span outgoing = reporter.getSpans().get(0);
+        assertThat(record.headers().lastHeader("X-B3-TraceId")).isNull();
+        assertThat(new String(record.headers().lastHeader("b3").value(), Charsets.US_ASCII))
+                .isEqualTo(outgoing.traceId() + "-" + outgoing.id() + "-1");
+    }
+
+    @Test
+    public void shouldExtractFromKafkaRecordHeaders() {
+        // given
+        Headers headers = new RecordHeaders();
+        headers.add("b3", "463ac35c9f6413ad-a2fb4a1d1a96d312-1".getBytes(Charsets.US_ASCII));
+
+        // when
+        agent.startIncomingSpan("Kafka", "orders", KafkaHeadersGetter.INSTANCE, headers,
+                MessageSupplier.create("orders"), ImmutableTimerNameImpl.of("dummy", false),
+                threadContextThreadLocal.getHolder(), 0, 0).end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(incoming.traceId()).isEqualTo("463ac35c9f6413ad");
+    }
+
+    private Span startIncomingSpan(Map<String, byte[]> headers) {
+        return agent.startIncomingSpan("Kafka", "orders", HeadersAccessor.INSTANCE, headers,
+                MessageSupplier.create("orders"), ImmutableTimerNameImpl.of("dummy", false),
+                threadContextThreadLocal.getHolder(), 0, 0);
+    }
+
+    // string only, the same as instrumentation that doesn't know about the binary path
+    private static class RecordSetter implements Setter<ProducerRecord<String, String>> {
+
+        private static final RecordSetter INSTANCE = new RecordSetter();
+
+        @Override
+        public void put(ProducerRecord<String, String> carrier, String key, String value) {
+            carrier.headers().add(key, value.getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private static class KafkaHeadersGetter implements Getter<Headers> {
+
+        private static final KafkaHeadersGetter INSTANCE = new KafkaHeadersGetter();
+
+        @Override
+        public @Nullable String get(Headers carrier, String key) {
+            Header header = carrier.lastHeader(key);
+            return header == null ? null : new String(header.value(), Charsets.UTF_8);
+        }
+    }
+
+    // mimics kafka record headers, which store header values as bytes
+    private static class HeadersAccessor implements Getter<Map<String, byte[]>>,
+            BinaryGetter<Map<String, byte[]>>, Setter<Map<String, byte[]>>,
+            BinarySetter<Map<String, byte[]>> {
+
+        private static final HeadersAccessor INSTANCE = new HeadersAccessor();
+
+        @Override
+        public @Nullable String get(Map<String, byte[]> carrier, String key) {
+            byte[] value = carrier.get(key);
+            return value == null ? null : new String(value, Charsets.UTF_8);
+        }
+
+        @Override
+        public byte[] getBytes(Map<String, byte[]> carrier, String key) {
+            return carrier.get(key);
+        }
+
+        @Override
+        public void put(Map<String, byte[]> carrier, String key, String value) {
+            carrier.put(key, value.getBytes(Charsets.UTF_8));
+        }
+
+        @Override
+        public void putBytes(Map<String, byte[]> carrier, String key, byte[] value) {
+            carrier.put(key, value);
+        }
+    }
+}
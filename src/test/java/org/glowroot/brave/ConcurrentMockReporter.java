@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+// thread-safe counterpart to MockReporter, for tests that finish spans from many threads
+class ConcurrentMockReporter implements Reporter<Span> {
+
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<Span>();
+
+    private final ConcurrentMap<String, AtomicInteger> reportCounts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    @Override
+    public void report(Span span) {
+        spans.add(span);
+        AtomicInteger count = reportCounts.get(span.id());
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = reportCounts.putIfAbsent(span.id(), count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    List<Span> getSpans() {
+        return Lists.newArrayList(spans);
+    }
+
+    int getReportCount(String spanId) {
+        AtomicInteger count = reportCounts.get(spanId);
+        return count == null ? 0 : count.get();
+    }
+}
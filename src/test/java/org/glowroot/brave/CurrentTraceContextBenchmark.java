@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.ThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.xyzzy.instrumentation.api.checker.Nullable;
+
+// compares throughput and allocation of the query (jdbc) and outgoing (http client) span hot path
+// with the current trace context kept in brave's ThreadLocalCurrentTraceContext and in the xyzzy
+// thread context (see ThreadContextCurrentTraceContext), in process and on a single thread, with
+// every span sampled and reported to a no-op reporter
+//
+//   mvn -P benchmark test-compile exec:exec -Dbenchmark=CurrentTraceContextBenchmark
+//
+// settings (system properties): benchmark.rounds, benchmark.seconds, benchmark.queriesPerRequest
+public class CurrentTraceContextBenchmark {
+
+    private static final TimerName TIMER_NAME = ImmutableTimerNameImpl.of("dummy", false);
+
+    private static final int ROUNDS = Integer.getInteger("benchmark.rounds", 5);
+    private static final int SECONDS = Integer.getInteger("benchmark.seconds", 5);
+    private static final int QUERIES_PER_REQUEST =
+            Integer.getInteger("benchmark.queriesPerRequest", 10);
+
+    private CurrentTraceContextBenchmark() {}
+
+    public static void main(String[] args) {
+        // rounds alternate between the two modes, and the first round of each is warmup
+        for (int i = 0; i <= ROUNDS; i++) {
+            for (boolean threadContext : new boolean[] {false, true}) {
+                Result result = run(threadContext);
+                if (i > 0) {
+                    System.out.println(String.format(
+                            "%-14s %12.0f spans/sec %10.0f bytes/span",
+                            threadContext ? "thread context" : "thread local",
+                            result.spansPerSecond, result.bytesPerSpan));
+                }
+            }
+        }
+    }
+
+    private static Result run(boolean threadContext) {
+        ThreadContextThreadLocal threadContextThreadLocal = new ThreadContextThreadLocal();
+        CurrentTraceContext currentTraceContext = threadContext
+                ? ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal).build()
+                : ThreadLocalCurrentTraceContext.create();
+        Tracing tracing = Tracing.newBuilder()
+                .currentTraceContext(currentTraceContext)
+                .spanReporter(Reporter.NOOP)
+                .build();
+        AgentImpl agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long startAllocatedBytes = getThreadAllocatedBytes(threadMXBean, threadId);
+        long startTick = System.nanoTime();
+        long deadlineTick = startTick + SECONDS * 1000000000L;
+        long requests = 0;
+        while (System.nanoTime() < deadlineTick) {
+            for (int i = 0; i < 100; i++) {
+                runRequest(agent, threadContextThreadLocal);
+            }
+            requests += 100;
+        }
+        long elapsedNanos = System.nanoTime() - startTick;
+        long allocatedBytes =
+                getThreadAllocatedBytes(threadMXBean, threadId) - startAllocatedBytes;
+        tracing.close();
+        // the incoming span is the same in both modes, so only the query and outgoing spans are
+        // counted
+        long spans = requests * (QUERIES_PER_REQUEST + 1);
+        Result result = new Result();
+        result.spansPerSecond = spans * 1e9 / elapsedNanos;
+        result.bytesPerSpan = (double) allocatedBytes / spans;
+        return result;
+    }
+
+    private static void runRequest(AgentImpl agent,
+            ThreadContextThreadLocal threadContextThreadLocal) {
+        Span span = agent.startIncomingSpan("Web", "/request", NopGetter.INSTANCE,
+                NopGetter.CARRIER, MessageSupplier.create("request"), TIMER_NAME,
+                threadContextThreadLocal.getHolder(), 0, 0);
+        ThreadContext threadContext = threadContextThreadLocal.getHolder().get();
+        for (int i = 0; i < QUERIES_PER_REQUEST; i++) {
+            threadContext.startQuerySpan("SQL", "select * from t where id = ?",
+                    QueryMessageSupplier.create("jdbc query: "), TIMER_NAME).end();
+        }
+        threadContext.startOutgoingSpan("http", "GET http://example.com/", NopSetter.INSTANCE,
+                NopSetter.CARRIER, MessageSupplier.create("GET /"), TIMER_NAME).end();
+        span.end();
+    }
+
+    private static long getThreadAllocatedBytes(ThreadMXBean threadMXBean, long threadId) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(threadId);
+        }
+        return 0;
+    }
+
+    private static class Result {
+
+        private double spansPerSecond;
+        private double bytesPerSpan;
+    }
+
+    private static class NopGetter implements Getter<Object> {
+
+        private static final Getter<Object> INSTANCE = new NopGetter();
+
+        private static final Object CARRIER = new Object();
+
+        @Override
+        public @Nullable String get(Object carrier, String key) {
+            return null;
+        }
+    }
+
+    private static class NopSetter implements Setter<Object> {
+
+        private static final Setter<Object> INSTANCE = new NopSetter();
+
+        private static final Object CARRIER = new Object();
+
+        @Override
+        public void put(Object carrier, String key, String value) {}
+    }
+}
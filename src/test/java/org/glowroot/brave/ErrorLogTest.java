@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import zipkin2.Annotation;
+
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.ThreadContext;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ErrorLogTest extends BaseTest {
+
+    @Test
+    public void shouldAnnotateRootSpanWithErrorLogs() {
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        ThreadContext threadContext = threadContextThreadLocal.getHolder().get();
+        threadContext.addErrorSpan("abc");
+        threadContext.addErrorSpan(new IllegalStateException("def"));
+        threadContext.addErrorSpan("ghi", new IllegalArgumentException("jkl"));
+        span.end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(getValues(incoming)).containsOnly("error log: abc",
+                "error log: java.lang.IllegalStateException: def",
+                "error log: ghi: java.lang.IllegalArgumentException: jkl");
+        assertThat(incoming.tags()).doesNotContainKey("error");
+    }
+
+    @Test
+    public void shouldDeduplicateIdenticalErrorLogs() {
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        ThreadContext threadContext = threadContextThreadLocal.getHolder().get();
+        for (int i = 0; i < 1000; i++) {
+            threadContext.addErrorSpan("abc");
+        }
+        threadContext.addErrorSpan("def");
+        span.end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(getValues(incoming)).containsExactly("error log: abc (logged 1000 times)",
+                "error log: def");
+    }
+
+    @Test
+    public void shouldCapErrorLogsPerTransaction() {
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        ThreadContext threadContext = threadContextThreadLocal.getHolder().get();
+        for (int i = 0; i < 30; i++) {
+            threadContext.addErrorSpan("error " + i);
+        }
+        threadContext.addErrorSpan("error 0");
+        span.end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(incoming.annotations()).hasSize(20);
+        assertThat(getValues(incoming).get(0)).isEqualTo("error log: error 0 (logged 2 times)");
+        assertThat(incoming.tags()).containsEntry("error_logs.dropped", "10");
+    }
+
+    private static List<String> getValues(zipkin2.Span span) {
+        List<String> values = Lists.newArrayList();
+        for (Annotation annotation : span.annotations()) {
+            values.add(annotation.value());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.io.File;
+import java.util.List;
+
+import brave.Tracing;
+import com.google.common.collect.Lists;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.jfr.JfrSpanReporter;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class JfrSpanReporterTest extends BaseTest {
+
+    @Before
+    public void beforeEachJfr() {
+        boolean jfrPresent;
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            jfrPresent = true;
+        } catch (ClassNotFoundException e) {
+            jfrPresent = false;
+        }
+        assumeTrue(jfrPresent);
+        tracing.close();
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(
+                        ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal)
+                                .build())
+                .localServiceName("my-service-name")
+                .spanReporter(new JfrSpanReporter(reporter))
+                .build();
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+    }
+
+    @Test
+    public void shouldEmitServerClientAndQueryEvents() throws Exception {
+        // given
+        Recording recording = new Recording();
+        recording.enable(JfrSpanReporter.SERVER_EVENT_NAME);
+        recording.enable(JfrSpanReporter.CLIENT_EVENT_NAME);
+        recording.enable(JfrSpanReporter.QUERY_EVENT_NAME);
+        recording.start();
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET http://example.com/", "GET /").end();
+        threadContextThreadLocal.getHolder().get().startQuerySpan("SQL", "select 1",
+                QueryMessageSupplier.create("jdbc query: "),
+                ImmutableTimerNameImpl.of("dummy", false)).end();
+        span.endWithError("boom");
+        List<RecordedEvent> events = stopAndRead(recording);
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(events).hasSize(3);
+        RecordedEvent client = events.get(0);
+        RecordedEvent query = events.get(1);
+        RecordedEvent server = events.get(2);
+        assertThat(client.getEventType().getName()).isEqualTo(JfrSpanReporter.CLIENT_EVENT_NAME);
+        assertThat(query.getEventType().getName()).isEqualTo(JfrSpanReporter.QUERY_EVENT_NAME);
+        assertThat(query.getString("name")).isEqualTo("select 1");
+        assertThat(server.getEventType().getName()).isEqualTo(JfrSpanReporter.SERVER_EVENT_NAME);
+        zipkin2.Span incoming = reporter.getSpans().get(2);
+        assertThat(server.getString("traceId")).isEqualTo(incoming.traceId());
+        assertThat(server.getString("spanId")).isEqualTo(incoming.id());
+        assertThat(server.getString("name")).isEqualTo("/one");
+        assertThat(server.getString("error")).isEqualTo("boom");
+        assertThat(server.getDuration("spanDuration").toNanos() / 1000)
+                .isEqualTo(incoming.durationAsLong());
+        assertThat(client.getString("parentId")).isEqualTo(incoming.id());
+        assertThat(client.getString("error")).isNull();
+    }
+
+    @Test
+    public void shouldOnlyReportToDelegateWhenEventsAreNotEnabled() throws Exception {
+        // given
+        Recording recording = new Recording();
+        recording.enable(JfrSpanReporter.QUERY_EVENT_NAME);
+        recording.start();
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET http://example.com/", "GET /").end();
+        span.end();
+        List<RecordedEvent> events = stopAndRead(recording);
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(events).isEmpty();
+    }
+
+    private static List<RecordedEvent> stopAndRead(Recording recording) throws Exception {
+        File file = File.createTempFile("spans", ".jfr");
+        try {
+            recording.stop();
+            recording.dump(file.toPath());
+            List<RecordedEvent> events = Lists.newArrayList();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName().startsWith("org.glowroot.brave.")) {
+                    events.add(event);
+                }
+            }
+            return events;
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+}
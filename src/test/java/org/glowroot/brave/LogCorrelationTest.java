@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.Callable;
+
+import brave.Tracing;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LogCorrelationTest extends BaseTest {
+
+    @Before
+    public void beforeEachCorrelation() {
+        tracing.close();
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(ThreadLocalCurrentTraceContext.newBuilder()
+                        .addScopeDecorator(new LogCorrelationScopeDecorator())
+                        .build())
+                .localServiceName("my-service-name")
+                .spanReporter(reporter)
+                .build();
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+    }
+
+    @Test
+    public void shouldPublishIdsWhileInScope() {
+        // given
+        Span incomingSpan = startIncomingSpan("Web", "/one", "one");
+
+        // when
+        Span outgoingSpan = startOutgoingSpan("http", "GET /", "GET /");
+        String traceId = MDC.get(LogCorrelationScopeDecorator.TRACE_ID);
+        String spanId = MDC.get(LogCorrelationScopeDecorator.SPAN_ID);
+        outgoingSpan.end();
+        incomingSpan.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        zipkin2.Span outgoing = reporter.getSpans().get(0);
+        assertThat(traceId).isEqualTo(outgoing.traceId());
+        assertThat(spanId).isEqualTo(outgoing.id());
+        assertThat(MDC.get(LogCorrelationScopeDecorator.TRACE_ID)).isNull();
+        assertThat(MDC.get(LogCorrelationScopeDecorator.SPAN_ID)).isNull();
+    }
+
+    @Test
+    public void shouldRestoreParentIdsOnScopeExit() {
+        // given
+        Span incomingSpan = startIncomingSpan("Web", "/one", "one");
+        Span parentSpan = startOutgoingSpan("http", "GET /a", "GET /a");
+        String parentSpanId = MDC.get(LogCorrelationScopeDecorator.SPAN_ID);
+
+        // when
+        Span childSpan = startOutgoingSpan("http", "GET /b", "GET /b");
+        String childSpanId = MDC.get(LogCorrelationScopeDecorator.SPAN_ID);
+        childSpan.end();
+
+        // then
+        assertThat(childSpanId).isNotEqualTo(parentSpanId);
+        assertThat(MDC.get(LogCorrelationScopeDecorator.SPAN_ID)).isEqualTo(parentSpanId);
+        parentSpan.end();
+        incomingSpan.end();
+        assertThat(MDC.get(LogCorrelationScopeDecorator.SPAN_ID)).isNull();
+    }
+
+    @Test
+    public void shouldPublishIdsInAuxThread() throws Exception {
+        // given
+        Span incomingSpan = startIncomingSpan("Web", "/one", "one");
+        final AuxThreadContext auxThreadContext =
+                threadContextThreadLocal.getHolder().get().createAuxThreadContext();
+
+        // when
+        String[] ids = executor.submit(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                Span auxSpan = auxThreadContext.start();
+                String[] ids = {MDC.get(LogCorrelationScopeDecorator.TRACE_ID),
+                        MDC.get(LogCorrelationScopeDecorator.SPAN_ID)};
+                auxSpan.end();
+                assertThat(MDC.get(LogCorrelationScopeDecorator.TRACE_ID)).isNull();
+                return ids;
+            }
+        }).get();
+        incomingSpan.end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(ids[0]).isEqualTo(incoming.traceId());
+        assertThat(ids[1]).isEqualTo(incoming.id());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.checker.Nullable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageBatcherTest extends BaseTest {
+
+    private static final String UPSTREAM_TRACE_ID = "463ac35c9f6413ad";
+    private static final String UPSTREAM_SPAN_ID = "a2fb4a1d1a96d312";
+
+    private MessageBatcher messageBatcher;
+
+    @Before
+    public void beforeEachBatch() {
+        messageBatcher = new MessageBatcher(ImmutableSet.of("Kafka"), 3, 50, 60000, 2);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .messageBatcher(messageBatcher)
+                .build();
+    }
+
+    @Test
+    public void shouldCoalesceConsecutiveMessagesIntoOneSpan() throws Exception {
+        // when
+        consumeMessage("Kafka");
+        consumeMessage("Kafka");
+        Thread.sleep(100);
+        messageBatcher.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        zipkin2.Span span = reporter.getSpans().get(0);
+        assertThat(span.kind()).isEqualTo(zipkin2.Span.Kind.CONSUMER);
+        assertThat(span.tags()).containsEntry("messaging.batch.size", "2");
+        assertThat(span.tags()).containsEntry("messaging.batch.links",
+                UPSTREAM_TRACE_ID + "-" + UPSTREAM_SPAN_ID + "-1 " + UPSTREAM_TRACE_ID + "-"
+                        + UPSTREAM_SPAN_ID + "-1");
+    }
+
+    @Test
+    public void shouldStartNewBatchWhenFull() throws Exception {
+        // when
+        for (int i = 0; i < 7; i++) {
+            consumeMessage("Kafka");
+        }
+        Thread.sleep(100);
+        messageBatcher.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(reporter.getSpans().get(0).tags()).containsEntry("messaging.batch.size", "3");
+        assertThat(reporter.getSpans().get(1).tags()).containsEntry("messaging.batch.size", "3");
+        assertThat(reporter.getSpans().get(2).tags()).containsEntry("messaging.batch.size", "1");
+    }
+
+    @Test
+    public void shouldNotFinishBatchWhileMessageInProgress() throws Exception {
+        // when
+        Span span = startMessage("Kafka");
+        Thread.sleep(100);
+        messageBatcher.run();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        span.end();
+        Thread.sleep(100);
+        messageBatcher.run();
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    public void shouldRecordBatchLikeAnyOtherTransaction() throws Exception {
+        // given
+        RedMetrics redMetrics = new RedMetrics(100, 0);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .messageBatcher(messageBatcher)
+                .redMetrics(redMetrics)
+                .build();
+
+        // when
+        consumeMessage("Kafka");
+        startMessage("Kafka").endWithError(new IllegalStateException());
+        Thread.sleep(100);
+        messageBatcher.run();
+        redMetrics.merge();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).tags()).containsKey("error");
+        assertThat(reporter.getSpans().get(0).tags()).containsEntry("messaging.batch.errors",
+                "1");
+        String text = redMetrics.getPrometheusText();
+        assertThat(text).contains("brave_agent_span_duration_seconds_count"
+                + "{kind=\"incoming\",name=\"topic\"} 1");
+        assertThat(text).contains("brave_agent_span_errors_total"
+                + "{kind=\"incoming\",name=\"topic\"} 1");
+    }
+
+    @Test
+    public void shouldNotBatchOtherTransactionTypes() {
+        // when
+        consumeMessage("Web");
+        consumeMessage("Web");
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    private void consumeMessage(String transactionType) {
+        startMessage(transactionType).end();
+        assertThat(threadContextThreadLocal.getHolder().get()).isNull();
+    }
+
+    private Span startMessage(String transactionType) {
+        Map<String, String> headers = ImmutableMap.of("X-B3-TraceId", UPSTREAM_TRACE_ID,
+                "X-B3-SpanId", UPSTREAM_SPAN_ID, "X-B3-Sampled", "1");
+        return agent.startIncomingSpan(transactionType, "topic", MapGetter.INSTANCE, headers,
+                MessageSupplier.create("message"), ImmutableTimerNameImpl.of("dummy", false),
+                threadContextThreadLocal.getHolder(), 0, 0);
+    }
+
+    private static class MapGetter implements Getter<Map<String, String>> {
+
+        private static final MapGetter INSTANCE = new MapGetter();
+
+        @Override
+        public @Nullable String get(Map<String, String> carrier, String key) {
+            return carrier.get(key);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import brave.Tracing;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.sampler.Sampler;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.Message;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessage;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.ThreadContext;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageSupplierTest extends BaseTest {
+
+    private final AtomicInteger supplierCalls = new AtomicInteger();
+
+    @Test
+    public void shouldAddMessageDetailAsTags() {
+        // given
+        Map<String, ?> detail = ImmutableMap.of("Destination", "orders",
+                "Headers", ImmutableMap.of("priority", 5),
+                "Recipients", ImmutableList.of("a", "b"));
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startOutgoingSpan(new DetailMessageSupplier(detail)).end();
+        span.end();
+
+        // then
+        zipkin2.Span outgoing = reporter.getSpans().get(0);
+        assertThat(outgoing.tags()).containsEntry("Destination", "orders");
+        assertThat(outgoing.tags()).containsEntry("Headers.priority", "5");
+        assertThat(outgoing.tags()).containsEntry("Recipients", "a, b");
+        assertThat(supplierCalls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldAddQueryParametersAsTag() {
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        getThreadContext().startQuerySpan("SQL", "select * from t where x = ?",
+                new ParametersQueryMessageSupplier(" ['abc']"),
+                ImmutableTimerNameImpl.of("dummy", false)).end();
+        span.end();
+
+        // then
+        zipkin2.Span query = reporter.getSpans().get(0);
+        assertThat(query.tags()).containsEntry("db.parameters", "['abc']");
+        assertThat(supplierCalls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotRenderMessageForUnsampledSpans() {
+        // given
+        tracing.close();
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(ThreadLocalCurrentTraceContext.create())
+                .sampler(Sampler.NEVER_SAMPLE)
+                .spanReporter(reporter)
+                .build();
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+
+        // when
+        Span span = startIncomingSpan("A", "B", "C");
+        startOutgoingSpan(new DetailMessageSupplier(ImmutableMap.of("x", "y"))).end();
+        getThreadContext().startQuerySpan("SQL", "select 1",
+                new ParametersQueryMessageSupplier(""),
+                ImmutableTimerNameImpl.of("dummy", false)).end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(supplierCalls.get()).isZero();
+    }
+
+    private Span startOutgoingSpan(MessageSupplier messageSupplier) {
+        return getThreadContext().startOutgoingSpan("HTTP", "GET http://example.com/",
+                NopSetter.INSTANCE, new Object(), messageSupplier,
+                ImmutableTimerNameImpl.of("dummy", false));
+    }
+
+    private ThreadContext getThreadContext() {
+        return threadContextThreadLocal.getHolder().get();
+    }
+
+    private class DetailMessageSupplier extends MessageSupplier {
+
+        private final Map<String, ?> detail;
+
+        private DetailMessageSupplier(Map<String, ?> detail) {
+            this.detail = detail;
+        }
+
+        @Override
+        public Message get() {
+            supplierCalls.incrementAndGet();
+            return Message.create("message", detail);
+        }
+    }
+
+    private class ParametersQueryMessageSupplier extends QueryMessageSupplier {
+
+        private final String suffix;
+
+        private ParametersQueryMessageSupplier(String suffix) {
+            this.suffix = suffix;
+        }
+
+        @Override
+        public QueryMessage get() {
+            supplierCalls.incrementAndGet();
+            return QueryMessage.create("jdbc query: ", suffix);
+        }
+    }
+
+    private static class NopSetter implements Setter<Object> {
+
+        private static final NopSetter INSTANCE = new NopSetter();
+
+        @Override
+        public void put(Object carrier, String key, String value) {}
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.pause.PauseDetector;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PauseDetectorTest extends BaseTest {
+
+    private PauseDetector pauseDetector;
+
+    @Before
+    public void beforeEachPause() {
+        pauseDetector = new PauseDetector(4, MILLISECONDS.toNanos(5), 10);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .pauseDetector(pauseDetector)
+                .build();
+    }
+
+    @Test
+    public void shouldTagSpansThatOverlapPause() throws Exception {
+        // given
+        Span span = startIncomingSpan("Background", "job", "job");
+        Span outgoingSpan = startOutgoingSpan("http", "GET /", "GET /");
+        MILLISECONDS.sleep(1);
+        long now = System.nanoTime();
+
+        // when
+        pauseDetector.recordPause(now - 1000, now);
+        outgoingSpan.end();
+        startOutgoingSpan("http", "GET /", "GET /").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(reporter.getSpans().get(0).tags()).containsEntry("jvm.pause_nanos", "1000");
+        assertThat(reporter.getSpans().get(1).tags()).doesNotContainKey("jvm.pause_nanos");
+        assertThat(reporter.getSpans().get(2).tags()).containsEntry("jvm.pause_nanos", "1000");
+    }
+
+    @Test
+    public void shouldClipPausesToInterval() {
+        // given
+        long base = System.nanoTime();
+
+        // when
+        pauseDetector.recordPause(base + 1000, base + 2000);
+
+        // then
+        assertThat(pauseDetector.getPausedNanos(base + 1500, base + 3000)).isEqualTo(500);
+        assertThat(pauseDetector.getPausedNanos(base, base + 1200)).isEqualTo(200);
+        assertThat(pauseDetector.getPausedNanos(base + 2000, base + 3000)).isEqualTo(0);
+        assertThat(pauseDetector.getPausedNanos(base, base + 1000)).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldCountOverlappingPausesOnce() {
+        // given, e.g. a gc pause that is also detected by the jitter thread
+        long base = System.nanoTime();
+        pauseDetector.recordPause(base + 1000, base + 2000);
+        pauseDetector.recordPause(base + 1500, base + 2500);
+        pauseDetector.recordPause(base + 3000, base + 3100);
+
+        // then
+        assertThat(pauseDetector.getPausedNanos(base, base + 5000)).isEqualTo(1600);
+    }
+
+    @Test
+    public void shouldIgnoreShortPauses() {
+        // given
+        long base = System.nanoTime();
+
+        // when
+        pauseDetector.recordPause(base + 1000, base + 1005);
+
+        // then
+        assertThat(pauseDetector.getPausedNanos(base, base + 5000)).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldOnlyKeepRecentPauses() {
+        // given
+        long base = System.nanoTime();
+
+        // when
+        for (int i = 0; i < 5; i++) {
+            pauseDetector.recordPause(base + i * 1000, base + i * 1000 + 100);
+        }
+
+        // then
+        assertThat(pauseDetector.getPausedNanos(base, base + 5000)).isEqualTo(400);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import brave.Tracing;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.AsyncSpan;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.checker.Nullable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PriorityLaneReporterTest extends BaseTest {
+
+    private MockReporter priorityReporter;
+    private MockReporter routineReporter;
+
+    @Test
+    public void shouldRouteErrorSpansToPriorityLane() {
+        // given
+        createAgent(0);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /", "GET /").end();
+        span.endWithError(new IllegalStateException());
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(2);
+        assertThat(priorityReporter.getSpans().get(0).name()).isEqualTo("get /");
+        assertThat(priorityReporter.getSpans().get(1).name()).isEqualTo("/one");
+        assertThat(routineReporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    public void shouldHoldChildSpansUntilTransactionEnds() {
+        // given
+        createAgent(0);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /", "GET /").end();
+
+        // then
+        assertThat(priorityReporter.getSpans()).isEmpty();
+        assertThat(routineReporter.getSpans()).isEmpty();
+
+        // when
+        span.end();
+
+        // then
+        assertThat(priorityReporter.getSpans()).isEmpty();
+        assertThat(routineReporter.getSpans()).hasSize(2);
+        assertThat(routineReporter.getSpans().get(1).name()).isEqualTo("/one");
+    }
+
+    @Test
+    public void shouldRouteErrorChildSpansOfRoutineTransactionToPriorityLane() {
+        // given
+        createAgent(0);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /", "GET /").endWithError("bang");
+        span.end();
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(1);
+        assertThat(priorityReporter.getSpans().get(0).name()).isEqualTo("get /");
+        assertThat(routineReporter.getSpans()).hasSize(1);
+        assertThat(routineReporter.getSpans().get(0).name()).isEqualTo("/one");
+    }
+
+    @Test
+    public void shouldRouteSpansEndingAfterTransactionToItsLane() {
+        // given
+        createAgent(0);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        AsyncSpan asyncSpan = threadContextThreadLocal.getHolder().get().startAsyncOutgoingSpan(
+                "http", "GET http://example.com/", NopSetter.INSTANCE, new Object(),
+                MessageSupplier.create("GET /"), ImmutableTimerNameImpl.of("dummy", false));
+        span.endWithError(new IllegalStateException());
+        asyncSpan.end();
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(2);
+        assertThat(priorityReporter.getSpans().get(0).name()).isEqualTo("/one");
+        assertThat(routineReporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    public void shouldRouteTransactionMarkedWithErrorToPriorityLane() {
+        // given
+        createAgent(0);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        threadContextThreadLocal.getHolder().get()
+                .setTransactionError(new IllegalStateException("boom"));
+        span.end();
+        startIncomingSpan("Web", "/two", "two").endWithError("bang");
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(2);
+        assertThat(priorityReporter.getSpans().get(0).tags()).containsEntry("error", "boom");
+        assertThat(priorityReporter.getSpans().get(1).tags()).containsEntry("error", "bang");
+        assertThat(routineReporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    public void shouldRouteTransactionOverItsSlowThresholdToPriorityLane() {
+        // given
+        createAgent(0);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        threadContextThreadLocal.getHolder().get().setTransactionSlowThreshold(0,
+                TimeUnit.MILLISECONDS, 1);
+        span.end();
+        startIncomingSpan("Web", "/two", "two").end();
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(1);
+        assertThat(priorityReporter.getSpans().get(0).tags()).containsEntry("slow", "true");
+        assertThat(routineReporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    public void shouldRouteSlowSpansToPriorityLane() throws Exception {
+        // given
+        createAgent(TimeUnit.MILLISECONDS.toMicros(10));
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /", "GET /").end();
+        TimeUnit.MILLISECONDS.sleep(20);
+        span.end();
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(2);
+        assertThat(priorityReporter.getSpans().get(1).name()).isEqualTo("/one");
+        assertThat(routineReporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepLanesOfTransactionsJoiningSameTraceApart() throws Exception {
+        // given
+        createAgent(0);
+
+        // when
+        Span span = startJoiningIncomingSpan("463ac35c9f6413ad", "a2fb4a1d1a96d312", "/one");
+        startOutgoingSpan("http", "GET /", "GET /").end();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                startJoiningIncomingSpan("463ac35c9f6413ad", "b7ad6b7169203331", "/two")
+                        .endWithError("bang");
+            }
+        }).get();
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(1);
+        assertThat(priorityReporter.getSpans().get(0).name()).isEqualTo("/two");
+        assertThat(routineReporter.getSpans()).isEmpty();
+
+        // when
+        span.end();
+
+        // then
+        assertThat(priorityReporter.getSpans()).hasSize(1);
+        assertThat(routineReporter.getSpans()).hasSize(2);
+        assertThat(routineReporter.getSpans().get(1).name()).isEqualTo("/one");
+    }
+
+    private Span startJoiningIncomingSpan(String traceId, String spanId,
+            String transactionName) {
+        Map<String, String> headers = Maps.newHashMap();
+        headers.put("X-B3-TraceId", traceId);
+        headers.put("X-B3-SpanId", spanId);
+        headers.put("X-B3-Sampled", "1");
+        return agent.startIncomingSpan("Web", transactionName, MapGetter.INSTANCE, headers,
+                MessageSupplier.create(transactionName), ImmutableTimerNameImpl.of("dummy", false),
+                threadContextThreadLocal.getHolder(), 0, 0);
+    }
+
+    private void createAgent(long slowThresholdMicros) {
+        priorityReporter = new MockReporter();
+        routineReporter = new MockReporter();
+        tracing.close();
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(
+                        ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal)
+                                .build())
+                .localServiceName("my-service-name")
+                .spanReporter(new PriorityLaneReporter(priorityReporter, null, routineReporter,
+                        null, threadContextThreadLocal, slowThresholdMicros, 1000))
+                .build();
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+    }
+
+    private static class MapGetter implements Getter<Map<String, String>> {
+
+        private static final MapGetter INSTANCE = new MapGetter();
+
+        @Override
+        public @Nullable String get(Map<String, String> carrier, String key) {
+            return carrier.get(key);
+        }
+    }
+
+    private static class NopSetter implements Setter<Object> {
+
+        private static final NopSetter INSTANCE = new NopSetter();
+
+        @Override
+        public void put(Object carrier, String key, String value) {}
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Injector;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import org.glowroot.brave.propagation.BinaryGetter;
+import org.glowroot.brave.propagation.BinaryPropagation;
+import org.glowroot.brave.propagation.BinarySetter;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.checker.Nullable;
+
+// compares throughput and allocation of injecting and then extracting the trace context through a
+// carrier that stores header values as bytes (like kafka record headers), using the string path
+// (multi-header B3 through Strings) and the binary path (see BinaryPropagation)
+//
+//   mvn -P benchmark test-compile exec:exec -Dbenchmark=PropagationBenchmark
+//
+// settings (system properties): benchmark.rounds, benchmark.seconds
+public class PropagationBenchmark {
+
+    private static final int ROUNDS = Integer.getInteger("benchmark.rounds", 5);
+    private static final int SECONDS = Integer.getInteger("benchmark.seconds", 5);
+
+    private static final TraceContext CONTEXT = TraceContext.newBuilder()
+            .traceId(0x463ac35c9f6413adL)
+            .spanId(0xa2fb4a1d1a96d312L)
+            .sampled(true)
+            .build();
+
+    // the carrier (a stand-in for the message's own headers) is reused, so that only the
+    // allocation of propagation itself is measured
+    private static final Map<String, byte[]> HEADERS = Maps.newHashMap();
+
+    private static volatile Object sink;
+
+    private PropagationBenchmark() {}
+
+    public static void main(String[] args) {
+        // rounds alternate between the two paths, and the first round of each is warmup
+        for (int i = 0; i <= ROUNDS; i++) {
+            for (boolean binary : new boolean[] {false, true}) {
+                Result result = run(binary);
+                if (i > 0) {
+                    System.out.println(String.format(
+                            "%-8s %12.0f messages/sec %10.0f bytes/message",
+                            binary ? "binary" : "string", result.messagesPerSecond,
+                            result.bytesPerMessage));
+                }
+            }
+        }
+    }
+
+    private static Result run(boolean binary) {
+        Injector<Map<String, byte[]>> stringInjector =
+                Propagation.B3_STRING.injector(StringHeadersAccessor.INSTANCE);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long startAllocatedBytes = getThreadAllocatedBytes(threadMXBean, threadId);
+        long startTick = System.nanoTime();
+        long deadlineTick = startTick + SECONDS * 1000000000L;
+        long messages = 0;
+        while (System.nanoTime() < deadlineTick) {
+            for (int i = 0; i < 100; i++) {
+                Map<String, byte[]> headers = HEADERS;
+                headers.clear();
+                if (binary) {
+                    BinaryPropagation.inject(CONTEXT, BinaryHeadersAccessor.INSTANCE, headers);
+                    sink = AgentImpl.extract(BinaryHeadersAccessor.INSTANCE, headers);
+                } else {
+                    stringInjector.inject(CONTEXT, headers);
+                    sink = AgentImpl.extract(StringHeadersAccessor.INSTANCE, headers);
+                }
+            }
+            messages += 100;
+        }
+        long elapsedNanos = System.nanoTime() - startTick;
+        long allocatedBytes =
+                getThreadAllocatedBytes(threadMXBean, threadId) - startAllocatedBytes;
+        Result result = new Result();
+        result.messagesPerSecond = messages * 1e9 / elapsedNanos;
+        result.bytesPerMessage = (double) allocatedBytes / messages;
+        return result;
+    }
+
+    private static long getThreadAllocatedBytes(ThreadMXBean threadMXBean, long threadId) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(threadId);
+        }
+        return 0;
+    }
+
+    private static class Result {
+
+        private double messagesPerSecond;
+        private double bytesPerMessage;
+    }
+
+    // a carrier that only supports the string path has to encode and decode every header value
+    private static class StringHeadersAccessor implements Getter<Map<String, byte[]>>,
+            Propagation.Setter<Map<String, byte[]>, String> {
+
+        private static final StringHeadersAccessor INSTANCE = new StringHeadersAccessor();
+
+        @Override
+        public @Nullable String get(Map<String, byte[]> carrier, String key) {
+            byte[] value = carrier.get(key);
+            return value == null ? null : new String(value, Charsets.UTF_8);
+        }
+
+        @Override
+        public void put(Map<String, byte[]> carrier, String key, String value) {
+            carrier.put(key, value.getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private static class BinaryHeadersAccessor extends StringHeadersAccessor
+            implements BinaryGetter<Map<String, byte[]>>, BinarySetter<Map<String, byte[]>> {
+
+        private static final BinaryHeadersAccessor INSTANCE = new BinaryHeadersAccessor();
+
+        @Override
+        public byte[] getBytes(Map<String, byte[]> carrier, String key) {
+            return carrier.get(key);
+        }
+
+        @Override
+        public void putBytes(Map<String, byte[]> carrier, String key, byte[] value) {
+            carrier.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueueWaitTest extends BaseTest {
+
+    private RedMetrics redMetrics;
+
+    private ExecutorService singleThreadExecutor;
+
+    @Before
+    public void beforeEachQueueWait() {
+        redMetrics = new RedMetrics(100, 0);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .redMetrics(redMetrics)
+                .build();
+        singleThreadExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("test-worker-%d")
+                .build());
+    }
+
+    @After
+    public void afterEachQueueWait() {
+        singleThreadExecutor.shutdown();
+    }
+
+    @Test
+    public void shouldRecordQueueWait() throws Exception {
+        // given
+        final CountDownLatch latch = new CountDownLatch(1);
+        singleThreadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Span span = startIncomingSpan("Background", "job", "job");
+
+        // when
+        Future<?> future = submit(threadContextThreadLocal.getHolder().get()
+                .createAuxThreadContext());
+        MILLISECONDS.sleep(100);
+        latch.countDown();
+        future.get(10, SECONDS);
+        submit(threadContextThreadLocal.getHolder().get().createAuxThreadContext())
+                .get(10, SECONDS);
+        span.end();
+        redMetrics.merge();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(Long.parseLong(incoming.tags().get("executor.queue_wait_nanos")))
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(100));
+        assertThat(Long.parseLong(incoming.tags().get("executor.max_queue_wait_nanos")))
+                .isGreaterThanOrEqualTo(MILLISECONDS.toNanos(100));
+        assertThat(incoming.tags()).containsEntry("executor.queue_wait_count", "2");
+        assertThat(redMetrics.getPrometheusText())
+                .contains("brave_agent_span_duration_seconds_count"
+                        + "{kind=\"queue\",name=\"test-worker\"} 2");
+    }
+
+    @Test
+    public void shouldNotTagWithoutAuxThreads() {
+        // when
+        startIncomingSpan("Background", "job", "job").end();
+
+        // then
+        assertThat(reporter.getSpans().get(0).tags())
+                .doesNotContainKey("executor.queue_wait_nanos");
+    }
+
+    private Future<?> submit(final AuxThreadContext auxThreadContext) {
+        return singleThreadExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                auxThreadContext.start().end();
+            }
+        });
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import brave.Tracing;
+import brave.propagation.ThreadLocalCurrentTraceContext;
+import brave.sampler.Sampler;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RedMetricsTest extends BaseTest {
+
+    private RedMetrics redMetrics;
+
+    @Before
+    public void beforeEachMetrics() {
+        redMetrics = new RedMetrics(2, 0);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .redMetrics(redMetrics)
+                .build();
+    }
+
+    @Test
+    public void shouldRecordIncomingAndOutgoingSpans() {
+        // when
+        Span span = startIncomingSpan("Background", "job", "job");
+        startOutgoingSpan("http", "GET http://example.com:8080/a", "GET /a").end();
+        startOutgoingSpan("http", "GET http://example.com:8080/b", "GET /b").end();
+        span.endWithError(new IllegalStateException());
+        redMetrics.merge();
+
+        // then
+        String text = redMetrics.getPrometheusText();
+        assertThat(text).contains("brave_agent_span_duration_seconds_count"
+                + "{kind=\"incoming\",name=\"job\"} 1");
+        assertThat(text).contains("brave_agent_span_duration_seconds_count"
+                + "{kind=\"client\",name=\"GET example.com:8080\"} 2");
+        assertThat(text).contains("brave_agent_span_errors_total"
+                + "{kind=\"incoming\",name=\"job\"} 1");
+        assertThat(text).contains("brave_agent_span_errors_total"
+                + "{kind=\"client\",name=\"GET example.com:8080\"} 0");
+        assertThat(text).contains("brave_agent_span_duration_seconds"
+                + "{kind=\"incoming\",name=\"job\",quantile=\"0.99\"}");
+    }
+
+    @Test
+    public void shouldRecordUnsampledSpans() {
+        // given
+        tracing.close();
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(ThreadLocalCurrentTraceContext.create())
+                .sampler(Sampler.NEVER_SAMPLE)
+                .spanReporter(reporter)
+                .build();
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .redMetrics(redMetrics)
+                .build();
+
+        // when
+        Span span = startIncomingSpan("Background", "job", "job");
+        startOutgoingSpan("redis", "GET key", "GET key").end();
+        span.end();
+        redMetrics.merge();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        String text = redMetrics.getPrometheusText();
+        assertThat(text).contains("brave_agent_span_duration_seconds_count"
+                + "{kind=\"incoming\",name=\"job\"} 1");
+        assertThat(text).contains("brave_agent_span_duration_seconds_count"
+                + "{kind=\"client\",name=\"redis\"} 1");
+    }
+
+    @Test
+    public void shouldAggregateNamesBeyondLimit() {
+        // when
+        for (String name : new String[] {"one", "two", "three", "four"}) {
+            startIncomingSpan("Background", name, name).end();
+        }
+        redMetrics.merge();
+
+        // then
+        String text = redMetrics.getPrometheusText();
+        assertThat(text).contains("{kind=\"incoming\",name=\"one\"} 1");
+        assertThat(text).contains("{kind=\"incoming\",name=\"other\"} 2");
+        assertThat(text).doesNotContain("name=\"three\"");
+    }
+
+    @Test
+    public void shouldRecordQueriesByTarget() {
+        // when
+        Span span = startIncomingSpan("Background", "job", "job");
+        startQuerySpan("select * from orders where id = 1");
+        startQuerySpan("select * from orders where id = 2");
+        startQuerySpan("insert into order_items (id, name) values (3, 'secret')");
+        span.end();
+        redMetrics.merge();
+
+        // then
+        String text = redMetrics.getPrometheusText();
+        assertThat(text).contains("brave_agent_span_duration_seconds_count"
+                + "{kind=\"query\",name=\"SELECT orders\"} 2");
+        assertThat(text).contains("brave_agent_span_duration_seconds_count"
+                + "{kind=\"query\",name=\"INSERT order_items\"} 1");
+        assertThat(text).doesNotContain("secret");
+    }
+
+    @Test
+    public void shouldAggregateTopQueriesByStatementShape() {
+        // given
+        redMetrics = new RedMetrics(10, 5);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .redMetrics(redMetrics)
+                .build();
+
+        // when
+        Span span = startIncomingSpan("Background", "job", "job");
+        for (int i = 0; i < 3; i++) {
+            startQuerySpan("select * from customers where email = 'user" + i + "@example.com'");
+        }
+        startQuerySpan("select count(*) from customers where id > 100");
+        span.end();
+        redMetrics.merge();
+
+        // then
+        String text = redMetrics.getTopQueriesText();
+        assertThat(text).contains("3  select * from customers where email = ?");
+        assertThat(text).contains("1  select count(*) from customers where id > ?");
+        assertThat(text).doesNotContain("example.com");
+    }
+
+    private void startQuerySpan(String queryText) {
+        threadContextThreadLocal.getHolder().get().startQuerySpan("SQL", queryText,
+                QueryMessageSupplier.create(""), ImmutableTimerNameImpl.of("dummy", false)).end();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// runs against the packaged (shaded) agent jar, since relocation only happens when packaging
+public class ShadedJarIT {
+
+    @Test
+    public void shouldNotRelocateApplicationMdcClassNames() throws Exception {
+        // given
+        File jarFile = new File(System.getProperty("agentJar"));
+        ClassLoader loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()}, null);
+        Class<?> decoratorClass = Class.forName(
+                "org.glowroot.brave.LogCorrelationScopeDecorator", false, loader);
+        Field field = decoratorClass.getDeclaredField("MDC_CLASS_NAMES");
+        field.setAccessible(true);
+
+        // when
+        String[] mdcClassNames = (String[]) field.get(null);
+
+        // then
+        assertThat(mdcClassNames).containsExactly("org.slf4j.MDC", "org.apache.log4j.MDC",
+                "org.apache.logging.log4j.ThreadContext", "org.jboss.logmanager.MDC");
+    }
+}
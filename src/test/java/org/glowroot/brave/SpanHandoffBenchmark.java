@@ -0,0 +1,211 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import brave.Tracing;
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.AsyncReporter;
+import zipkin2.reporter.Reporter;
+import zipkin2.reporter.Sender;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.ThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.xyzzy.instrumentation.api.checker.Nullable;
+
+// compares request throughput from 1 up to N concurrent request threads when every finished span is
+// added directly to the shared AsyncReporter queue (single queue) and when spans are handed off in
+// per-thread batches (see SpanHandoffReporter), with every span sampled and sent to a sender that
+// discards them
+//
+//   mvn -P benchmark -Dbenchmark=SpanHandoffBenchmark test-compile exec:exec
+//
+// settings (system properties): benchmark.rounds, benchmark.seconds, benchmark.queriesPerRequest,
+// benchmark.maxThreads (defaults to the number of available processors)
+public class SpanHandoffBenchmark {
+
+    private static final TimerName TIMER_NAME = ImmutableTimerNameImpl.of("dummy", false);
+
+    private static final int ROUNDS = Integer.getInteger("benchmark.rounds", 3);
+    private static final int SECONDS = Integer.getInteger("benchmark.seconds", 5);
+    private static final int QUERIES_PER_REQUEST =
+            Integer.getInteger("benchmark.queriesPerRequest", 10);
+    private static final int MAX_THREADS =
+            Integer.getInteger("benchmark.maxThreads", Runtime.getRuntime().availableProcessors());
+
+    private static final int QUEUED_MAX_SPANS = 10000;
+    private static final int HANDOFF_MAX_BATCH_SPANS = 64;
+
+    private SpanHandoffBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        // the first round is warmup
+        for (int i = 0; i <= ROUNDS; i++) {
+            for (int threads = 1; threads <= MAX_THREADS; threads = nextThreadCount(threads)) {
+                double singleQueue = run(threads, false);
+                double handoff = run(threads, true);
+                if (i > 0) {
+                    System.out.println(String.format(
+                            "%3d threads: single queue %12.0f requests/sec, handoff %12.0f"
+                                    + " requests/sec (%.2fx)",
+                            threads, singleQueue, handoff, handoff / singleQueue));
+                }
+            }
+        }
+    }
+
+    private static int nextThreadCount(int threads) {
+        if (threads == MAX_THREADS) {
+            return MAX_THREADS + 1;
+        }
+        return Math.min(threads * 2, MAX_THREADS);
+    }
+
+    private static double run(int threads, boolean handoff) throws Exception {
+        final ThreadContextThreadLocal threadContextThreadLocal = new ThreadContextThreadLocal();
+        AsyncReporter<zipkin2.Span> asyncReporter = AsyncReporter.builder(new DiscardingSender())
+                .queuedMaxSpans(QUEUED_MAX_SPANS)
+                .build();
+        Reporter<zipkin2.Span> reporter = asyncReporter;
+        ScheduledExecutorService consumer = null;
+        if (handoff) {
+            SpanHandoffReporter handoffReporter = new SpanHandoffReporter(asyncReporter,
+                    threadContextThreadLocal, HANDOFF_MAX_BATCH_SPANS, QUEUED_MAX_SPANS);
+            consumer = Executors.newSingleThreadScheduledExecutor();
+            consumer.scheduleWithFixedDelay(handoffReporter, 100, 100, TimeUnit.MILLISECONDS);
+            reporter = handoffReporter;
+        }
+        Tracing tracing = Tracing.newBuilder()
+                .currentTraceContext(
+                        ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal)
+                                .build())
+                .spanReporter(reporter)
+                .build();
+        final AgentImpl agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final long deadlineTick = System.nanoTime() + SECONDS * 1000000000L;
+        final AtomicLong requests = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    long count = 0;
+                    while (System.nanoTime() < deadlineTick) {
+                        for (int j = 0; j < 100; j++) {
+                            runRequest(agent, threadContextThreadLocal);
+                        }
+                        count += 100;
+                    }
+                    requests.addAndGet(count);
+                }
+            });
+            workers[i].start();
+        }
+        long startTick = System.nanoTime();
+        startLatch.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTick;
+        if (consumer != null) {
+            consumer.shutdownNow();
+        }
+        tracing.close();
+        asyncReporter.close();
+        return requests.get() * 1e9 / elapsedNanos;
+    }
+
+    private static void runRequest(AgentImpl agent,
+            ThreadContextThreadLocal threadContextThreadLocal) {
+        Span span = agent.startIncomingSpan("Web", "/request", NopGetter.INSTANCE,
+                NopGetter.CARRIER, MessageSupplier.create("request"), TIMER_NAME,
+                threadContextThreadLocal.getHolder(), 0, 0);
+        ThreadContext threadContext = threadContextThreadLocal.getHolder().get();
+        for (int i = 0; i < QUERIES_PER_REQUEST; i++) {
+            threadContext.startQuerySpan("SQL", "select * from t where id = ?",
+                    QueryMessageSupplier.create("jdbc query: "), TIMER_NAME).end();
+        }
+        threadContext.startOutgoingSpan("http", "GET http://example.com/", NopSetter.INSTANCE,
+                NopSetter.CARRIER, MessageSupplier.create("GET /"), TIMER_NAME).end();
+        span.end();
+    }
+
+    private static class DiscardingSender extends Sender {
+
+        @Override
+        public Encoding encoding() {
+            return Encoding.JSON;
+        }
+
+        @Override
+        public int messageMaxBytes() {
+            return 500000;
+        }
+
+        @Override
+        public int messageSizeInBytes(List<byte[]> encodedSpans) {
+            return encoding().listSizeInBytes(encodedSpans);
+        }
+
+        @Override
+        public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+            return Call.create(null);
+        }
+    }
+
+    private static class NopGetter implements Getter<Object> {
+
+        private static final Getter<Object> INSTANCE = new NopGetter();
+
+        private static final Object CARRIER = new Object();
+
+        @Override
+        public @Nullable String get(Object carrier, String key) {
+            return null;
+        }
+    }
+
+    private static class NopSetter implements Setter<Object> {
+
+        private static final Setter<Object> INSTANCE = new NopSetter();
+
+        private static final Object CARRIER = new Object();
+
+        @Override
+        public void put(Object carrier, String key, String value) {}
+    }
+}
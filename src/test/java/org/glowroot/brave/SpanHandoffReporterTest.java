@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import brave.Tracing;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanHandoffReporterTest extends BaseTest {
+
+    private SpanHandoffReporter handoffReporter;
+
+    @Test
+    public void shouldHandOffWhenTransactionEnds() {
+        // given
+        createAgent(10, 100);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /a", "GET /a").end();
+        startOutgoingSpan("http", "GET /b", "GET /b").end();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).isEmpty();
+        handoffReporter.run();
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("get /a");
+        assertThat(reporter.getSpans().get(2).name()).isEqualTo("/one");
+    }
+
+    @Test
+    public void shouldDrainBuffersOfTransactionsInProgress() {
+        // given
+        createAgent(10, 100);
+
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /a", "GET /a").end();
+        handoffReporter.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        span.end();
+        handoffReporter.run();
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void shouldDropBatchesWhenConsumerFallsBehind() {
+        // given
+        createAgent(2, 3);
+
+        // when
+        for (int i = 0; i < 2; i++) {
+            Span span = startIncomingSpan("Web", "/one", "one");
+            startOutgoingSpan("http", "GET /a", "GET /a").end();
+            span.end();
+        }
+        handoffReporter.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(handoffReporter.getDroppedSpans()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotDrainAfterClose() throws Exception {
+        // given
+        createAgent(10, 100);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        startOutgoingSpan("http", "GET /a", "GET /a").end();
+
+        // when
+        handoffReporter.close();
+        span.end();
+        handoffReporter.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getSpans().get(0).name()).isEqualTo("get /a");
+    }
+
+    private void createAgent(int maxBatchSpans, int maxPendingSpans) {
+        handoffReporter = new SpanHandoffReporter(reporter, threadContextThreadLocal,
+                maxBatchSpans, maxPendingSpans);
+        tracing.close();
+        tracing = Tracing.newBuilder()
+                .currentTraceContext(
+                        ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal)
+                                .build())
+                .localServiceName("my-service-name")
+                .spanReporter(handoffReporter)
+                .build();
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal).build();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import brave.Tracing;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.xyzzy.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.Getter;
+import org.glowroot.xyzzy.instrumentation.api.MessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Setter;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+import org.glowroot.xyzzy.instrumentation.api.ThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.TimerName;
+import org.glowroot.xyzzy.instrumentation.api.checker.Nullable;
+
+// compares throughput and allocation rate of the query and outgoing span hot path with and without
+// span recycling (see SpanPool), in process and on a single thread, with every span sampled and
+// reported to a no-op reporter
+//
+//   mvn -P benchmark test-compile exec:exec
+//
+// settings (system properties): benchmark.rounds, benchmark.seconds, benchmark.queriesPerRequest
+public class SpanRecyclingBenchmark {
+
+    private static final TimerName TIMER_NAME = ImmutableTimerNameImpl.of("dummy", false);
+
+    private static final int ROUNDS = Integer.getInteger("benchmark.rounds", 5);
+    private static final int SECONDS = Integer.getInteger("benchmark.seconds", 5);
+    private static final int QUERIES_PER_REQUEST =
+            Integer.getInteger("benchmark.queriesPerRequest", 10);
+
+    private SpanRecyclingBenchmark() {}
+
+    public static void main(String[] args) {
+        // rounds alternate between the two modes, and the first round of each is warmup
+        for (int i = 0; i <= ROUNDS; i++) {
+            for (boolean spanRecycling : new boolean[] {false, true}) {
+                Result result = run(spanRecycling);
+                if (i > 0) {
+                    System.out.println(String.format(
+                            "%-14s %12.0f requests/sec %10.0f bytes/request",
+                            spanRecycling ? "recycling" : "no recycling", result.requestsPerSecond,
+                            result.bytesPerRequest));
+                }
+            }
+        }
+    }
+
+    private static Result run(boolean spanRecycling) {
+        ThreadContextThreadLocal threadContextThreadLocal = new ThreadContextThreadLocal();
+        Tracing tracing = Tracing.newBuilder()
+                .currentTraceContext(
+                        ThreadContextCurrentTraceContext.newBuilder(threadContextThreadLocal)
+                                .build())
+                .spanReporter(Reporter.NOOP)
+                .build();
+        AgentImpl agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .spanRecycling(spanRecycling)
+                .build();
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long startAllocatedBytes = getThreadAllocatedBytes(threadMXBean, threadId);
+        long startTick = System.nanoTime();
+        long deadlineTick = startTick + SECONDS * 1000000000L;
+        long requests = 0;
+        while (System.nanoTime() < deadlineTick) {
+            for (int i = 0; i < 100; i++) {
+                runRequest(agent, threadContextThreadLocal);
+            }
+            requests += 100;
+        }
+        long elapsedNanos = System.nanoTime() - startTick;
+        long allocatedBytes =
+                getThreadAllocatedBytes(threadMXBean, threadId) - startAllocatedBytes;
+        tracing.close();
+        Result result = new Result();
+        result.requestsPerSecond = requests * 1e9 / elapsedNanos;
+        result.bytesPerRequest = (double) allocatedBytes / requests;
+        return result;
+    }
+
+    private static void runRequest(AgentImpl agent,
+            ThreadContextThreadLocal threadContextThreadLocal) {
+        Span span = agent.startIncomingSpan("Web", "/request", NopGetter.INSTANCE,
+                NopGetter.CARRIER, MessageSupplier.create("request"), TIMER_NAME,
+                threadContextThreadLocal.getHolder(), 0, 0);
+        ThreadContext threadContext = threadContextThreadLocal.getHolder().get();
+        for (int i = 0; i < QUERIES_PER_REQUEST; i++) {
+            threadContext.startQuerySpan("SQL", "select * from t where id = ?",
+                    QueryMessageSupplier.create("jdbc query: "), TIMER_NAME).end();
+        }
+        threadContext.startOutgoingSpan("http", "GET http://example.com/", NopSetter.INSTANCE,
+                NopSetter.CARRIER, MessageSupplier.create("GET /"), TIMER_NAME).end();
+        span.end();
+    }
+
+    private static long getThreadAllocatedBytes(ThreadMXBean threadMXBean, long threadId) {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(threadId);
+        }
+        return 0;
+    }
+
+    private static class Result {
+
+        private double requestsPerSecond;
+        private double bytesPerRequest;
+    }
+
+    private static class NopGetter implements Getter<Object> {
+
+        private static final Getter<Object> INSTANCE = new NopGetter();
+
+        private static final Object CARRIER = new Object();
+
+        @Override
+        public @Nullable String get(Object carrier, String key) {
+            return null;
+        }
+    }
+
+    private static class NopSetter implements Setter<Object> {
+
+        private static final Setter<Object> INSTANCE = new NopSetter();
+
+        private static final Object CARRIER = new Object();
+
+        @Override
+        public void put(Object carrier, String key, String value) {}
+    }
+}
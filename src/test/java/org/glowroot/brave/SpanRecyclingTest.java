@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.metrics.RedMetrics;
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.QuerySpan;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanRecyclingTest extends BaseTest {
+
+    private RedMetrics redMetrics;
+
+    @Before
+    public void beforeEachRecycling() {
+        redMetrics = new RedMetrics(100, 0);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .redMetrics(redMetrics)
+                .spanRecycling(true)
+                .build();
+    }
+
+    @Test
+    public void shouldReuseWrapperForSequentialSpans() {
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        Span outgoingSpan1 = startOutgoingSpan("http", "GET http://example.com/a", "GET /a");
+        outgoingSpan1.end();
+        Span outgoingSpan2 = startOutgoingSpan("http", "GET http://example.com/b", "GET /b");
+        outgoingSpan2.end();
+        QuerySpan querySpan1 = startQuerySpan("select 1");
+        querySpan1.end();
+        QuerySpan querySpan2 = startQuerySpan("select 2");
+        querySpan2.end();
+        span.end();
+
+        // then
+        assertThat(outgoingSpan2).isSameAs(outgoingSpan1);
+        assertThat(querySpan2).isSameAs(querySpan1);
+        assertThat(reporter.getSpans()).hasSize(5);
+        assertThat(reporter.getSpans().get(0).id()).isNotEqualTo(reporter.getSpans().get(1).id());
+        assertThat(reporter.getSpans().get(2).name()).isEqualTo("select 1");
+        assertThat(reporter.getSpans().get(3).name()).isEqualTo("select 2");
+    }
+
+    @Test
+    public void shouldNotShareWrapperBetweenNestedSpans() {
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        Span outerSpan = startOutgoingSpan("http", "GET http://example.com/a", "GET /a");
+        Span innerSpan = startOutgoingSpan("http", "GET http://example.com/b", "GET /b");
+        innerSpan.end();
+        outerSpan.end();
+        span.end();
+
+        // then
+        assertThat(innerSpan).isNotSameAs(outerSpan);
+        assertThat(reporter.getSpans()).hasSize(3);
+        zipkin2.Span inner = reporter.getSpans().get(0);
+        zipkin2.Span outer = reporter.getSpans().get(1);
+        assertThat(inner.parentId()).isEqualTo(outer.id());
+    }
+
+    @Test
+    public void shouldIgnoreEndAfterEnd() {
+        // when
+        Span span = startIncomingSpan("Web", "/one", "one");
+        QuerySpan querySpan = startQuerySpan("select 1");
+        querySpan.end();
+        querySpan.endWithError(new IllegalStateException());
+        span.end();
+        redMetrics.merge();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).tags()).doesNotContainKey("error");
+        assertThat(redMetrics.getPrometheusText())
+                .contains("brave_agent_span_duration_seconds_count"
+                        + "{kind=\"query\",name=\"select 1\"} 1");
+    }
+
+    private QuerySpan startQuerySpan(String queryText) {
+        return threadContextThreadLocal.getHolder().get().startQuerySpan("SQL", queryText,
+                QueryMessageSupplier.create("jdbc query: "),
+                ImmutableTimerNameImpl.of("dummy", false));
+    }
+}
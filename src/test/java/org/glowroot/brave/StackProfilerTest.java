@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.brave.profiler.CallTree;
+import org.glowroot.brave.profiler.StackProfiler;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StackProfilerTest extends BaseTest {
+
+    private StackProfiler stackProfiler;
+
+    @Before
+    public void beforeEachProfiler() {
+        stackProfiler = new StackProfiler(MILLISECONDS.toNanos(10), 0, 10, 100);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .stackProfiler(stackProfiler)
+                .build();
+    }
+
+    @Test
+    public void shouldAttachProfileOfTransactionThreads() throws Exception {
+        // given
+        Span span = startIncomingSpan("Background", "job", "job");
+        final AuxThreadContext auxThreadContext =
+                threadContextThreadLocal.getHolder().get().createAuxThreadContext();
+        final CountDownLatch auxStarted = new CountDownLatch(1);
+        final CountDownLatch profiled = new CountDownLatch(1);
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Span auxSpan = auxThreadContext.start();
+                auxStarted.countDown();
+                awaitInAuxThread(profiled);
+                auxSpan.end();
+            }
+        });
+        auxStarted.await(10, SECONDS);
+
+        // when
+        stackProfiler.run();
+        profiled.countDown();
+        future.get(10, SECONDS);
+        span.end();
+
+        // then
+        String profile = reporter.getSpans().get(0).tags().get("profile");
+        assertThat(profile).contains("StackProfilerTest.shouldAttachProfileOfTransactionThreads");
+        assertThat(profile).contains("StackProfilerTest.awaitInAuxThread");
+    }
+
+    @Test
+    public void shouldNotAttachProfileUnderThreshold() {
+        // given
+        stackProfiler = new StackProfiler(MILLISECONDS.toNanos(10), SECONDS.toNanos(60), 10, 100);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .stackProfiler(stackProfiler)
+                .build();
+        Span span = startIncomingSpan("Background", "job", "job");
+
+        // when
+        stackProfiler.run();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans().get(0).tags()).doesNotContainKey("profile");
+    }
+
+    @Test
+    public void shouldRotateThroughThreadsBeyondMaxThreads() throws Exception {
+        // given
+        // a long interval, so that a slow first capture doesn't skip the second one
+        stackProfiler = new StackProfiler(SECONDS.toNanos(60), 0, 1, 100);
+        final CallTree otherCallTree = new CallTree();
+        final CountDownLatch otherAdded = new CountDownLatch(1);
+        final CountDownLatch profiled = new CountDownLatch(1);
+        Future<?> future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                stackProfiler.addCurrentThread(otherCallTree);
+                otherAdded.countDown();
+                awaitInAuxThread(profiled);
+                stackProfiler.removeCurrentThread(otherCallTree);
+            }
+        });
+        otherAdded.await(10, SECONDS);
+        CallTree callTree = new CallTree();
+        stackProfiler.addCurrentThread(callTree);
+
+        // when
+        stackProfiler.run();
+        stackProfiler.run();
+        profiled.countDown();
+        future.get(10, SECONDS);
+        stackProfiler.removeCurrentThread(callTree);
+
+        // then
+        assertThat(callTree.getSampleCount()).isEqualTo(1);
+        assertThat(otherCallTree.getSampleCount()).isEqualTo(1);
+    }
+
+    private static void awaitInAuxThread(CountDownLatch latch) {
+        try {
+            latch.await(10, SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
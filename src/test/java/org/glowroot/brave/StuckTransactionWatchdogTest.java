@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import org.glowroot.brave.watchdog.StuckTransactionWatchdog;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StuckTransactionWatchdogTest extends BaseTest {
+
+    private StuckTransactionWatchdog watchdog;
+
+    @Test
+    public void shouldReportSnapshotOfStuckTransaction() {
+        // given
+        createAgent(0);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        Span outgoingSpan = startOutgoingSpan("http", "GET http://example.com/", "GET /");
+
+        // when
+        watchdog.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+        zipkin2.Span snapshot = reporter.getSpans().get(0);
+        assertThat(snapshot.name()).isEqualTo("stuck transaction");
+        assertThat(snapshot.tags()).containsEntry("stuck.transaction_name", "/one");
+        assertThat(snapshot.tags()).containsEntry("stuck.thread",
+                Thread.currentThread().getName());
+        assertThat(snapshot.tags()).containsKey("stuck.duration_millis");
+        assertThat(snapshot.tags()).containsKey("stuck.stack");
+
+        // and the real spans are still reported when they end
+        outgoingSpan.end();
+        span.end();
+        assertThat(reporter.getSpans()).hasSize(3);
+        zipkin2.Span outgoing = reporter.getSpans().get(1);
+        zipkin2.Span incoming = reporter.getSpans().get(2);
+        assertThat(snapshot.parentId()).isEqualTo(incoming.id());
+        assertThat(snapshot.tags()).containsEntry("stuck.current_span_id", outgoing.id());
+        assertThat(snapshot.tags()).containsEntry("stuck.current_span_kind", "client");
+        assertThat(snapshot.tags()).containsEntry("stuck.current_span_name", "GET example.com:80");
+    }
+
+    @Test
+    public void shouldReportSnapshotOnlyOnce() {
+        // given
+        createAgent(0);
+        Span span = startIncomingSpan("Web", "/one", "one");
+
+        // when
+        watchdog.run();
+        watchdog.run();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotReportTransactionUnderThreshold() {
+        // given
+        createAgent(TimeUnit.HOURS.toNanos(1));
+        Span span = startIncomingSpan("Web", "/one", "one");
+
+        // when
+        watchdog.run();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReportEndedTransaction() {
+        // given
+        createAgent(0);
+        startIncomingSpan("Web", "/one", "one").end();
+
+        // when
+        watchdog.run();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    public void shouldHonourTransactionSlowThreshold() {
+        // given
+        createAgent(TimeUnit.HOURS.toNanos(1));
+        Span span = startIncomingSpan("Web", "/one", "one");
+        threadContextThreadLocal.getHolder().get().setTransactionSlowThreshold(0,
+                TimeUnit.MILLISECONDS, 1);
+
+        // when
+        watchdog.run();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    public void shouldKeepSlowThresholdWithHighestPriority() {
+        // given
+        createAgent(0);
+        Span span = startIncomingSpan("Web", "/one", "one");
+        threadContextThreadLocal.getHolder().get().setTransactionSlowThreshold(1,
+                TimeUnit.HOURS, 2);
+        threadContextThreadLocal.getHolder().get().setTransactionSlowThreshold(0,
+                TimeUnit.MILLISECONDS, 1);
+
+        // when
+        watchdog.run();
+        span.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    private void createAgent(long defaultThresholdNanos) {
+        watchdog = new StuckTransactionWatchdog(defaultThresholdNanos, true);
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .watchdog(watchdog)
+                .build();
+    }
+}
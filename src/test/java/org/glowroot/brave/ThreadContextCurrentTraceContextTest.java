@@ -0,0 +1,115 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import java.util.concurrent.Callable;
+
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.engine.impl.ImmutableTimerNameImpl;
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadContextCurrentTraceContextTest extends BaseTest {
+
+    @Test
+    public void shouldStoreContextInThreadContext() {
+        // given
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        Span incomingSpan = startIncomingSpan("Web", "/one", "one");
+        TraceContext incomingContext = currentTraceContext.get();
+
+        // when
+        Span outgoingSpan = startOutgoingSpan("http", "GET /a", "GET /a");
+        TraceContext outgoingContext = currentTraceContext.get();
+        getThreadContext().startQuerySpan("SQL", "select 1", QueryMessageSupplier.create("x"),
+                ImmutableTimerNameImpl.of("dummy", false)).end();
+        outgoingSpan.end();
+        TraceContext afterOutgoingContext = currentTraceContext.get();
+        startOutgoingSpan("http", "GET /b", "GET /b").end();
+        incomingSpan.end();
+
+        // then
+        assertThat(reporter.getSpans()).hasSize(4);
+        zipkin2.Span query = reporter.getSpans().get(0);
+        zipkin2.Span outgoingA = reporter.getSpans().get(1);
+        zipkin2.Span outgoingB = reporter.getSpans().get(2);
+        zipkin2.Span incoming = reporter.getSpans().get(3);
+        assertThat(incomingContext.spanIdString()).isEqualTo(incoming.id());
+        assertThat(outgoingContext.spanIdString()).isEqualTo(outgoingA.id());
+        assertThat(afterOutgoingContext.spanIdString()).isEqualTo(incoming.id());
+        assertThat(query.parentId()).isEqualTo(outgoingA.id());
+        assertThat(outgoingB.parentId()).isEqualTo(incoming.id());
+        assertThat(currentTraceContext.get()).isNull();
+    }
+
+    @Test
+    public void shouldUseFallbackOutsideOfTransaction() {
+        // given
+        CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        TraceContext context = tracing.tracer().newTrace().context();
+
+        // when
+        CurrentTraceContext.Scope scope = currentTraceContext.newScope(context);
+        TraceContext inScopeContext = currentTraceContext.get();
+        scope.close();
+
+        // then
+        assertThat(inScopeContext).isEqualTo(context);
+        assertThat(currentTraceContext.get()).isNull();
+    }
+
+    @Test
+    public void shouldPreserveScopesInAuxThread() throws Exception {
+        // given
+        final CurrentTraceContext currentTraceContext = tracing.currentTraceContext();
+        Span incomingSpan = startIncomingSpan("Web", "/one", "one");
+        final AuxThreadContext auxThreadContext = getThreadContext().createAuxThreadContext();
+
+        // when
+        TraceContext[] contexts = executor.submit(new Callable<TraceContext[]>() {
+            @Override
+            public TraceContext[] call() {
+                Span auxSpan = auxThreadContext.start();
+                TraceContext auxContext = currentTraceContext.get();
+                startOutgoingSpan("http", "GET /", "GET /").end();
+                TraceContext afterOutgoingContext = currentTraceContext.get();
+                auxSpan.end();
+                return new TraceContext[] {auxContext, afterOutgoingContext,
+                        currentTraceContext.get()};
+            }
+        }).get(10, SECONDS);
+        incomingSpan.end();
+
+        // then
+        zipkin2.Span outgoing = reporter.getSpans().get(0);
+        zipkin2.Span incoming = reporter.getSpans().get(1);
+        assertThat(contexts[0].spanIdString()).isEqualTo(incoming.id());
+        assertThat(contexts[1].spanIdString()).isEqualTo(incoming.id());
+        assertThat(contexts[2]).isNull();
+        assertThat(outgoing.parentId()).isEqualTo(incoming.id());
+    }
+
+    private ThreadContextImpl getThreadContext() {
+        return (ThreadContextImpl) threadContextThreadLocal.getHolder().get();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.xyzzy.instrumentation.api.AuxThreadContext;
+import org.glowroot.xyzzy.instrumentation.api.Span;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadUsageTest extends BaseTest {
+
+    private static final int ALLOCATION_SIZE = 1024 * 1024;
+
+    private static volatile byte[] allocated;
+
+    @Before
+    public void beforeEachThreadUsage() {
+        agent = AgentImpl.newBuilder(tracing, threadContextThreadLocal)
+                .threadUsage(true)
+                .build();
+    }
+
+    @Test
+    public void shouldTagThreadUsageSummedAcrossAuxThreads() throws Exception {
+        // given
+        Span span = startIncomingSpan("Background", "job", "job");
+        allocated = new byte[ALLOCATION_SIZE];
+        final AuxThreadContext auxThreadContext =
+                threadContextThreadLocal.getHolder().get().createAuxThreadContext();
+
+        // when
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Span auxSpan = auxThreadContext.start();
+                allocated = new byte[ALLOCATION_SIZE];
+                auxSpan.end();
+            }
+        }).get(10, SECONDS);
+        span.end();
+
+        // then
+        zipkin2.Span incoming = reporter.getSpans().get(0);
+        assertThat(Long.parseLong(incoming.tags().get("jvm.allocated_bytes")))
+                .isGreaterThanOrEqualTo(2L * ALLOCATION_SIZE);
+        assertThat(Long.parseLong(incoming.tags().get("jvm.cpu_time_nanos")))
+                .isGreaterThanOrEqualTo(0);
+    }
+
+    @Test
+    public void shouldNotTagChildSpans() {
+        // when
+        Span span = startIncomingSpan("Background", "job", "job");
+        startOutgoingSpan("http", "GET /", "GET /").end();
+        span.end();
+
+        // then
+        zipkin2.Span outgoing = reporter.getSpans().get(0);
+        assertThat(outgoing.tags()).doesNotContainKey("jvm.allocated_bytes");
+        assertThat(reporter.getSpans().get(1).tags()).containsKey("jvm.allocated_bytes");
+    }
+}
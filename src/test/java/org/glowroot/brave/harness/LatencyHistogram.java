@@ -0,0 +1,56 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.harness;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.glowroot.brave.metrics.LatencyBuckets;
+
+// latency histogram (using the same buckets as the agent's RED metrics), safe to record from many
+// threads
+class LatencyHistogram {
+
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyBuckets.COUNT);
+
+    void recordNanos(long nanos) {
+        counts.incrementAndGet(LatencyBuckets.indexOf(Math.max(0, nanos / 1000)));
+    }
+
+    long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // returns the upper bound (in microseconds) of the bucket containing the given percentile
+    long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100 * total);
+        long running = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            running += counts.get(i);
+            if (running >= Math.max(1, target)) {
+                return LatencyBuckets.upperBound(i);
+            }
+        }
+        return LatencyBuckets.upperBound(counts.length() - 1);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.harness;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// the application under test, launched in a separate JVM by OverheadHarness (with or without the
+// agent attached)
+//
+// each request to /work runs a query against an in-memory H2 database (jdbc instrumentation) and
+// then calls a downstream HTTP endpoint (http-url-connection instrumentation), all served by
+// com.sun.net.httpserver (java-http-server instrumentation)
+public class LoadTestApp {
+
+    static final String READY = "LOAD TEST APP READY";
+
+    private static final int ROWS = 1000;
+
+    private LoadTestApp() {}
+
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int serverThreads = Integer.parseInt(args[1]);
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        HttpServer downstream = HttpServer.create(new InetSocketAddress(loopback, 0), 0);
+        downstream.createContext("/downstream", new FixedResponseHandler("downstream"));
+        downstream.setExecutor(Executors.newFixedThreadPool(serverThreads));
+        downstream.start();
+
+        initDatabase();
+
+        URL downstreamUrl = new URL("http://127.0.0.1:" + downstream.getAddress().getPort()
+                + "/downstream");
+        HttpServer server = HttpServer.create(new InetSocketAddress(loopback, port), 0);
+        server.createContext("/work", new WorkHandler(downstreamUrl));
+        server.setExecutor(Executors.newFixedThreadPool(serverThreads));
+        server.start();
+
+        System.out.println(READY);
+    }
+
+    private static void initDatabase() throws SQLException {
+        Connection connection = DriverManager.getConnection(WorkHandler.JDBC_URL);
+        Statement statement = connection.createStatement();
+        statement.execute("create table item (id int primary key, name varchar(100))");
+        PreparedStatement insert =
+                connection.prepareStatement("insert into item (id, name) values (?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            insert.setInt(1, i);
+            insert.setString(2, "item " + i);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        // the connection is intentionally kept open so that the in-memory database survives
+    }
+
+    private static class WorkHandler implements HttpHandler {
+
+        private static final String JDBC_URL = "jdbc:h2:mem:harness;DB_CLOSE_DELAY=-1";
+
+        private final URL downstreamUrl;
+
+        private final ThreadLocal<Connection> connections = new ThreadLocal<Connection>();
+        private final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+            @Override
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+
+        private WorkHandler(URL downstreamUrl) {
+            this.downstreamUrl = downstreamUrl;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String name = queryItem(randoms.get().nextInt(ROWS));
+                String downstreamResponse = callDownstream();
+                writeResponse(exchange, 200, name + " " + downstreamResponse);
+            } catch (Exception e) {
+                writeResponse(exchange, 500, e.toString());
+            }
+        }
+
+        private String queryItem(int id) throws SQLException {
+            Connection connection = connections.get();
+            if (connection == null) {
+                connection = DriverManager.getConnection(JDBC_URL);
+                connections.set(connection);
+            }
+            PreparedStatement ps =
+                    connection.prepareStatement("select name from item where id = ?");
+            try {
+                ps.setInt(1, id);
+                ResultSet rs = ps.executeQuery();
+                return rs.next() ? rs.getString(1) : "";
+            } finally {
+                ps.close();
+            }
+        }
+
+        private String callDownstream() throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) downstreamUrl.openConnection();
+            InputStream in = connection.getInputStream();
+            try {
+                return readFully(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static class FixedResponseHandler implements HttpHandler {
+
+        private final String response;
+
+        private FixedResponseHandler(String response) {
+            this.response = response;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            writeResponse(exchange, 200, response);
+        }
+    }
+
+    static void writeResponse(HttpExchange exchange, int status, String body) throws IOException {
+        drain(exchange.getRequestBody());
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    static String readFully(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            sb.append(new String(buffer, 0, n, "UTF-8"));
+        }
+        return sb.toString();
+    }
+
+    static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        in.close();
+        return total;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.harness;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.collect.Lists;
+
+// end-to-end overhead harness, answering "what does attaching the agent do to latency and max
+// throughput?"
+//
+// launches LoadTestApp three times in a separate JVM (no agent, agent attached through Premain but
+// sampling nothing, agent attached and sampling everything into a loopback stand-in collector),
+// drives each at a fixed request rate and then at max throughput, and prints a latency comparison
+//
+// everything runs on the loopback interface, so it can be run offline on a single box:
+//
+//   mvn package -DskipTests && mvn -P overhead-harness test-compile exec:exec
+//
+// settings (system properties): harness.agentJar, harness.rate (requests/sec),
+// harness.warmupSeconds, harness.durationSeconds, harness.maxThroughputSeconds,
+// harness.clientThreads, harness.serverThreads
+public class OverheadHarness {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private OverheadHarness() {}
+
+    public static void main(String[] args) throws Exception {
+        File agentJar = new File(
+                System.getProperty("harness.agentJar", "target/brave-agent-0.1-SNAPSHOT.jar"));
+        if (!agentJar.exists()) {
+            throw new IllegalStateException("Agent jar not found (run mvn package first): "
+                    + agentJar.getAbsolutePath());
+        }
+        Settings settings = new Settings();
+        StandInCollector collector = StandInCollector.start();
+        List<Result> results = Lists.newArrayList();
+        try {
+            results.add(run(Mode.NO_AGENT, settings, agentJar, collector));
+            results.add(run(Mode.AGENT_UNSAMPLED, settings, agentJar, collector));
+            results.add(run(Mode.AGENT_SAMPLED, settings, agentJar, collector));
+        } finally {
+            collector.stop();
+        }
+        printComparison(results, settings);
+        System.out.println();
+        System.out.println("stand-in collector received " + collector.getRequests()
+                + " uploads, " + collector.getBytes() + " bytes");
+    }
+
+    private static Result run(Mode mode, Settings settings, File agentJar,
+            StandInCollector collector) throws Exception {
+        int port = getAvailablePort();
+        List<String> command = Lists.newArrayList();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-Xms512m");
+        command.add("-Xmx512m");
+        if (mode != Mode.NO_AGENT) {
+            command.add("-javaagent:" + agentJar.getAbsolutePath());
+            command.add("-Dbrave.sampleRate=" + (mode == Mode.AGENT_SAMPLED ? "1" : "0"));
+            command.add("-Dbrave.zipkin.endpoint=" + collector.getEndpoint());
+        }
+        // only the app and its database go on the class path, the agent (and its dependencies)
+        // must only be visible through -javaagent
+        command.add("-cp");
+        command.add(getCodeSourcePath(LoadTestApp.class) + File.pathSeparator
+                + getCodeSourcePath(Class.forName("org.h2.Driver")));
+        command.add(LoadTestApp.class.getName());
+        command.add(Integer.toString(port));
+        command.add(Integer.toString(settings.serverThreads));
+
+        System.out.println("starting load test app (" + mode.display + ") ...");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            awaitReady(process);
+            URL url = new URL("http://127.0.0.1:" + port + "/work");
+            System.out.println("warming up for " + settings.warmupSeconds + " seconds ...");
+            driveFixedRate(url, settings.rate, settings.warmupSeconds, settings.clientThreads);
+            System.out.println("measuring at " + settings.rate + " requests/sec for "
+                    + settings.durationSeconds + " seconds ...");
+            Result result =
+                    driveFixedRate(url, settings.rate, settings.durationSeconds,
+                            settings.clientThreads);
+            System.out.println("measuring max throughput for " + settings.maxThroughputSeconds
+                    + " seconds ...");
+            result.maxThroughput =
+                    driveMaxThroughput(url, settings.maxThroughputSeconds, settings.clientThreads);
+            result.mode = mode;
+            return result;
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+    }
+
+    // open loop: requests are issued on a fixed schedule regardless of how long earlier requests
+    // take, and latency is measured from the intended start time, which avoids coordinated omission
+    private static Result driveFixedRate(URL url, int rate, int seconds, int clientThreads)
+            throws InterruptedException {
+        ExecutorService clients = Executors.newFixedThreadPool(clientThreads);
+        Result result = new Result();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long total = (long) rate * seconds;
+        long startTick = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long intendedTick = startTick + i * intervalNanos;
+            long waitNanos = intendedTick - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            clients.execute(new FixedRateRequest(url, intendedTick, result));
+        }
+        clients.shutdown();
+        clients.awaitTermination(5, TimeUnit.MINUTES);
+        return result;
+    }
+
+    // closed loop: each client thread sends its next request as soon as the previous one completes
+    private static double driveMaxThroughput(final URL url, int seconds, int clientThreads)
+            throws InterruptedException {
+        final long deadlineTick = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final AtomicLong completed = new AtomicLong();
+        final CountDownLatch latch = new CountDownLatch(clientThreads);
+        long startTick = System.nanoTime();
+        for (int i = 0; i < clientThreads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() < deadlineTick) {
+                            if (sendRequest(url)) {
+                                completed.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+        latch.await();
+        long elapsedNanos = System.nanoTime() - startTick;
+        return completed.get() * 1e9 / elapsedNanos;
+    }
+
+    private static boolean sendRequest(URL url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            InputStream in = connection.getInputStream();
+            LoadTestApp.drain(in);
+            return connection.getResponseCode() == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void awaitReady(Process process) throws IOException {
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            System.out.println("  | " + line);
+            if (line.equals(LoadTestApp.READY)) {
+                break;
+            }
+        }
+        if (line == null) {
+            throw new IllegalStateException("Load test app exited before it was ready");
+        }
+        // keep pumping the app's output so that it never blocks on a full pipe
+        Thread pump = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        System.out.println("  | " + line);
+                    }
+                } catch (IOException e) {
+                    // process was destroyed
+                }
+            }
+        });
+        pump.setDaemon(true);
+        pump.start();
+    }
+
+    private static void printComparison(List<Result> results, Settings settings) {
+        Result baseline = results.get(0);
+        System.out.println();
+        System.out.println("latency at " + settings.rate + " requests/sec (microseconds),"
+                + " max throughput (requests/sec)");
+        StringBuilder header = new StringBuilder(String.format("%-18s", ""));
+        for (double percentile : PERCENTILES) {
+            header.append(String.format("%18s", "p" + formatPercentile(percentile)));
+        }
+        header.append(String.format("%10s%22s", "errors", "max throughput"));
+        System.out.println(header);
+        for (Result result : results) {
+            StringBuilder row = new StringBuilder(String.format("%-18s", result.mode.display));
+            for (double percentile : PERCENTILES) {
+                long value = result.histogram.getValueAtPercentile(percentile);
+                long baselineValue = baseline.histogram.getValueAtPercentile(percentile);
+                row.append(String.format("%18s", value + formatDelta(value, baselineValue)));
+            }
+            row.append(String.format("%10d", result.errors.get()));
+            row.append(String.format("%22s", (long) result.maxThroughput
+                    + formatDelta(result.maxThroughput, baseline.maxThroughput)));
+            System.out.println(row);
+        }
+    }
+
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile)
+                : Double.toString(percentile);
+    }
+
+    private static String formatDelta(double value, double baselineValue) {
+        if (baselineValue == 0 || value == baselineValue) {
+            return "";
+        }
+        return String.format(" (%+.1f%%)", 100 * (value - baselineValue) / baselineValue);
+    }
+
+    private static String getCodeSourcePath(Class<?> clazz) throws Exception {
+        return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI())
+                .getPath();
+    }
+
+    private static int getAvailablePort() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        int port = serverSocket.getLocalPort();
+        serverSocket.close();
+        return port;
+    }
+
+    private enum Mode {
+
+        NO_AGENT("no agent"), AGENT_UNSAMPLED("agent unsampled"), AGENT_SAMPLED("agent sampled");
+
+        private final String display;
+
+        private Mode(String display) {
+            this.display = display;
+        }
+    }
+
+    private static class Settings {
+
+        private final int rate = Integer.getInteger("harness.rate", 500);
+        private final int warmupSeconds = Integer.getInteger("harness.warmupSeconds", 30);
+        private final int durationSeconds = Integer.getInteger("harness.durationSeconds", 60);
+        private final int maxThroughputSeconds =
+                Integer.getInteger("harness.maxThroughputSeconds", 30);
+        private final int clientThreads = Integer.getInteger("harness.clientThreads", 64);
+        private final int serverThreads = Integer.getInteger("harness.serverThreads", 32);
+    }
+
+    private static class Result {
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+
+        private Mode mode = Mode.NO_AGENT;
+        private double maxThroughput;
+    }
+
+    private static class FixedRateRequest implements Runnable {
+
+        private final URL url;
+        private final long intendedTick;
+        private final Result result;
+
+        private FixedRateRequest(URL url, long intendedTick, Result result) {
+            this.url = url;
+            this.intendedTick = intendedTick;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            if (sendRequest(url)) {
+                result.histogram.recordNanos(System.nanoTime() - intendedTick);
+            } else {
+                result.errors.incrementAndGet();
+            }
+        }
+    }
+}
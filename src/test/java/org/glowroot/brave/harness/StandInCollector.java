@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.harness;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// accepts and discards zipkin v2 span uploads on the loopback interface, so that the sampled run
+// pays the full cost of encoding and sending spans without needing a real collector
+class StandInCollector {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private StandInCollector(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    static StandInCollector start() throws IOException {
+        HttpServer server = HttpServer
+                .create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final StandInCollector collector = new StandInCollector(server, executor);
+        server.createContext("/api/v2/spans", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                collector.bytes.addAndGet(LoadTestApp.drain(exchange.getRequestBody()));
+                collector.requests.incrementAndGet();
+                exchange.sendResponseHeaders(202, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return collector;
+    }
+
+    String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v2/spans";
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryNormalizerTest {
+
+    @Test
+    public void shouldReduceQueriesToOperationAndTable() {
+        assertThat(QueryNormalizer.getTarget("select a, b from orders o where o.id = ?"))
+                .isEqualTo("SELECT orders");
+        assertThat(QueryNormalizer.getTarget("SELECT x FROM app.orders WHERE y = 'from z'"))
+                .isEqualTo("SELECT app.orders");
+        assertThat(QueryNormalizer.getTarget("insert into \"Order Items\" values (1, 'a')"))
+                .isEqualTo("INSERT Order Items");
+        assertThat(QueryNormalizer.getTarget("update orders set name = 'it''s' where id = 7"))
+                .isEqualTo("UPDATE orders");
+        assertThat(QueryNormalizer.getTarget("/* hint */ delete from orders where id = 7"))
+                .isEqualTo("DELETE orders");
+    }
+
+    @Test
+    public void shouldIgnoreKeywordsInsideLiterals() {
+        assertThat(QueryNormalizer.getTarget("select 'from secrets' as x"))
+                .isEqualTo("SELECT");
+    }
+
+    @Test
+    public void shouldReplaceLiteralsInShape() {
+        assertThat(QueryNormalizer.getShape("select * from orders where id = 7 and name = 'it''s'"))
+                .isEqualTo("select * from orders where id = ? and name = ?");
+        assertThat(QueryNormalizer.getShape("update t1 set x = 1.5e3, y = 0x1F where z in (1, 2)"))
+                .isEqualTo("update t1 set x = ?, y = ? where z in (?, ?)");
+        assertThat(QueryNormalizer
+                .getShape("select \"Col 1\" from\n  t -- note 'x'\n where a = $1"))
+                .isEqualTo("select \"Col 1\" from t where a = $1");
+    }
+
+    @Test
+    public void shouldFallBackToOperation() {
+        assertThat(QueryNormalizer.getTarget("select * from (select 1) t")).isEqualTo("SELECT");
+        assertThat(QueryNormalizer.getTarget("call my_proc(1)")).isEqualTo("CALL");
+        assertThat(QueryNormalizer.getTarget("GET user:1234")).isEqualTo("GET");
+        assertThat(QueryNormalizer.getTarget("  ")).isEqualTo("other");
+    }
+}
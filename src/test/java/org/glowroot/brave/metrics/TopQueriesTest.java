@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.metrics;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.brave.metrics.TopQueries.QueryCounter;
+import org.glowroot.brave.metrics.TopQueries.Snapshot;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TopQueriesTest {
+
+    @Test
+    public void shouldFindHeavyHittersAmongManyDistinctQueries() {
+        // given
+        TopQueries topQueries = new TopQueries(3);
+
+        // when
+        for (int i = 0; i < 10000; i++) {
+            topQueries.record("select " + i, MILLISECONDS.toNanos(1));
+            if (i % 10 == 0) {
+                topQueries.record("select frequent", MILLISECONDS.toNanos(1));
+            }
+            if (i % 100 == 0) {
+                topQueries.record("select slow", MILLISECONDS.toNanos(50));
+            }
+        }
+        topQueries.record("select slowest", MILLISECONDS.toNanos(2000));
+        Snapshot snapshot = topQueries.merge();
+
+        // then
+        assertThat(snapshot.getByCount().get(0).getQueryText()).isEqualTo("select frequent");
+        assertThat(snapshot.getByTotalTime().get(0).getQueryText()).isEqualTo("select slow");
+        assertThat(snapshot.getByTotalTime().get(1).getQueryText()).isEqualTo("select slowest");
+        assertThat(snapshot.getByMaxTime().get(0).getQueryText()).isEqualTo("select slowest");
+        assertThat(snapshot.getByMaxTime().get(0).getValue())
+                .isEqualTo(MILLISECONDS.toNanos(2000));
+        assertThat(snapshot.getByMaxTime().get(1).getQueryText()).isEqualTo("select slow");
+    }
+
+    @Test
+    public void shouldBoundOverestimation() {
+        // given
+        TopQueries topQueries = new TopQueries(1);
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            topQueries.record("select " + i, 1);
+            topQueries.record("select frequent", 1);
+        }
+        List<QueryCounter> byCount = topQueries.merge().getByCount();
+
+        // then
+        QueryCounter counter = byCount.get(0);
+        assertThat(counter.getQueryText()).isEqualTo("select frequent");
+        assertThat(counter.getValue() - counter.getError()).isLessThanOrEqualTo(1000);
+        assertThat(counter.getValue()).isGreaterThanOrEqualTo(1000);
+    }
+
+    @Test
+    public void shouldResetOnMerge() {
+        // given
+        TopQueries topQueries = new TopQueries(5);
+        topQueries.record("select 1", 1);
+        topQueries.merge();
+
+        // when
+        Snapshot snapshot = topQueries.merge();
+
+        // then
+        assertThat(snapshot.isEmpty()).isTrue();
+        assertThat(topQueries.getLastSnapshot().isEmpty()).isTrue();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.profiler;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallTreeTest {
+
+    @Test
+    public void shouldRenderDepthAndCountsHottestFirst() {
+        // given
+        CallTree callTree = new CallTree();
+
+        // when
+        callTree.add(stack("a.Dao.find", "a.Handler.handle", "java.lang.Thread.run"));
+        callTree.add(stack("a.Handler.render", "a.Handler.handle", "java.lang.Thread.run"));
+        callTree.add(stack("a.Dao.find", "a.Handler.handle", "java.lang.Thread.run"));
+
+        // then
+        assertThat(callTree.toString()).isEqualTo("0 3 java.lang.Thread.run(X.java:1)\n"
+                + "1 3 a.Handler.handle(X.java:1)\n"
+                + "2 2 a.Dao.find(X.java:1)\n"
+                + "2 1 a.Handler.render(X.java:1)\n");
+    }
+
+    @Test
+    public void shouldCapRenderedText() {
+        // given
+        CallTree callTree = new CallTree();
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            callTree.add(stack("com.example.SomeLongClassName.method" + i,
+                    "java.lang.Thread.run"));
+        }
+
+        // then
+        String text = callTree.toString();
+        assertThat(text.length()).isLessThanOrEqualTo(16 * 1024);
+        assertThat(text).startsWith("0 1000 java.lang.Thread.run(X.java:1)\n");
+        assertThat(text).endsWith("(truncated)\n");
+    }
+
+    // innermost frame first, like Thread.getStackTrace()
+    private static StackTraceElement[] stack(String... methods) {
+        StackTraceElement[] stackTrace = new StackTraceElement[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            int index = methods[i].lastIndexOf('.');
+            stackTrace[i] = new StackTraceElement(methods[i].substring(0, index),
+                    methods[i].substring(index + 1), "X.java", 1);
+        }
+        return stackTrace;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.relay;
+
+import java.io.File;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.codec.Encoding;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.reporter.Sender;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpanRelayTest {
+
+    private File directory;
+    private CapturingSender sender;
+    private SpanRelay relay;
+
+    @Before
+    public void beforeEach() {
+        directory = Files.createTempDir();
+        sender = new CapturingSender(500000);
+        relay = new SpanRelay(directory, sender);
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        relay.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldRelaySpansFromAllRingFiles() throws Exception {
+        // given
+        RelayReporter reporter1 = RelayReporter.create(directory, 65536);
+        RelayReporter reporter2 = RelayReporter.create(directory, 65536);
+
+        // when
+        reporter1.report(newSpan(1));
+        reporter2.report(newSpan(2));
+        reporter1.report(newSpan(3));
+        relay.run();
+
+        // then
+        assertThat(sender.messages).hasSize(1);
+        assertThat(getIds(sender.getSpans())).containsOnly("0000000000000001",
+                "0000000000000002", "0000000000000003");
+        assertThat(relay.getRingFileCount()).isEqualTo(2);
+        reporter1.close();
+        reporter2.close();
+    }
+
+    @Test
+    public void shouldSplitMessagesAtMaxBytes() throws Exception {
+        // given
+        sender = new CapturingSender(400);
+        relay = new SpanRelay(directory, sender);
+        RelayReporter reporter = RelayReporter.create(directory, 65536);
+
+        // when
+        for (int i = 1; i <= 20; i++) {
+            reporter.report(newSpan(i));
+        }
+        relay.run();
+
+        // then
+        assertThat(sender.messages.size()).isGreaterThan(1);
+        for (List<byte[]> message : sender.messages) {
+            assertThat(sender.messageSizeInBytes(message)).isLessThanOrEqualTo(400);
+        }
+        assertThat(sender.getSpans()).hasSize(20);
+        reporter.close();
+    }
+
+    @Test
+    public void shouldWrapAroundRingFile() throws Exception {
+        // given
+        RelayReporter reporter = RelayReporter.create(directory, 1000);
+
+        // when
+        for (int i = 1; i <= 100; i++) {
+            reporter.report(newSpan(i));
+            reporter.report(newSpan(i + 1000));
+            relay.run();
+        }
+
+        // then
+        List<Span> spans = sender.getSpans();
+        assertThat(spans).hasSize(200);
+        assertThat(spans.get(198).id()).isEqualTo(newSpan(100).id());
+        assertThat(spans.get(199).id()).isEqualTo(newSpan(1100).id());
+        assertThat(reporter.getDroppedSpans()).isZero();
+        reporter.close();
+    }
+
+    @Test
+    public void shouldDropSpansWhenRingFileIsFull() throws Exception {
+        // given
+        RelayReporter reporter = RelayReporter.create(directory, 1000);
+
+        // when
+        for (int i = 1; i <= 100; i++) {
+            reporter.report(newSpan(i));
+        }
+        relay.run();
+
+        // then
+        assertThat(reporter.getDroppedSpans()).isGreaterThan(0);
+        assertThat((long) sender.getSpans().size() + reporter.getDroppedSpans())
+                .isEqualTo(100);
+        reporter.close();
+    }
+
+    @Test
+    public void shouldDeleteRingFileOnceWriterIsGoneAndDrained() throws Exception {
+        // given
+        RelayReporter reporter = RelayReporter.create(directory, 65536);
+        reporter.report(newSpan(1));
+
+        // when
+        reporter.close();
+        relay.run();
+
+        // then
+        assertThat(sender.getSpans()).hasSize(1);
+        assertThat(relay.getRingFileCount()).isZero();
+        assertThat(directory.listFiles()).isEmpty();
+    }
+
+    private static Span newSpan(long id) {
+        return Span.newBuilder()
+                .traceId(0, id)
+                .id(id)
+                .name("span " + id)
+                .timestamp(1000000)
+                .duration(1000)
+                .build();
+    }
+
+    private static List<String> getIds(List<Span> spans) {
+        List<String> ids = Lists.newArrayList();
+        for (Span span : spans) {
+            ids.add(span.id());
+        }
+        return ids;
+    }
+
+    private static class CapturingSender extends Sender {
+
+        private final int messageMaxBytes;
+
+        private final List<List<byte[]>> messages = Lists.newArrayList();
+
+        private CapturingSender(int messageMaxBytes) {
+            this.messageMaxBytes = messageMaxBytes;
+        }
+
+        @Override
+        public Encoding encoding() {
+            return Encoding.JSON;
+        }
+
+        @Override
+        public int messageMaxBytes() {
+            return messageMaxBytes;
+        }
+
+        @Override
+        public int messageSizeInBytes(List<byte[]> encodedSpans) {
+            return encoding().listSizeInBytes(encodedSpans);
+        }
+
+        @Override
+        public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+            messages.add(encodedSpans);
+            return Call.create(null);
+        }
+
+        private List<Span> getSpans() {
+            List<Span> spans = Lists.newArrayList();
+            for (List<byte[]> message : messages) {
+                for (byte[] span : message) {
+                    spans.add(SpanBytesDecoder.JSON_V2.decodeOne(span));
+                }
+            }
+            return spans;
+        }
+    }
+}
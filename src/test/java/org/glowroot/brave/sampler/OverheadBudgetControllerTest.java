@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.brave.sampler;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.reporter.InMemoryReporterMetrics;
+import zipkin2.reporter.Reporter;
+
+import org.glowroot.brave.sampler.OverheadBudgetController.ReporterQueue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OverheadBudgetControllerTest {
+
+    private static final Span SPAN = Span.newBuilder().traceId("1").id("1").build();
+
+    private FakeTicker ticker;
+    private SpanCountingReporter spanCounter;
+    private InMemoryReporterMetrics reporterMetrics;
+    private AdaptiveSampler sampler;
+    private OverheadBudgetController controller;
+
+    @Before
+    public void beforeEach() {
+        ticker = new FakeTicker();
+        spanCounter = new SpanCountingReporter(Reporter.NOOP);
+        reporterMetrics = new InMemoryReporterMetrics();
+        sampler = new AdaptiveSampler(1);
+        controller = new OverheadBudgetController(sampler, 0.001f, 1, 100, 0, 0, spanCounter,
+                ImmutableList.of(new ReporterQueue(reporterMetrics, 10000)), ticker);
+    }
+
+    @Test
+    public void shouldReduceRateWhenOverBudget() {
+        // when
+        reportSpansOverOneSecond(1000);
+
+        // then
+        assertThat(sampler.getRate()).isEqualTo(0.1f);
+        assertThat(controller.getLastDecision().getReason()).isEqualTo("spans/sec");
+        assertThat(controller.getLastDecision().getPrevRate()).isEqualTo(1f);
+        assertThat(controller.getLastDecision().getNewRate()).isEqualTo(0.1f);
+    }
+
+    @Test
+    public void shouldHoldRateWhenAtBudgetAfterReduction() {
+        // given
+        reportSpansOverOneSecond(1000);
+
+        // when
+        reportSpansOverOneSecond(100);
+        reportSpansOverOneSecond(100);
+
+        // then
+        assertThat(sampler.getRate()).isEqualTo(0.1f);
+    }
+
+    @Test
+    public void shouldIncreaseRateGraduallyWhenUnderBudget() {
+        // given
+        reportSpansOverOneSecond(1000);
+
+        // when
+        reportSpansOverOneSecond(0);
+
+        // then
+        float rate = sampler.getRate();
+        assertThat(rate > 0.1f).isTrue();
+        assertThat(rate <= 0.15f).isTrue();
+        assertThat(controller.getLastDecision().getReason()).isEqualTo("within budget");
+    }
+
+    @Test
+    public void shouldNotExceedMaxRate() {
+        // when
+        for (int i = 0; i < 20; i++) {
+            reportSpansOverOneSecond(0);
+        }
+
+        // then
+        assertThat(sampler.getRate()).isEqualTo(1f);
+    }
+
+    @Test
+    public void shouldNotGoBelowMinRate() {
+        // when
+        reportSpansOverOneSecond(1000000);
+
+        // then
+        assertThat(sampler.getRate()).isEqualTo(0.001f);
+    }
+
+    @Test
+    public void shouldAtLeastHalveRateWhenReporterDropsSpans() {
+        // when
+        reporterMetrics.incrementSpansDropped(1);
+        reportSpansOverOneSecond(10);
+
+        // then
+        assertThat(sampler.getRate()).isEqualTo(0.5f);
+        assertThat(controller.getLastDecision().getReason()).isEqualTo("reporter dropped spans");
+    }
+
+    @Test
+    public void shouldReduceRateWhenReporterQueueFills() {
+        // when
+        reporterMetrics.updateQueuedSpans(8000);
+        reportSpansOverOneSecond(10);
+
+        // then
+        assertThat(sampler.getRate()).isEqualTo(0.625f);
+        assertThat(controller.getLastDecision().getReason()).isEqualTo("reporter queue");
+    }
+
+    @Test
+    public void shouldMeasureSpanRateWithoutReporterQueues() {
+        // given
+        controller = new OverheadBudgetController(sampler, 0.001f, 1, 100, 0, 0, spanCounter,
+                ImmutableList.<ReporterQueue>of(), ticker);
+
+        // when
+        reportSpansOverOneSecond(1000);
+
+        // then
+        assertThat(sampler.getRate()).isEqualTo(0.1f);
+        assertThat(controller.getLastDecision().getSpansPerSecond()).isEqualTo(1000);
+    }
+
+    private void reportSpansOverOneSecond(int spans) {
+        for (int i = 0; i < spans; i++) {
+            spanCounter.report(SPAN);
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        controller.run();
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        private void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+    }
+}